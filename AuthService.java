@@ -0,0 +1,246 @@
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+/**
+ * Runs the expensive PBKDF2 work of /LOGIN and /REGISTER on a small bounded
+ * pool so a burst of authentications can't take every core away from
+ * gameplay. Requests are throttled per client address and per nick before
+ * any hashing is done, and logins whose password was verified recently are
+ * answered from the account's verified-hash cache without hashing at all.
+ */
+class AuthService {
+    private ThreadPoolExecutor pool;
+    private ConcurrentHashMap<String, TokenBucket> buckets = new ConcurrentHashMap<String, TokenBucket>();
+
+    // throttling: burst size and refill rate per address and per nick
+    private static final int IP_BURST = 20;
+    private static final double IP_PER_SECOND = 5;
+    private static final int NICK_BURST = 5;
+    private static final double NICK_PER_SECOND = 0.2;
+    private static final int MAX_BUCKETS = 100000; // sweep full buckets beyond this
+
+    // metrics
+    private LongAdder requests = new LongAdder();
+    private LongAdder rejected = new LongAdder();
+    private LongAdder throttled = new LongAdder();
+    private LongAdder cacheHits = new LongAdder();
+    private LongAdder completed = new LongAdder();
+    private LongAdder latencyNanos = new LongAdder(); // queue wait + hashing
+    private AtomicLong maxLatencyNanos = new AtomicLong();
+    private LatencyHistogram hashTime = new LatencyHistogram(); // PBKDF2 alone, without queue wait
+
+    /**
+     * Constructor
+     * @param threads number of hashing threads
+     * @param queueSize maximum number of requests waiting for a thread
+     */
+    public AuthService(int threads, int queueSize) {
+        AtomicInteger count = new AtomicInteger();
+        pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+                r -> {
+                    Thread t = new Thread(r, "scoreboard-auth-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    /**
+     * Check a password
+     * @param acc Account to check against (null if the nick isn't registered)
+     * @param nick Nick the client is logging in as
+     * @param password Password given
+     * @param address Client address, for throttling
+     * @return the outcome, completed once hashing is done
+     */
+    public CompletableFuture<AuthResult> login(Account acc, String nick, String password, String address) {
+        requests.increment();
+        if (!this.allow(address, nick)) {
+            throttled.increment();
+            return CompletableFuture.completedFuture(AuthResult.THROTTLED);
+        }
+        if (acc == null)
+            return CompletableFuture.completedFuture(AuthResult.FAILED);
+        if (acc.checkCachedPass(password)) { // verified recently, skip PBKDF2
+            cacheHits.increment();
+            return CompletableFuture.completedFuture(AuthResult.OK);
+        }
+        return this.submit(() -> acc.checkPass(password) ? AuthResult.OK : AuthResult.FAILED, AuthResult.BUSY);
+    }
+
+    /**
+     * Hash a new account's password
+     * @param nick Nick to register
+     * @param password Password to hash
+     * @param address Client address, for throttling
+     * @return the new Account (null if throttled or the pool is full), completed once hashing is done
+     */
+    public CompletableFuture<Account> createAccount(String nick, String password, String address) {
+        requests.increment();
+        if (!this.allow(address, null)) {
+            throttled.increment();
+            return CompletableFuture.completedFuture(null);
+        }
+        return this.submit(() -> new Account(nick, password), null);
+    }
+
+    /**
+     * Run hashing work on the pool, recording latency
+     * @param work the hashing work
+     * @param busy result to use when the queue is full
+     * @return the work's result
+     */
+    private <T> CompletableFuture<T> submit(Supplier<T> work, T busy) {
+        long queued = System.nanoTime();
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                long started = System.nanoTime();
+                try {
+                    return work.get();
+                } finally {
+                    hashTime.record(System.nanoTime() - started);
+                    long took = System.nanoTime() - queued;
+                    completed.increment();
+                    latencyNanos.add(took);
+                    maxLatencyNanos.accumulateAndGet(took, Math::max);
+                }
+            }, pool);
+        } catch(RejectedExecutionException e) {
+            rejected.increment();
+            return CompletableFuture.completedFuture(busy);
+        }
+    }
+
+    /**
+     * Take a token for the address and (optionally) the nick
+     * @return whether the request may proceed
+     */
+    private boolean allow(String address, String nick) {
+        if (buckets.size() > MAX_BUCKETS)
+            this.sweep();
+        long now = System.nanoTime();
+        if (address != null && !buckets.computeIfAbsent("ip:" + address, k -> new TokenBucket(IP_BURST, IP_PER_SECOND)).take(now))
+            return false;
+        if (nick != null && !buckets.computeIfAbsent("nick:" + nick, k -> new TokenBucket(NICK_BURST, NICK_PER_SECOND)).take(now))
+            return false;
+        return true;
+    }
+
+    // forget clients that haven't been throttled recently
+    private void sweep() {
+        long now = System.nanoTime();
+        for (Map.Entry<String, TokenBucket> e : buckets.entrySet())
+            if (e.getValue().isFull(now))
+                buckets.remove(e.getKey(), e.getValue());
+    }
+
+    /**
+     * @return number of requests waiting for a hashing thread
+     */
+    public int getQueueDepth() {
+        return pool.getQueue().size();
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getThrottled() {
+        return throttled.sum();
+    }
+
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    public long getCompleted() {
+        return completed.sum();
+    }
+
+    /**
+     * @return mean time from submission to finished hash, in microseconds
+     */
+    public long getMeanLatencyMicros() {
+        long n = completed.sum();
+        return n == 0 ? 0 : latencyNanos.sum() / n / 1000;
+    }
+
+    public long getMaxLatencyMicros() {
+        return maxLatencyNanos.get() / 1000;
+    }
+
+    /**
+     * @return distribution of the time spent hashing, excluding queue wait
+     */
+    public LatencyHistogram getHashTime() {
+        return hashTime;
+    }
+
+    @Override
+    public String toString() {
+        return "auth: requests=" + getRequests() + " hashed=" + getCompleted() + " cached=" + getCacheHits()
+            + " throttled=" + getThrottled() + " rejected=" + getRejected() + " queue=" + getQueueDepth()
+            + " meanLatency=" + getMeanLatencyMicros() + "us maxLatency=" + getMaxLatencyMicros() + "us";
+    }
+}
+
+/**
+ * Outcome of an authentication request
+ */
+enum AuthResult {
+    OK,         // password matched / account created
+    FAILED,     // wrong nick or password
+    THROTTLED,  // too many attempts from this address or for this nick
+    BUSY        // hashing queue full
+}
+
+/**
+ * Token bucket used for throttling
+ */
+class TokenBucket {
+    private double tokens;
+    private int capacity;
+    private double perNano;
+    private long last;
+
+    public TokenBucket(int capacity, double perSecond) {
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.perNano = perSecond / 1e9;
+        this.last = System.nanoTime();
+    }
+
+    /**
+     * Take a token if one is available
+     * @param now current System.nanoTime()
+     * @return whether a token was taken
+     */
+    public synchronized boolean take(long now) {
+        refill(now);
+        if (tokens < 1)
+            return false;
+        tokens--;
+        return true;
+    }
+
+    public synchronized boolean isFull(long now) {
+        refill(now);
+        return tokens >= capacity;
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(capacity, tokens + (now - last) * perNano);
+        last = now;
+    }
+}
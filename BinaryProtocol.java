@@ -0,0 +1,254 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+/**
+ * Compact framing for machine clients, switched to with "/PROTO binary" on
+ * the normal port. Every frame in either direction is a varint length
+ * followed by that many bytes: an opcode and its fields. Strings are a
+ * varint byte length and UTF-8, numbers (scores, points, counts, ranks)
+ * are bare varints. Varints are unsigned LEB128; the server pads its frame
+ * lengths to 4 bytes, so readers must accept non-minimal encodings.
+ *
+ * Requests become the same verb and arguments a text command would, and
+ * run through the same handlers; only the encoding of the reply differs.
+ */
+class BinaryProtocol {
+    // requests, client to server: fields in brackets
+    static final int OP_NICK = 0x01;       // [nick]
+    static final int OP_REGISTER = 0x02;   // [password]
+    static final int OP_LOGIN = 0x03;      // [nick, password]
+    static final int OP_JOIN = 0x04;       // [gameID]
+    static final int OP_LEAVE = 0x05;
+    static final int OP_ANSWER = 0x06;     // [questionID, answer]
+    static final int OP_GAMES = 0x07;
+    static final int OP_QUESTIONS = 0x08;  // [gameID (optional)]
+    static final int OP_SCOREBOARD = 0x09; // [gameID (optional)]
+    static final int OP_WATCH = 0x0A;      // [gameID]
+    static final int OP_UNWATCH = 0x0B;
+    static final int OP_PROTO = 0x0C;      // ["text"], back to the text protocol
+    static final int OP_QUIT = 0x0D;
+    static final int OP_TAGGED = 0x0E;     // [tag], then a whole request (opcode and fields)
+
+    // replies and pushed updates, server to client
+    static final int OP_OK = 0x81;           // [message]
+    static final int OP_NOTICE = 0x82;       // [message]
+    static final int OP_ERROR = 0x83;        // [message]
+    static final int OP_GAME_LIST = 0x84;    // count, then [gameID] each
+    static final int OP_QUESTION_LIST = 0x85; // [gameID], count, then [questionID, question, points] each
+    static final int OP_SCORES = 0x86;       // [gameID], count, then [nick, score] each, best first
+    static final int OP_ANSWERED = 0x87;     // points awarded, 0 for a wrong answer
+    static final int OP_SCORE_UPDATE = 0x88; // [gameID], rows changed, count, then [nick, score, rank] each
+    static final int OP_TAG = 0x89;          // [tag], length in bytes of the frames that follow, the reply to an OP_TAGGED request
+    static final int OP_ANNOUNCEMENT = 0x8A; // [gameID ("" for everyone), message], pushed by the server operator
+
+    // request opcode -> command verb and any fixed leading arguments
+    private static final String[][] REQUESTS = new String[OP_QUIT + 1][];
+    static {
+        REQUESTS[OP_NICK] = new String[] {"/NICK"};
+        REQUESTS[OP_REGISTER] = new String[] {"/REGISTER"};
+        REQUESTS[OP_LOGIN] = new String[] {"/LOGIN"};
+        REQUESTS[OP_JOIN] = new String[] {"/JOIN"};
+        REQUESTS[OP_LEAVE] = new String[] {"/LEAVE"};
+        REQUESTS[OP_ANSWER] = new String[] {"/ANSWER"};
+        REQUESTS[OP_GAMES] = new String[] {"/SHOW", "games"};
+        REQUESTS[OP_QUESTIONS] = new String[] {"/SHOW", "questions"};
+        REQUESTS[OP_SCOREBOARD] = new String[] {"/SHOW", "scoreboard"};
+        REQUESTS[OP_WATCH] = new String[] {"/WATCH"};
+        REQUESTS[OP_UNWATCH] = new String[] {"/UNWATCH"};
+        REQUESTS[OP_PROTO] = new String[] {"/PROTO"};
+        REQUESTS[OP_QUIT] = new String[] {"/QUIT"};
+    }
+
+    /**
+     * Turn a request frame into a command
+     * @param frame Opcode and fields
+     * @param length Bytes of frame in use
+     * @return the command; its verb is null for an unknown opcode
+     * @throws BadFrameException if a field runs past the end of the frame
+     */
+    static Frame request(byte[] frame, int length) throws BadFrameException {
+        int[] pos = {1};
+        int op = frame[0] & 0xFF;
+        String tag = null;
+        if (op == OP_TAGGED) {
+            tag = field(frame, pos, length);
+            if (pos[0] == length)
+                throw new BadFrameException("tagged frame without a request");
+            op = frame[pos[0]++] & 0xFF;
+        }
+        String[] command = op < REQUESTS.length ? REQUESTS[op] : null;
+        if (command == null)
+            return new Frame(null, new String[0], tag);
+        ArrayList<String> args = new ArrayList<String>();
+        for (int i = 1; i < command.length; i++)
+            args.add(command[i]);
+        while (pos[0] < length)
+            args.add(field(frame, pos, length));
+        return new Frame(command[0], args.toArray(new String[0]), tag);
+    }
+
+    // decode the string field at pos[0] and move past it
+    private static String field(byte[] frame, int[] pos, int length) throws BadFrameException {
+        long len = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (pos[0] == length || shift > 28)
+                throw new BadFrameException("frame with a bad field length");
+            b = frame[pos[0]++];
+            len |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        if (len > length - pos[0])
+            throw new BadFrameException("frame with a truncated field");
+        String s = new String(frame, pos[0], (int) len, StandardCharsets.UTF_8);
+        pos[0] += (int) len;
+        return s;
+    }
+
+    /**
+     * A text message: OP_OK, OP_NOTICE or OP_ERROR
+     * @param out Buffer to append to
+     * @param op The opcode
+     * @param text The message
+     */
+    static void message(ResponseBuffer out, int op, String text) {
+        int start = out.beginFrame(op);
+        out.appendField(text);
+        out.endFrame(start);
+    }
+
+    /**
+     * The games list
+     * @param out Buffer to append to
+     * @param ids The game IDs
+     */
+    static void games(ResponseBuffer out, List<String> ids) {
+        int start = out.beginFrame(OP_GAME_LIST);
+        out.appendVarint(ids.size());
+        for (String id : ids)
+            out.appendField(id);
+        out.endFrame(start);
+    }
+
+    /**
+     * A game's questions
+     * @param out Buffer to append to
+     * @param g The game
+     */
+    static void questions(ResponseBuffer out, ChallengeResponseGame g) {
+        List<Question> list = g.getQuestionList();
+        int start = out.beginFrame(OP_QUESTION_LIST);
+        out.appendField(g.getId());
+        out.appendVarint(list.size());
+        for (Question q : list) {
+            out.appendField(q.getId());
+            out.appendField(q.getQuestion());
+            out.appendVarint(q.getPoints());
+        }
+        out.endFrame(start);
+    }
+
+    /**
+     * Scoreboard rows, best first (rank is the position)
+     * @param out Buffer to append to
+     * @param gameID The game
+     * @param rows Nicks and scores
+     */
+    static void scores(ResponseBuffer out, String gameID, List<Map.Entry<String, Integer>> rows) {
+        int start = out.beginFrame(OP_SCORES);
+        out.appendField(gameID);
+        out.appendVarint(rows.size());
+        for (Map.Entry<String, Integer> e : rows) {
+            out.appendField(e.getKey());
+            out.appendVarint(e.getValue());
+        }
+        out.endFrame(start);
+    }
+
+    /**
+     * Changed scores of a watched game
+     * @param out Buffer to append to
+     * @param gameID The game
+     * @param changed Number of rows that changed (may be more than are sent)
+     * @param rows Nicks and scores, best first
+     * @param ranks Rank of each row
+     */
+    static void scoreUpdate(ResponseBuffer out, String gameID, int changed, List<Map.Entry<String, Integer>> rows, int[] ranks) {
+        int start = out.beginFrame(OP_SCORE_UPDATE);
+        out.appendField(gameID);
+        out.appendVarint(changed);
+        out.appendVarint(rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            out.appendField(rows.get(i).getKey());
+            out.appendVarint(rows.get(i).getValue());
+            out.appendVarint(ranks[i]);
+        }
+        out.endFrame(start);
+    }
+
+    /**
+     * Header of the reply to a tagged request
+     * @param out Buffer to append to
+     * @param tag The request's tag
+     * @param length Bytes of reply frames that follow
+     */
+    static void tagged(ResponseBuffer out, String tag, int length) {
+        int start = out.beginFrame(OP_TAG);
+        out.appendField(tag);
+        out.appendVarint(length);
+        out.endFrame(start);
+    }
+
+    /**
+     * An operator's announcement
+     * @param out Buffer to append to
+     * @param gameID The game it went to, null for everyone
+     * @param text The message
+     */
+    static void announcement(ResponseBuffer out, String gameID, String text) {
+        int start = out.beginFrame(OP_ANNOUNCEMENT);
+        out.appendField(gameID == null ? "" : gameID);
+        out.appendField(text);
+        out.endFrame(start);
+    }
+
+    /**
+     * The result of an /ANSWER
+     * @param out Buffer to append to
+     * @param points Points awarded, 0 if wrong
+     */
+    static void answered(ResponseBuffer out, int points) {
+        int start = out.beginFrame(OP_ANSWERED);
+        out.appendVarint(points);
+        out.endFrame(start);
+    }
+}
+
+/**
+ * A decoded binary request: the command it stands for
+ */
+class Frame {
+    final String verb; // e.g. "/JOIN", null for an unknown opcode
+    final String[] args;
+    final String tag;  // from OP_TAGGED, null if untagged
+
+    Frame(String verb, String[] args, String tag) {
+        this.verb = verb;
+        this.args = args;
+        this.tag = tag;
+    }
+}
+
+/**
+ * A client sent a binary frame that can't be decoded
+ */
+class BadFrameException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public BadFrameException(String message) {
+        super(message);
+    }
+}
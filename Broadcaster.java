@@ -0,0 +1,231 @@
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+/**
+ * Announcements to every session, or to the players in one game. A message
+ * is encoded once per protocol in use and the same read-only bytes are
+ * queued to each recipient, so announcing to many sessions costs a queue
+ * entry each, not a copy. The caller only hands the message over: a
+ * fan-out thread picks the recipients, and a small fixed pool of writer
+ * threads empties the queues. A writer doesn't wait for a session that is
+ * behind: the session keeps its messages queued and is picked up again
+ * once its connection has room (on the blocking transport, a stalled write
+ * lasts until the server closes the session). Queues are bounded; what
+ * happens when a session's queue is full is the overflow policy.
+ */
+class Broadcaster {
+    static final int DEFAULT_QUEUE_SIZE = 32;
+
+    /**
+     * What to do with a session whose queue is full
+     */
+    enum Overflow {
+        DROP_NEWEST, // the session misses the new message
+        DROP_OLDEST, // the session misses its oldest unsent message
+        DISCONNECT   // the session is closed
+    }
+
+    private Set<ScoreboardClient> clients; // the server's sessions, read when a message goes out
+    private ConcurrentHashMap<ScoreboardClient, Outbox> outboxes = new ConcurrentHashMap<ScoreboardClient, Outbox>();
+    private int queueSize;
+    private Overflow overflow;
+    private ExecutorService fanout;
+    private ExecutorService senders; // write queued messages, one task per session with something queued
+
+    // metrics
+    private AtomicLong messages = new AtomicLong();
+    private AtomicLong deliveries = new AtomicLong();
+    private AtomicLong dropped = new AtomicLong();
+    private AtomicLong disconnected = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param clients The server's sessions
+     * @param queueSize Messages a session may fall behind by
+     * @param overflow Policy for a session that falls further behind
+     */
+    public Broadcaster(Set<ScoreboardClient> clients, int queueSize, Overflow overflow) {
+        this.clients = clients;
+        this.queueSize = Math.max(1, queueSize);
+        this.overflow = overflow;
+        fanout = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "scoreboard-broadcast");
+            t.setDaemon(true);
+            return t;
+        });
+        senders = SessionExecutor.writers("scoreboard-broadcast-send", SessionExecutor.DEFAULT_WRITERS);
+    }
+
+    /**
+     * Parse an overflow policy name
+     * @param name "drop-newest", "drop-oldest" or "disconnect"
+     * @return the policy
+     * @throws IllegalArgumentException for any other name
+     */
+    static Overflow overflow(String name) {
+        return Overflow.valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+
+    /**
+     * Send a message to every session. Returns at once.
+     * @param text The message
+     */
+    public void announce(String text) {
+        this.announce(null, text);
+    }
+
+    /**
+     * Send a message to the sessions in a game (or to every session). Returns at once.
+     * @param gameID The game, null for everyone
+     * @param text The message
+     */
+    public void announce(String gameID, String text) {
+        messages.incrementAndGet();
+        Message m = new Message(gameID, text);
+        fanout.execute(() -> this.deliver(m));
+    }
+
+    // queue one message to each of its recipients (fan-out thread)
+    private void deliver(Message m) {
+        try {
+            for (ScoreboardClient c : clients)
+                if (m.gameID == null || c.inGame(m.gameID))
+                    this.offer(c, m.encoded(c.isBinary()));
+        } catch(RuntimeException ex) { // keep the thread for the next message
+            System.err.println(ex);
+        }
+    }
+
+    // queue an encoded message, applying the overflow policy if the session is behind
+    private void offer(ScoreboardClient c, byte[] data) {
+        Outbox o = outboxes.computeIfAbsent(c, k -> new Outbox(queueSize));
+        if (!o.queue.offer(data)) {
+            if (overflow == Overflow.DISCONNECT) {
+                disconnected.incrementAndGet();
+                outboxes.remove(c, o);
+                o.queue.clear();
+                c.close();
+                return;
+            }
+            dropped.incrementAndGet();
+            if (overflow == Overflow.DROP_OLDEST) {
+                o.queue.poll();
+                o.queue.offer(data); // only this thread adds, so there is room now
+            }
+        }
+        if (o.sending.compareAndSet(false, true))
+            senders.execute(() -> this.drain(c, o));
+    }
+
+    // write out everything queued for one session, until its connection is full
+    private void drain(ScoreboardClient c, Outbox o) {
+        while (true) {
+            byte[] data;
+            while ((data = o.pending != null ? o.pending : o.queue.poll()) != null) {
+                o.pending = null;
+                try {
+                    if (!c.offerPush(data, () -> senders.execute(() -> this.drain(c, o)))) {
+                        o.pending = data;
+                        return; // still marked sending: drained again once the client catches up
+                    }
+                    deliveries.incrementAndGet();
+                } catch(IOException e) {
+                    outboxes.remove(c, o);
+                    o.queue.clear();
+                }
+            }
+            o.sending.set(false);
+            if (o.queue.isEmpty() || !o.sending.compareAndSet(false, true))
+                return; // nothing arrived after the last poll, or another sender took over
+        }
+    }
+
+    /**
+     * Drop a session's queue (it disconnected)
+     * @param c The client
+     */
+    public void forget(ScoreboardClient c) {
+        Outbox o = outboxes.remove(c);
+        if (o != null)
+            o.queue.clear();
+    }
+
+    /**
+     * @return messages announced so far
+     */
+    public long getMessages() {
+        return messages.get();
+    }
+
+    /**
+     * @return messages written to sessions so far
+     */
+    public long getDeliveries() {
+        return deliveries.get();
+    }
+
+    /**
+     * @return messages a session missed because its queue was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return sessions closed because their queue was full
+     */
+    public long getDisconnected() {
+        return disconnected.get();
+    }
+
+    /**
+     * An announcement and its encodings, made on first use (fan-out thread only)
+     */
+    private static class Message {
+        private final String gameID;
+        private final String text;
+        private byte[] line;  // text protocol
+        private byte[] frame; // binary protocol
+
+        Message(String gameID, String text) {
+            this.gameID = gameID;
+            this.text = text;
+        }
+
+        byte[] encoded(boolean binary) {
+            ResponseBuffer out;
+            if (binary) {
+                if (frame == null) {
+                    out = new ResponseBuffer();
+                    BinaryProtocol.announcement(out, gameID, text);
+                    frame = out.toByteArray();
+                }
+                return frame;
+            }
+            if (line == null) {
+                out = new ResponseBuffer();
+                out.appendLine("\033[36m*** ANNOUNCEMENT" + (gameID == null ? "" : " (GameID " + gameID + ")") + ": " + text + "\033[0m");
+                line = out.toByteArray();
+            }
+            return line;
+        }
+    }
+
+    /**
+     * A session's queue of messages not yet written
+     */
+    private static class Outbox {
+        private final ArrayBlockingQueue<byte[]> queue;
+        private final AtomicBoolean sending = new AtomicBoolean();
+        private byte[] pending; // taken from the queue but not written yet (only the sending task uses it)
+
+        Outbox(int size) {
+            queue = new ArrayBlockingQueue<byte[]>(size);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+import java.util.TreeMap;
+/**
+ * Table driven command dispatcher. Each input line is split once into a verb
+ * and its arguments, the verb is looked up (case insensitive) in a table of
+ * handlers and the matching handler is called with the arguments already
+ * separated. No regular expressions are involved.
+ * @param <T> the session type the handlers act on
+ */
+class CommandDispatcher<T> {
+    private static final String[] NO_ARGS = new String[0];
+
+    /**
+     * A command implementation
+     * @param <T> the session type
+     */
+    interface Handler<T> {
+        /**
+         * Run the command
+         * @param session Session that sent the command
+         * @param args Arguments (at most the registered maximum, the last one holds the rest of the line)
+         * @return false to end the session, true otherwise
+         */
+        boolean handle(T session, String[] args);
+    }
+
+    private static class Command<T> {
+        private Handler<T> handler;
+        private int maxArgs;
+
+        Command(Handler<T> handler, int maxArgs) {
+            this.handler = handler;
+            this.maxArgs = maxArgs;
+        }
+    }
+
+    private TreeMap<String, Command<T>> commands = new TreeMap<String, Command<T>>(String.CASE_INSENSITIVE_ORDER);
+
+    /**
+     * Add a verb to the table (replacing any existing handler for it)
+     * @param verb Command word, e.g. "/JOIN"
+     * @param maxArgs Number of arguments to split off; the last one keeps any remaining spaces
+     * @param handler Handler to call
+     * @return this dispatcher, for chaining
+     */
+    public CommandDispatcher<T> register(String verb, int maxArgs, Handler<T> handler) {
+        commands.put(verb, new Command<T>(handler, maxArgs));
+        return this;
+    }
+
+    /**
+     * Check if a verb is known
+     * @param verb Command word
+     * @return whether a handler is registered
+     */
+    public boolean isRegistered(String verb) {
+        return commands.containsKey(verb);
+    }
+
+    /**
+     * Find the command word of a line as it was registered
+     * @param line The line
+     * @return the registered verb (same instance for every spelling), or null if unknown
+     */
+    public String verbOf(String line) {
+        int space = line.indexOf(' ');
+        String verb = space == -1 ? line : line.substring(0, space);
+        String key = commands.ceilingKey(verb);
+        return key != null && key.equalsIgnoreCase(verb) ? key : null;
+    }
+
+    /**
+     * Dispatch one line of input. Blank lines and unknown verbs are ignored.
+     * @param session Session that sent the line
+     * @param line The line
+     * @return false if the handler ended the session, true otherwise
+     */
+    public boolean dispatch(T session, String line) {
+        if (line.isEmpty())
+            return true;
+        int space = line.indexOf(' ');
+        String verb = space == -1 ? line : line.substring(0, space);
+        Command<T> command = commands.get(verb);
+        if (command == null)
+            return true;
+        String[] args = space == -1 ? NO_ARGS : split(line, space + 1, command.maxArgs);
+        return command.handler.handle(session, args);
+    }
+
+    /**
+     * Dispatch a command whose arguments are already separated (a binary
+     * request). Unknown verbs are ignored.
+     * @param session Session that sent the command
+     * @param verb Command word
+     * @param args Arguments
+     * @return false if the handler ended the session, true otherwise
+     */
+    public boolean dispatch(T session, String verb, String[] args) {
+        Command<T> command = commands.get(verb);
+        if (command == null)
+            return true;
+        return command.handler.handle(session, args);
+    }
+
+    /**
+     * Split text on single spaces into at most max parts
+     * @param line Text to split
+     * @param start Index to start at
+     * @param max Maximum number of parts
+     * @return the parts (an empty string if nothing follows start)
+     */
+    static String[] split(String line, int start, int max) {
+        if (max <= 0)
+            return NO_ARGS;
+        int parts = 1;
+        for (int i = line.indexOf(' ', start); i != -1 && parts < max; i = line.indexOf(' ', i + 1))
+            parts++;
+        String[] out = new String[parts];
+        for (int p = 0; p < parts - 1; p++) {
+            int space = line.indexOf(' ', start);
+            out[p] = line.substring(start, space);
+            start = space + 1;
+        }
+        out[parts - 1] = line.substring(start);
+        return out;
+    }
+}
@@ -1,23 +1,69 @@
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.ToIntFunction;
 
 /**
- * A generic game class.
+ * A generic game class. Safe for concurrent use by client threads: scores
+ * are updated with atomic per-player merges, and joins and awards only mark
+ * the player for the ranking, which catches up when it is next read. So
+ * answering takes no game-wide lock; reading the ranking may.
  * @author leune
  *
  */
 public class Game {
-    protected HashMap<String, Integer> scores;  // scores per player
+    protected ScoreStore scores;                // scores per player
     protected String gameId;                    // identifier of game
+    protected Leaderboard ranking;              // players ordered by score
+    protected CopyOnWriteArrayList<GameListener> listeners; // told about joins and awards
+    protected LongAdder scoreChanges = new LongAdder(); // bumped after every join/award, for caches
 
     /**
      * Create a new game
      * @param id Identifier of the new game
      */
     public Game(String id) {
-        scores = new HashMap<String, Integer>();
+        this(id, new InMemoryScoreStore());
+    }
+
+    /**
+     * Create a new game keeping its scores in the given store
+     * @param id Identifier of the new game
+     * @param store Where scores (and answers) are kept; may already hold players
+     */
+    public Game(String id, ScoreStore store) {
+        scores = store;
+        listeners = new CopyOnWriteArrayList<GameListener>();
         gameId = id;
+        if (store instanceof NumberedPlayers) {
+            ranking = new Leaderboard((NumberedPlayers) store); // ranks the players already there itself
+        } else {
+            ranking = new Leaderboard(store::getScore);
+            for (String player : store.players()) // a persistent store may come with players
+                ranking.touch(player);
+        }
+    }
+
+    /**
+     * Register a listener for joins and score changes
+     * @param l The listener
+     */
+    public void addListener(GameListener l) {
+        listeners.add(l);
     }
 
     /**
@@ -42,7 +88,7 @@ public class Game {
      * @return Set of player names
      */
     public Set<String> getPlayers() {
-        return scores.keySet();
+        return scores.players();
     }
 
     /**
@@ -50,26 +96,277 @@ public class Game {
      * @param player Name of player
      */
     public void addPlayer(String player) {
-        if (scores.containsKey(player)) 
-        return;
+        if (!restorePlayer(player))
+            return; // won't reset an existing score
 
-        scores.put(player, 0);
+        for (GameListener l : listeners)
+            l.playerJoined(this, player);
         return;
     }
 
+    /**
+     * Add a player without telling listeners (used when replaying saved state)
+     * @param player Name of player
+     * @return false if the player was already in the game
+     */
+    protected boolean restorePlayer(String player) {
+        if (!scores.addPlayer(player))
+            return false;
+
+        ranking.touch(player);
+        scoreChanges.increment();
+        return true;
+    }
+
+    /**
+     * Award points to a player, keeping the ranking in step
+     * @param player Name of player
+     * @param points Points to add (never negative)
+     * @return the player's new score
+     */
+    protected int addPoints(String player, int points) {
+        int score = scores.addPoints(player, points); // atomic per player
+        ranking.touch(player); // placed at its score by the next ranking read
+        scoreChanges.increment();
+        return score;
+    }
+
+    /**
+     * Changes whenever a player joins or scores (never goes down)
+     * @return the current score version
+     */
+    public long getScoreVersion() {
+        return scoreChanges.sum();
+    }
+
     /**
      * Get a score table
      * @return A HashMap with player names as key and score as value
      */
     public HashMap<String, Integer> getScores() {
-        HashMap<String, Integer> out = new HashMap<String, Integer>();
-        out.putAll(scores);
-        return out;
+        return scores.toMap();
+    }
+
+    /**
+     * Get the highest scores, best first (ties ordered by name)
+     * @param n Maximum number of entries
+     * @return List of player name and score pairs
+     */
+    public List<Map.Entry<String, Integer>> getTopScores(int n) {
+        return ranking.page(1, n);
+    }
+
+    /**
+     * Get the rank of a player
+     * @param player Name of player
+     * @return 1 for the leader, 0 if the player isn't in this game
+     */
+    public int getRank(String player) {
+        return ranking.rank(player);
+    }
+
+    /**
+     * Get a page of the scoreboard
+     * @param fromRank Rank of the first entry (1 is the leader)
+     * @param count Maximum number of entries
+     * @return List of player name and score pairs in rank order
+     */
+    public List<Map.Entry<String, Integer>> getScoresByRank(int fromRank, int count) {
+        return ranking.page(fromRank, count);
+    }
+}
+
+/**
+ * Where a game keeps its scores and who answered which question. All
+ * methods may be called concurrently.
+ */
+interface ScoreStore {
+    /**
+     * Add a player with a score of 0
+     * @param player Name of player
+     * @return false if the player was already there
+     */
+    boolean addPlayer(String player);
+
+    /**
+     * @param player Name of player
+     * @return whether the player is in the game
+     */
+    boolean hasPlayer(String player);
+
+    /**
+     * Atomically add points to a player's score
+     * @param player Name of player (added if missing)
+     * @param points Points to add
+     * @return the new score
+     */
+    int addPoints(String player, int points);
+
+    /**
+     * @param player Name of player
+     * @return the player's score (0 if unknown)
+     */
+    int getScore(String player);
+
+    /**
+     * @return live view of the players
+     */
+    Set<String> players();
+
+    /**
+     * @return a copy of the score table
+     */
+    HashMap<String, Integer> toMap();
+
+    /**
+     * The set of players who answered a question. Its add() must be atomic:
+     * only one of several concurrent adds of the same player returns true.
+     * @param questionId Id of the question
+     * @return the set
+     */
+    Set<String> answeredSet(String questionId);
+}
+
+/**
+ * A score store that numbers its players 0, 1, 2, ... in the order they
+ * joined and gives out names and scores by number, so a Leaderboard can
+ * rank them without objects of its own per player. Safe to call
+ * concurrently with the store being updated.
+ */
+interface NumberedPlayers {
+    /**
+     * @return players numbered so far
+     */
+    int count();
+
+    /**
+     * @param player Name of player
+     * @return the player's number, -1 if not in the game
+     */
+    int idOf(String player);
+
+    /**
+     * @param id Number of a player
+     * @return the player's name
+     */
+    String nameOf(int id);
+
+    /**
+     * @param id Number of a player
+     * @return the player's current score
+     */
+    int scoreOf(int id);
+
+    /**
+     * Compare two players' names as String.compareTo would
+     * @param a Number of a player
+     * @param b Number of another player
+     * @return negative, 0 or positive
+     */
+    int compareNames(int a, int b);
+}
+
+/**
+ * Default store: everything on the heap in concurrent hash maps.
+ */
+class InMemoryScoreStore implements ScoreStore {
+    private ConcurrentHashMap<String, Integer> scores = new ConcurrentHashMap<String, Integer>();
+    private ConcurrentHashMap<String, Set<String>> answered = new ConcurrentHashMap<String, Set<String>>(); // question id -> players, once someone answered
+
+    public boolean addPlayer(String player) {
+        return scores.putIfAbsent(player, 0) == null;
+    }
+
+    public boolean hasPlayer(String player) {
+        return scores.containsKey(player);
+    }
+
+    public int addPoints(String player, int points) {
+        return scores.merge(player, points, Integer::sum);
+    }
+
+    public int getScore(String player) {
+        return scores.getOrDefault(player, 0);
+    }
+
+    public Set<String> players() {
+        return scores.keySet();
+    }
+
+    public HashMap<String, Integer> toMap() {
+        return new HashMap<String, Integer>(scores);
+    }
+
+    public Set<String> answeredSet(String questionId) {
+        return new AnsweredSet(questionId);
+    }
+
+    /**
+     * One question's entry in the answered map viewed as a Set; a question
+     * nobody answered yet costs this view and nothing else
+     */
+    private class AnsweredSet extends AbstractSet<String> {
+        private String question;
+
+        AnsweredSet(String question) {
+            this.question = question;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            Set<String> s = answered.get(question);
+            return s != null && s.contains(o);
+        }
+
+        @Override
+        public boolean add(String player) {
+            Set<String> s = answered.get(question);
+            if (s == null)
+                s = answered.computeIfAbsent(question, k -> ConcurrentHashMap.newKeySet());
+            return s.add(player);
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            Set<String> s = answered.get(question);
+            return s == null ? Collections.emptyIterator() : s.iterator();
+        }
+
+        @Override
+        public int size() {
+            Set<String> s = answered.get(question);
+            return s == null ? 0 : s.size();
+        }
     }
 }
 
+/**
+ * Receives game events. Called on the thread that caused the event, so
+ * implementations must be quick and must not block.
+ */
+interface GameListener {
+    /**
+     * A player joined the game for the first time
+     * @param g The game
+     * @param player Name of the player
+     */
+    void playerJoined(Game g, String player);
+
+    /**
+     * A player answered a question correctly
+     * @param g The game
+     * @param q The question
+     * @param player Name of the player
+     * @param score The player's new score
+     */
+    void questionAnswered(ChallengeResponseGame g, Question q, String player, int score);
+}
+
 class ChallengeResponseGame extends Game {
-    private ArrayList<Question> questions;
+    private CopyOnWriteArrayList<Question> questions; // in order of addition, for display
+    private ConcurrentHashMap<String, Question> questionIndex; // question id -> question
+    private AtomicInteger questionsVersion = new AtomicInteger(); // bumped after every added question
+    private volatile boolean bankText; // some question text is read from a QuestionBank when shown
 
     /**
      * Retrieve the list of available questions
@@ -81,6 +378,23 @@ class ChallengeResponseGame extends Game {
         return out;
     }
 
+    /**
+     * Read-only view of the questions, without copying
+     * @return the questions in the order they were added
+     */
+    public List<Question> getQuestionList() {
+        return Collections.unmodifiableList(questions);
+    }
+
+    /**
+     * Find a question by identifier
+     * @param id Id of the question
+     * @return the Question, or null if there is none
+     */
+    public Question getQuestion(String id) {
+        return questionIndex.get(id);
+    }
+
     /**
      * Answers a question
      * 
@@ -90,39 +404,99 @@ class ChallengeResponseGame extends Game {
      * @return Number of points awarded.
      */
     public int answer(String player, String question, String answer) {
-        if (!scores.containsKey(player)) return 0;
+        if (!scores.hasPlayer(player)) return 0;
         // find corresponding question
-        for (Question q : questions){
-            if (q.equals(question)) {
-                if (q.answer(player, answer)) {
-                    if (scores.containsKey(player)) {
-                        scores.replace(player, scores.get(player) + q.getPoints());
-                    } else {
-                        scores.put(player, q.getPoints());
-                    }
-                    return q.getPoints();
-                } else {
-                    return 0;
-                }
-            }
+        Question q = questionIndex.get(question);
+        if (q == null) return 0;
+        if (q.answer(player, answer)) { // true at most once per player
+            int score = addPoints(player, q.getPoints());
+            for (GameListener l : listeners)
+                l.questionAnswered(this, q, player, score);
+            return q.getPoints();
         }
         return 0;
     }
 
     /**
-     * Add a question to the game
+     * Credit a player with a correct answer without checking it or telling
+     * listeners (used when replaying saved state). Replaying the same answer
+     * twice has no effect.
+     * @param player Name of the player
+     * @param question Id of the question
+     */
+    protected void restoreAnswer(String player, String question) {
+        Question q = questionIndex.get(question);
+        if (q == null) return; // question no longer in the bank
+        restorePlayer(player);
+        if (q.markAnswered(player))
+            addPoints(player, q.getPoints());
+    }
+
+    /**
+     * Add a question to the game (ignored if the id is already used)
      */
     public void addQuestion(Question q) {
-        questions.add(q);
+        if (questionIndex.putIfAbsent(q.getId(), q) == null) {
+            q.useAnsweredSet(scores.answeredSet(q.getId())); // who answered is kept with the scores
+            if (q instanceof BankQuestion)
+                bankText = true;
+            questions.add(q);
+            questionsVersion.incrementAndGet();
+        }
+    }
+
+    /**
+     * Add many questions at once (ids already used are ignored). The question
+     * list is copied once, not once per question as with addQuestion.
+     * @param qs The questions
+     */
+    public void addQuestions(Collection<Question> qs) {
+        ArrayList<Question> added = new ArrayList<Question>(qs.size());
+        for (Question q : qs) {
+            if (questionIndex.putIfAbsent(q.getId(), q) == null) {
+                q.useAnsweredSet(scores.answeredSet(q.getId()));
+                if (q instanceof BankQuestion)
+                    bankText = true;
+                added.add(q);
+            }
+        }
+        questions.addAll(added);
+        questionsVersion.incrementAndGet();
+    }
+
+    /**
+     * @return whether question text is read from a QuestionBank when shown
+     * (and so shouldn't be kept in rendered lists)
+     */
+    public boolean hasBankText() {
+        return bankText;
+    }
+
+    /**
+     * Changes whenever a question is added
+     * @return the current question list version
+     */
+    public int getQuestionsVersion() {
+        return questionsVersion.get();
     }
 
     /**
      * Constructor 
      */
     public ChallengeResponseGame(String id) {
-        super(id);
+        this(id, new InMemoryScoreStore());
+    }
 
-        questions = new ArrayList<Question>();
+    /**
+     * Constructor
+     * @param id Identifier of the game
+     * @param store Where scores and answers are kept
+     */
+    public ChallengeResponseGame(String id, ScoreStore store) {
+        super(id, store);
+
+        questions = new CopyOnWriteArrayList<Question>();
+        questionIndex = new ConcurrentHashMap<String, Question>();
     }
 }
 
@@ -134,9 +508,9 @@ class ChallengeResponseGame extends Game {
 class Question {
     private String id;
     private String question;
-    private String answer;
+    private String[] answers; // trimmed accepted answers
     private int points;
-    private ArrayList<String> answeredBy;
+    private Set<String> answeredBy; // concurrent, so each player is credited once; set when added to a game
 
     /**
      * Create a new question
@@ -144,14 +518,20 @@ class Question {
      * @param question text of question
      * @param answer correct answer
      * @param points points awarded if answered correctly
+     * @param alternatives other accepted answers (optional)
      */
-    public Question(String id, String question, String answer, int points) {
+    public Question(String id, String question, String answer, int points, String... alternatives) {
         this.id = id;
-        answeredBy = new ArrayList<String>();
+        answeredBy = Collections.emptySet();
 
         this.question = question;
-        this.answer = answer;
         this.points = points;
+
+        // normalize once here so checking a guess never allocates
+        answers = new String[alternatives.length + 1];
+        answers[0] = answer.trim();
+        for (int i = 0; i < alternatives.length; i++)
+            answers[i + 1] = alternatives[i].trim();
     }
 
     /**
@@ -168,8 +548,19 @@ class Question {
      * @return
      */
 
-    private boolean isAnswer(String answer) {
-        return (this.answer.toUpperCase().trim()).equals(answer.toUpperCase().trim());
+    protected boolean isAnswer(String answer) {
+        // bounds of the trimmed guess, same rule as String.trim()
+        int start = 0;
+        int end = answer.length();
+        while (start < end && answer.charAt(start) <= ' ')
+            start++;
+        while (end > start && answer.charAt(end - 1) <= ' ')
+            end--;
+        int len = end - start;
+        for (String a : answers)
+            if (a.length() == len && a.regionMatches(true, 0, answer, start, len)) // case insensitive, no copies
+                return true;
+        return false;
     }
 
     public int getPoints() {
@@ -184,14 +575,436 @@ class Question {
         return answeredBy.contains(player);
     }
 
+    /**
+     * Keep the players who answered in the given set (done by the game the
+     * question is added to, so answers live in the game's score store)
+     * @param set Concurrent set to use
+     */
+    protected void useAnsweredSet(Set<String> set) {
+        answeredBy = set;
+    }
+
+    /**
+     * Record that a player answered, without checking the answer
+     * @param player Name of the player
+     * @return false if already recorded
+     */
+    protected boolean markAnswered(String player) {
+        return answeredBy.add(player);
+    }
+
+    /**
+     * Read-only view of the players who answered correctly
+     * @return Set of player names
+     */
+    public Set<String> getAnsweredBy() {
+        return Collections.unmodifiableSet(answeredBy);
+    }
+
     public boolean answer(String player, String answer) {
         if (isAnsweredBy(player)) return false;
         if (!isAnswer(answer)) return false;
-        answeredBy.add(player);
-        return true;
+        return answeredBy.add(player); // only the first of concurrent correct answers wins
     }
 
     public String getId() {
         return id;
     }
 }
+
+/**
+ * Players of a game ordered by score (highest first, ties by name), kept in
+ * a treap whose nodes know their subtree size. Updates, rank lookups and the
+ * start of a page are O(log n); reading k entries after that is O(k).
+ *
+ * A node is a player's number (see NumberedPlayers) and its fields are int
+ * arrays indexed by it, so a ranked player costs 20 bytes and no objects.
+ * A store that numbers its players itself is used as is, and players it
+ * already holds are ranked by one sort on the first read rather than one
+ * insert each; for other stores the leaderboard numbers players itself.
+ *
+ * Writers don't touch the treap: touch() only marks the player, and the
+ * next read moves every marked player to its current score in one batch
+ * under the write lock, however many times they scored in between.
+ */
+class Leaderboard {
+    private static final int NONE = -1;
+
+    private NumberedPlayers players;   // names and scores by number
+    private HeapPlayers own;           // the numbering kept here, if the store has none
+    private int root = NONE;
+    private int[] left = new int[16];
+    private int[] right = new int[16];
+    private int[] size = new int[16];  // 0 for a player not ranked yet
+    private int[] priority = new int[16];
+    private int[] score = new int[16]; // score the player is ranked at
+    private volatile int unranked;     // players numbered before the first read, not ranked yet
+    private Random random = new Random();
+    private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private Set<String> dirty = ConcurrentHashMap.newKeySet(); // joined or scored since the last read
+
+    /**
+     * Create an empty leaderboard that numbers players itself
+     * @param scores Gives a player's current score (which never goes down)
+     */
+    public Leaderboard(ToIntFunction<String> scores) {
+        own = new HeapPlayers(scores);
+        players = own;
+    }
+
+    /**
+     * Create a leaderboard over a store's own numbering, ranking the players
+     * it already holds when first read
+     * @param players The store
+     */
+    public Leaderboard(NumberedPlayers players) {
+        this.players = players;
+        unranked = players.count();
+    }
+
+    /**
+     * Note that a player joined or scored. Takes no lock; the player is
+     * placed at their score by the next read.
+     * @param player Name of player
+     */
+    public void touch(String player) {
+        dirty.add(player);
+    }
+
+    // place every marked player at their current score
+    private void catchUp() {
+        if (dirty.isEmpty() && unranked == 0)
+            return;
+        lock.writeLock().lock();
+        try {
+            if (unranked > 0) {
+                this.build(unranked);
+                unranked = 0;
+            }
+            Iterator<String> it = dirty.iterator();
+            while (it.hasNext()) {
+                String player = it.next();
+                it.remove(); // before reading the score: a later award marks the player again
+                int p = own != null ? own.add(player) : players.idOf(player);
+                if (p >= 0)
+                    this.raise(p, players.scoreOf(p));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // insert a player or move their node up to a higher score (lock held)
+    private void raise(int p, int s) {
+        if (p >= size.length)
+            this.grow(p + 1);
+        if (size[p] != 0) {
+            if (score[p] >= s)
+                return;
+            int before = this.predecessor(p);
+            if (before == NONE || this.compare(s, p, before) > 0) {
+                score[p] = s; // still ranked after the same player: updated in place
+                return;
+            }
+            root = this.remove(root, score[p], p); // unlinks p; its fields are reset below
+        } else {
+            priority[p] = random.nextInt();
+        }
+        score[p] = s;
+        left[p] = right[p] = NONE;
+        size[p] = 1;
+        root = this.insert(root, p);
+    }
+
+    private void grow(int needed) {
+        int n = Math.max(needed, 2 * size.length);
+        left = Arrays.copyOf(left, n);
+        right = Arrays.copyOf(right, n);
+        size = Arrays.copyOf(size, n);
+        priority = Arrays.copyOf(priority, n);
+        score = Arrays.copyOf(score, n);
+    }
+
+    // rank players 0..n-1 from scratch: sort them, then build the treap over
+    // the sorted order in one pass (lock held, nothing ranked yet)
+    private void build(int n) {
+        if (n > size.length)
+            this.grow(n);
+        int[] order = new int[n];
+        for (int p = 0; p < n; p++) {
+            order[p] = p;
+            score[p] = players.scoreOf(p);
+            priority[p] = random.nextInt();
+            left[p] = right[p] = NONE;
+        }
+        this.sort(order);
+        int[] spine = new int[n]; // right spine of the tree built so far, root first
+        int top = 0;
+        for (int p : order) {
+            int last = NONE;
+            while (top > 0 && priority[spine[top - 1]] < priority[p])
+                last = spine[--top];
+            left[p] = last;
+            if (top > 0)
+                right[spine[top - 1]] = p;
+            spine[top++] = p;
+        }
+        root = n == 0 ? NONE : spine[0];
+        this.fixSizes(root);
+    }
+
+    // bottom-up merge sort into rank order
+    private void sort(int[] order) {
+        int[] a = order;
+        int[] b = new int[a.length];
+        for (int width = 1; width < a.length; width *= 2) {
+            for (int lo = 0; lo < a.length; lo += 2 * width) {
+                int mid = Math.min(lo + width, a.length);
+                int hi = Math.min(lo + 2 * width, a.length);
+                int i = lo, j = mid;
+                for (int k = lo; k < hi; k++)
+                    b[k] = j >= hi || i < mid && this.compare(score[a[i]], a[i], a[j]) < 0 ? a[i++] : a[j++];
+            }
+            int[] t = a;
+            a = b;
+            b = t;
+        }
+        if (a != order)
+            System.arraycopy(a, 0, order, 0, a.length);
+    }
+
+    private int fixSizes(int n) {
+        if (n == NONE)
+            return 0;
+        size[n] = 1 + this.fixSizes(left[n]) + this.fixSizes(right[n]);
+        return size[n];
+    }
+
+    /**
+     * Get the rank of a player
+     * @param player Name of player
+     * @return 1-based rank, 0 if unknown
+     */
+    public int rank(String player) {
+        this.catchUp();
+        lock.readLock().lock();
+        try {
+            int target = players.idOf(player);
+            if (target < 0 || target >= size.length || size[target] == 0)
+                return 0;
+            int rank = 0;
+            int n = root;
+            while (n != NONE) {
+                int c = this.compare(score[target], target, n);
+                if (c < 0) {
+                    n = left[n];
+                } else {
+                    rank += this.size(left[n]) + 1;
+                    if (c == 0)
+                        return rank;
+                    n = right[n];
+                }
+            }
+            return 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get entries by rank
+     * @param fromRank 1-based rank of the first entry
+     * @param count Maximum number of entries
+     * @return the entries in rank order
+     */
+    public List<Map.Entry<String, Integer>> page(int fromRank, int count) {
+        this.catchUp();
+        lock.readLock().lock();
+        try {
+            ArrayList<Map.Entry<String, Integer>> out = new ArrayList<Map.Entry<String, Integer>>(Math.min(Math.max(count, 0), this.size(root)));
+            if (count > 0)
+                this.collect(root, Math.max(fromRank, 1) - 1, count, out);
+            return out;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of ranked players
+     */
+    public int size() {
+        this.catchUp();
+        lock.readLock().lock();
+        try {
+            return this.size(root);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // the node ranked just before p, or NONE for the leader
+    private int predecessor(int p) {
+        if (left[p] != NONE) {
+            int n = left[p];
+            while (right[n] != NONE)
+                n = right[n];
+            return n;
+        }
+        int before = NONE;
+        for (int t = root; t != p; ) {
+            if (this.compare(score[p], p, t) < 0) {
+                t = left[t];
+            } else {
+                before = t;
+                t = right[t];
+            }
+        }
+        return before;
+    }
+
+    // in-order walk that skips whole subtrees until the requested rank
+    private void collect(int n, int skip, int count, List<Map.Entry<String, Integer>> out) {
+        if (n == NONE || out.size() >= count)
+            return;
+        int ls = this.size(left[n]);
+        if (skip < ls)
+            this.collect(left[n], skip, count, out);
+        if (out.size() >= count)
+            return;
+        if (skip <= ls)
+            out.add(new AbstractMap.SimpleImmutableEntry<String, Integer>(players.nameOf(n), score[n]));
+        this.collect(right[n], Math.max(0, skip - ls - 1), count, out);
+    }
+
+    // order of player p at score s against node n: higher score first, then name
+    private int compare(int s, int p, int n) {
+        if (s != score[n])
+            return s > score[n] ? -1 : 1;
+        return p == n ? 0 : players.compareNames(p, n);
+    }
+
+    private int size(int n) {
+        return n == NONE ? 0 : size[n];
+    }
+
+    private void update(int n) {
+        size[n] = 1 + this.size(left[n]) + this.size(right[n]);
+    }
+
+    private int insert(int t, int n) {
+        if (t == NONE)
+            return n;
+        if (priority[n] > priority[t]) {
+            int[] parts = new int[2];
+            this.split(t, score[n], n, parts);
+            left[n] = parts[0];
+            right[n] = parts[1];
+            this.update(n);
+            return n;
+        }
+        if (this.compare(score[n], n, t) < 0)
+            left[t] = this.insert(left[t], n);
+        else
+            right[t] = this.insert(right[t], n);
+        this.update(t);
+        return t;
+    }
+
+    private int remove(int t, int s, int p) {
+        if (t == NONE)
+            return NONE;
+        int c = this.compare(s, p, t);
+        if (c == 0)
+            return this.merge(left[t], right[t]);
+        if (c < 0)
+            left[t] = this.remove(left[t], s, p);
+        else
+            right[t] = this.remove(right[t], s, p);
+        this.update(t);
+        return t;
+    }
+
+    // split t into nodes ordered before player p at score s (parts[0]) and the rest (parts[1])
+    private void split(int t, int s, int p, int[] parts) {
+        if (t == NONE) {
+            parts[0] = parts[1] = NONE;
+            return;
+        }
+        if (this.compare(s, p, t) > 0) {
+            this.split(right[t], s, p, parts);
+            right[t] = parts[0];
+            this.update(t);
+            parts[0] = t;
+        } else {
+            this.split(left[t], s, p, parts);
+            left[t] = parts[1];
+            this.update(t);
+            parts[1] = t;
+        }
+    }
+
+    private int merge(int a, int b) {
+        if (a == NONE)
+            return b;
+        if (b == NONE)
+            return a;
+        if (priority[a] > priority[b]) {
+            right[a] = this.merge(right[a], b);
+            this.update(a);
+            return a;
+        }
+        left[b] = this.merge(a, left[b]);
+        this.update(b);
+        return b;
+    }
+
+    /**
+     * Numbering for stores that don't have one: a name map and list, only
+     * changed under the leaderboard's write lock
+     */
+    private static class HeapPlayers implements NumberedPlayers {
+        private ToIntFunction<String> scores;
+        private HashMap<String, Integer> ids = new HashMap<String, Integer>();
+        private String[] names = new String[16];
+        private int count;
+
+        HeapPlayers(ToIntFunction<String> scores) {
+            this.scores = scores;
+        }
+
+        // number of a player, numbering them if new
+        int add(String player) {
+            Integer id = ids.get(player);
+            if (id == null) {
+                id = count++;
+                if (id == names.length)
+                    names = Arrays.copyOf(names, 2 * id);
+                names[id] = player;
+                ids.put(player, id);
+            }
+            return id;
+        }
+
+        public int count() {
+            return count;
+        }
+
+        public int idOf(String player) {
+            Integer id = ids.get(player);
+            return id == null ? -1 : id;
+        }
+
+        public String nameOf(int id) {
+            return names[id];
+        }
+
+        public int scoreOf(int id) {
+            return scores.applyAsInt(names[id]);
+        }
+
+        public int compareNames(int a, int b) {
+            return names[a].compareTo(names[b]);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.TreeMap;
+/**
+ * Consistent hashing of game IDs onto shards. Every shard is placed on the
+ * ring at many points, and a game belongs to the first shard point at or
+ * after the game's own hash. Adding or removing a shard only moves the
+ * games next to its points; the router and every shard build the ring from
+ * the same shard list, so they agree on owners without talking.
+ */
+class HashRing {
+    static final int POINTS_PER_SHARD = 128; // spreads games evenly over few shards
+
+    private TreeMap<Long, String> ring = new TreeMap<Long, String>();
+
+    /**
+     * Constructor
+     * @param shards Shard addresses (host:port), the same list everywhere
+     */
+    public HashRing(List<String> shards) {
+        for (String shard : shards)
+            for (int i = 0; i < POINTS_PER_SHARD; i++)
+                ring.put(hash(shard + "#" + i), shard);
+    }
+
+    /**
+     * @param gameID The game
+     * @return address of the shard owning the game
+     */
+    public String owner(String gameID) {
+        Long point = ring.ceilingKey(hash(gameID));
+        return ring.get(point != null ? point : ring.firstKey()); // wrap around
+    }
+
+    // first 8 bytes of MD5: evenly spread and the same on every JVM, unlike String.hashCode
+    private static long hash(String key) {
+        byte[] d;
+        try {
+            d = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        long h = 0;
+        for (int i = 0; i < 8; i++)
+            h = (h << 8) | (d[i] & 0xFF);
+        return h;
+    }
+}
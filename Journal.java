@@ -0,0 +1,432 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+/**
+ * Append-only write-ahead log of account registrations, game joins and
+ * correct answers, with periodic snapshots.
+ *
+ * Events are encoded on the calling thread and queued; a single writer
+ * thread appends whatever has queued up in one write followed by one fsync
+ * (group commit), so no /ANSWER waits for the disk. Every record is
+ * length-prefixed and CRC checked, and a torn record at the end of a
+ * segment simply ends replay of that segment.
+ *
+ * A snapshot is a compacted stream of the same records describing the
+ * whole state. The writer first rolls to a new segment, then the snapshot
+ * is written, then the older segments are deleted. Replay is idempotent
+ * (an answer is only credited once), so events that land both in the
+ * snapshot and in the newer segment are harmless. Scores are not stored:
+ * they follow from the answered questions.
+ */
+class Journal implements GameListener {
+    private static final byte META = 0;     // first segment still needed after a snapshot
+    private static final byte ACCOUNT = 1;  // nick, salt, hash
+    private static final byte JOIN = 2;     // game, player
+    private static final byte ANSWER = 3;   // game, question, player
+    private static final int MAX_BATCH = 4096;
+    private static final int QUEUE_SIZE = 1 << 20; // when full, callers wait for the disk
+
+    private File dir;
+    private long segment;                   // sequence number of the segment being written
+    private FileChannel out;
+    private LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<Object>(QUEUE_SIZE); // byte[] records or Roll requests
+    private ScoreboardServer server;
+    private Thread writer;
+    private volatile boolean running;
+
+    // metrics
+    private LongAdder records = new LongAdder();
+    private LongAdder batches = new LongAdder();
+    private LongAdder fsyncNanos = new LongAdder();
+
+    /** request from the snapshot thread to start a new segment **/
+    private static class Roll {
+        CompletableFuture<Long> done = new CompletableFuture<Long>(); // completes with the new segment number
+    }
+
+    /**
+     * Constructor
+     * @param dir Directory holding snapshot.dat and journal-N.log
+     * @param server Server whose accounts are saved
+     */
+    public Journal(File dir, ScoreboardServer server) {
+        this.dir = dir;
+        this.server = server;
+    }
+
+    /**
+     * Rebuild accounts, players and answers from disk. Must run before
+     * start() and before clients connect.
+     * @return number of records replayed
+     */
+    public long recover() throws IOException {
+        Files.createDirectories(dir.toPath());
+        long first = 0;
+        long replayed = 0;
+        File snapshot = new File(dir, "snapshot.dat");
+        if (snapshot.exists()) {
+            long[] meta = new long[1];
+            replayed += this.replay(snapshot, meta);
+            first = meta[0];
+        }
+        long last = first - 1;
+        for (long seq : this.segments()) {
+            if (seq >= first)
+                replayed += this.replay(this.segmentFile(seq), null);
+            last = Math.max(last, seq);
+        }
+        segment = last + 1; // never append to a segment that may end in a torn record
+        return replayed;
+    }
+
+    /**
+     * Start the writer thread and the periodic snapshots
+     * @param snapshotSeconds seconds between snapshots
+     */
+    public void start(int snapshotSeconds) throws IOException {
+        out = this.open(segment);
+        running = true;
+        writer = new Thread(this::writeLoop, "scoreboard-journal");
+        writer.setDaemon(true);
+        writer.start();
+
+        Thread snapshots = new Thread(() -> {
+            long saved = 0; // records covered by the last snapshot
+            while (running) {
+                try {
+                    Thread.sleep(snapshotSeconds * 1000L);
+                    long now = records.sum();
+                    if (now == saved)
+                        continue; // nothing new
+                    this.snapshot();
+                    saved = now;
+                } catch(InterruptedException e) {
+                    return;
+                } catch(IOException e) {
+                    System.err.println(e);
+                }
+            }
+        }, "scoreboard-snapshot");
+        snapshots.setDaemon(true);
+        snapshots.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    /**
+     * Log a newly registered account
+     * @param acc The account
+     */
+    public void accountRegistered(Account acc) {
+        this.enqueue(this.encode(ACCOUNT, acc.getNick(), null, null, acc.getSalt(), acc.getPasswordHash()));
+    }
+
+    @Override
+    public void playerJoined(Game g, String player) {
+        this.enqueue(this.encode(JOIN, g.getId(), player, null, null, null));
+    }
+
+    @Override
+    public void questionAnswered(ChallengeResponseGame g, Question q, String player, int score) {
+        this.enqueue(this.encode(ANSWER, g.getId(), q.getId(), player, null, null));
+    }
+
+    private void enqueue(Object record) {
+        try {
+            queue.put(record);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writer thread: append everything queued, then fsync once
+     */
+    private void writeLoop() {
+        ArrayList<Object> batch = new ArrayList<Object>();
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        while (running || !queue.isEmpty()) {
+            try {
+                Object first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+
+                for (Object o : batch) {
+                    if (o instanceof Roll) { // write what came before, then switch segments
+                        this.append(buf);
+                        out.close();
+                        out = this.open(++segment);
+                        ((Roll) o).done.complete(segment);
+                        continue;
+                    }
+                    buf.write((byte[]) o);
+                    records.increment();
+                }
+                this.append(buf);
+                batch.clear();
+            } catch(InterruptedException e) {
+                return;
+            } catch(IOException e) {
+                System.err.println(e);
+                for (Object o : batch)
+                    if (o instanceof Roll)
+                        ((Roll) o).done.completeExceptionally(e);
+                batch.clear();
+                buf.reset();
+            }
+        }
+    }
+
+    // write and fsync the buffered records
+    private void append(ByteArrayOutputStream buf) throws IOException {
+        if (buf.size() == 0)
+            return;
+        ByteBuffer b = ByteBuffer.wrap(buf.toByteArray());
+        while (b.hasRemaining())
+            out.write(b);
+        long start = System.nanoTime();
+        out.force(false);
+        fsyncNanos.add(System.nanoTime() - start);
+        batches.increment();
+        buf.reset();
+    }
+
+    /**
+     * Write a compact snapshot of the current state and drop the segments it covers
+     */
+    public void snapshot() throws IOException {
+        Roll roll = new Roll();
+        this.enqueue(roll);
+        long first;
+        try {
+            first = roll.done.join(); // everything before this segment is in memory already
+        } catch(CompletionException e) {
+            throw new IOException("could not start a new journal segment", e);
+        }
+
+        File tmp = new File(dir, "snapshot.tmp");
+        try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            ByteArrayOutputStream meta = new ByteArrayOutputStream();
+            new DataOutputStream(meta).writeLong(first);
+            buf.write(this.frame(META, meta.toByteArray()));
+            for (Account acc : server.getAccounts())
+                buf.write(this.encode(ACCOUNT, acc.getNick(), null, null, acc.getSalt(), acc.getPasswordHash()));
+            for (Game g : server.getGames()) {
+                for (String player : g.getPlayers())
+                    buf.write(this.encode(JOIN, g.getId(), player, null, null, null));
+                if (!(g instanceof ChallengeResponseGame))
+                    continue;
+                for (Question q : ((ChallengeResponseGame) g).getQuestionList())
+                    for (String player : q.getAnsweredBy())
+                        buf.write(this.encode(ANSWER, g.getId(), q.getId(), player, null, null));
+                if (buf.size() > 1 << 20) { // keep the buffer small for big games
+                    ch.write(ByteBuffer.wrap(buf.toByteArray()));
+                    buf.reset();
+                }
+            }
+            ch.write(ByteBuffer.wrap(buf.toByteArray()));
+            ch.force(true);
+        }
+        Files.move(tmp.toPath(), new File(dir, "snapshot.dat").toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        for (long seq : this.segments())
+            if (seq < first)
+                Files.deleteIfExists(this.segmentFile(seq).toPath());
+    }
+
+    /**
+     * Stop the writer after it has written everything queued
+     */
+    public void close() {
+        running = false;
+        try {
+            if (writer != null)
+                writer.join(5000);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Replay one file
+     * @param f The file
+     * @param meta receives the META value, if the file has one
+     * @return number of records applied
+     */
+    private long replay(File f, long[] meta) throws IOException {
+        long n = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            CRC32 crc = new CRC32();
+            while (true) {
+                byte[] payload;
+                try {
+                    int len = in.readInt();
+                    long sum = in.readInt() & 0xFFFFFFFFL;
+                    if (len < 1 || len > 1 << 20)
+                        break; // garbage
+                    payload = new byte[len];
+                    in.readFully(payload);
+                    crc.reset();
+                    crc.update(payload);
+                    if (crc.getValue() != sum)
+                        break; // torn write
+                } catch(EOFException e) {
+                    break;
+                }
+                this.apply(payload, meta);
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private void apply(byte[] payload, long[] meta) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        switch (type) {
+            case META:
+                if (meta != null)
+                    meta[0] = in.readLong();
+                break;
+            case ACCOUNT: {
+                String nick = in.readUTF();
+                byte[] salt = new byte[in.readUnsignedShort()];
+                in.readFully(salt);
+                byte[] hash = new byte[in.readUnsignedShort()];
+                in.readFully(hash);
+                server.restoreAccount(new Account(nick, hash, salt));
+                break;
+            }
+            case JOIN: {
+                Game g = server.getGame(in.readUTF());
+                String player = in.readUTF();
+                if (g != null)
+                    g.restorePlayer(player);
+                break;
+            }
+            case ANSWER: {
+                Game g = server.getGame(in.readUTF());
+                String question = in.readUTF();
+                String player = in.readUTF();
+                if (g instanceof ChallengeResponseGame)
+                    ((ChallengeResponseGame) g).restoreAnswer(player, question);
+                break;
+            }
+            default:
+                break; // unknown record from a newer version
+        }
+    }
+
+    /**
+     * Encode an event as a framed record
+     */
+    private byte[] encode(byte type, String a, String b, String c, byte[] salt, byte[] hash) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream data = new DataOutputStream(bytes);
+            data.writeUTF(a);
+            if (b != null)
+                data.writeUTF(b);
+            if (c != null)
+                data.writeUTF(c);
+            if (salt != null) {
+                data.writeShort(salt.length);
+                data.write(salt);
+                data.writeShort(hash.length);
+                data.write(hash);
+            }
+            return this.frame(type, bytes.toByteArray());
+        } catch(IOException e) { // can't happen writing to memory
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // [length][crc32][type + body]
+    private byte[] frame(byte type, byte[] body) {
+        byte[] payload = new byte[body.length + 1];
+        payload[0] = type;
+        System.arraycopy(body, 0, payload, 1, body.length);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer b = ByteBuffer.allocate(8 + payload.length);
+        b.putInt(payload.length);
+        b.putInt((int) crc.getValue());
+        b.put(payload);
+        return b.array();
+    }
+
+    private FileChannel open(long seq) throws IOException {
+        return FileChannel.open(this.segmentFile(seq).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private File segmentFile(long seq) {
+        return new File(dir, "journal-" + seq + ".log");
+    }
+
+    // sequence numbers of the segments on disk, oldest first
+    private long[] segments() {
+        File[] files = dir.listFiles((d, name) -> name.startsWith("journal-") && name.endsWith(".log"));
+        if (files == null)
+            return new long[0];
+        long[] seqs = new long[files.length];
+        int n = 0;
+        for (File f : files) {
+            try {
+                seqs[n++] = Long.parseLong(f.getName().substring(8, f.getName().length() - 4));
+            } catch(NumberFormatException e) {
+                // not ours
+            }
+        }
+        seqs = Arrays.copyOf(seqs, n);
+        Arrays.sort(seqs);
+        return seqs;
+    }
+
+    public long getRecords() {
+        return records.sum();
+    }
+
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    /**
+     * @return mean fsync time in microseconds
+     */
+    public long getMeanFsyncMicros() {
+        long n = batches.sum();
+        return n == 0 ? 0 : fsyncNanos.sum() / n / 1000;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    @Override
+    public String toString() {
+        return "journal: records=" + getRecords() + " batches=" + getBatches() + " meanFsync=" + getMeanFsyncMicros()
+            + "us queue=" + getQueueDepth() + " segment=" + segment;
+    }
+}
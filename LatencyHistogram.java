@@ -0,0 +1,130 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+/**
+ * Lock-free latency histogram with log-linear buckets: 32 buckets per power
+ * of two, so any recorded value is reported within about 3% of its true
+ * value while the whole range from 1ns to about 18 minutes fits in 1152
+ * counters. Recording is a single atomic increment, cheap enough for every
+ * command.
+ */
+class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int MAX_BITS = 40; // values are capped at 2^40 - 1
+    private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+
+    private AtomicLongArray counts = new AtomicLongArray((MAX_BITS - SUB_BITS + 1) * SUB);
+    private LongAdder total = new LongAdder();
+    private LongAdder sum = new LongAdder();
+    private AtomicLong max = new AtomicLong();
+
+    /**
+     * Record one value
+     * @param nanos Latency in nanoseconds (negative values count as 0)
+     */
+    public void record(long nanos) {
+        long v = Math.min(Math.max(nanos, 0), MAX_VALUE);
+        counts.incrementAndGet(index(v));
+        total.increment();
+        sum.add(v);
+        if (v > max.get())
+            max.accumulateAndGet(v, Math::max);
+    }
+
+    /**
+     * Add another histogram's counts to this one
+     * @param other The histogram to add
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length(); i++) {
+            long c = other.counts.get(i);
+            if (c != 0)
+                counts.addAndGet(i, c);
+        }
+        total.add(other.total.sum());
+        sum.add(other.sum.sum());
+        max.accumulateAndGet(other.max.get(), Math::max);
+    }
+
+    /**
+     * @return number of values recorded
+     */
+    public long getCount() {
+        return total.sum();
+    }
+
+    /**
+     * @return mean of the recorded values in nanoseconds
+     */
+    public long getMean() {
+        long n = total.sum();
+        return n == 0 ? 0 : sum.sum() / n;
+    }
+
+    /**
+     * @return largest value recorded, in nanoseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Value at a percentile
+     * @param percentile e.g. 50, 99 or 99.9
+     * @return the (bucket's highest) value in nanoseconds, 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long n = 0;
+        for (int i = 0; i < counts.length(); i++)
+            n += counts.get(i);
+        if (n == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(highest(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * Empty the histogram
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++)
+            counts.set(i, 0);
+        total.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    /**
+     * @return count, mean, p50, p99, p99.9 and max in microseconds
+     */
+    @Override
+    public String toString() {
+        return "count=" + getCount() + " mean=" + getMean() / 1000 + "us p50=" + getPercentile(50) / 1000
+            + "us p99=" + getPercentile(99) / 1000 + "us p999=" + getPercentile(99.9) / 1000 + "us max=" + getMax() / 1000 + "us";
+    }
+
+    // bucket of a value: exact below 32, then 32 buckets per power of two
+    private static int index(long v) {
+        if (v < SUB)
+            return (int) v;
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB - 1);
+        return (exp - SUB_BITS + 1) * SUB + sub;
+    }
+
+    // largest value that falls in a bucket
+    private static long highest(int index) {
+        if (index < SUB)
+            return index;
+        int exp = index / SUB - 1 + SUB_BITS;
+        long sub = index % SUB;
+        return ((SUB + sub + 1) << (exp - SUB_BITS)) - 1;
+    }
+}
@@ -0,0 +1,176 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+/**
+ * Splits client input into lines (\n or \r\n) at the byte level, with a
+ * hard limit on the line length. Bytes are collected in a per-session
+ * buffer that grows only as far as the limit, and only a complete line is
+ * decoded as UTF-8; a client sending an endless line costs the limit, not
+ * the heap. Used by both transports: the blocking one reads through
+ * readLine(), the non-blocking one feeds its decrypted buffer to next().
+ * After a client switches to the binary protocol the same buffers are
+ * split into frames instead (readFrame(), nextFrame()), under the same limit.
+ */
+class LineDecoder {
+    static final int DEFAULT_MAX_LINE = 4096;
+    private static final int INITIAL_SIZE = 128; // most commands are short
+
+    private int maxLine;
+    private byte[] line = new byte[INITIAL_SIZE]; // bytes of the line so far
+    private int length;
+    private ByteBuffer readBuffer; // readLine() only: bytes read but not yet split (flipped)
+    private int frameLength = -1; // length of the frame being collected, -1 while reading its length
+    private long lengthPrefix; // varint length read so far
+    private int prefixShift;
+
+    /**
+     * Constructor
+     * @param maxLine Longest accepted line in bytes, not counting the line ending
+     */
+    public LineDecoder(int maxLine) {
+        this.maxLine = maxLine;
+    }
+
+    /**
+     * Take bytes from a buffer until a line is complete
+     * @param in Buffer in read mode; consumed up to and including the newline
+     * @return the line without its ending, or null if more input is needed
+     * @throws LineTooLongException if the line exceeds the limit
+     */
+    public String next(ByteBuffer in) throws LineTooLongException {
+        while (in.hasRemaining()) {
+            byte b = in.get();
+            if (b == '\n') {
+                int len = length;
+                if (len > 0 && line[len - 1] == '\r')
+                    len--;
+                length = 0;
+                if (len > maxLine)
+                    throw new LineTooLongException(maxLine);
+                return new String(line, 0, len, StandardCharsets.UTF_8);
+            }
+            if (length == line.length) {
+                if (length >= maxLine + 1) { // one byte of slack for the \r of \r\n
+                    length = 0;
+                    throw new LineTooLongException(maxLine);
+                }
+                line = Arrays.copyOf(line, Math.min(line.length * 2, maxLine + 1));
+            }
+            line[length++] = b;
+        }
+        return null;
+    }
+
+    /**
+     * Take bytes from a buffer until a binary frame is complete
+     * @param in Buffer in read mode; consumed up to the end of the frame
+     * @return the decoded request, or null if more input is needed
+     * @throws BadFrameException if the frame exceeds the limit or is malformed
+     */
+    public Frame nextFrame(ByteBuffer in) throws BadFrameException {
+        while (in.hasRemaining()) {
+            if (frameLength < 0) {
+                byte b = in.get();
+                lengthPrefix |= (long) (b & 0x7F) << prefixShift;
+                prefixShift += 7;
+                if ((b & 0x80) != 0) {
+                    if (prefixShift > 28)
+                        throw new BadFrameException("frame with a bad length");
+                    continue;
+                }
+                if (lengthPrefix == 0 || lengthPrefix > maxLine)
+                    throw new BadFrameException(lengthPrefix == 0 ? "frame without an opcode" : "frame longer than " + maxLine + " bytes");
+                frameLength = (int) lengthPrefix;
+                lengthPrefix = 0;
+                prefixShift = 0;
+                length = 0;
+                if (line.length < frameLength)
+                    line = new byte[Math.max(frameLength, Math.min(line.length * 2, maxLine + 1))];
+                continue;
+            }
+            int n = Math.min(in.remaining(), frameLength - length);
+            in.get(line, length, n);
+            length += n;
+            if (length == frameLength) {
+                int len = frameLength;
+                frameLength = -1;
+                length = 0;
+                return BinaryProtocol.request(line, len);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Read the next line from a stream
+     * @param in The stream
+     * @return the line without its ending, or null at the end of the stream
+     * @throws LineTooLongException if the line exceeds the limit
+     * @throws IOException if reading fails
+     */
+    public String readLine(InputStream in) throws IOException {
+        while (true) {
+            String l = this.next(this.readBuffer());
+            if (l != null)
+                return l;
+            if (!this.fill(in)) {
+                if (length == 0)
+                    return null;
+                String last = new String(line, 0, length, StandardCharsets.UTF_8); // unterminated last line
+                length = 0;
+                return last;
+            }
+        }
+    }
+
+    /**
+     * Read the next binary frame from a stream
+     * @param in The stream
+     * @return the decoded request, or null at the end of the stream
+     * @throws BadFrameException if the frame exceeds the limit or is malformed
+     * @throws IOException if reading fails
+     */
+    public Frame readFrame(InputStream in) throws IOException {
+        while (true) {
+            Frame f = this.nextFrame(this.readBuffer());
+            if (f != null)
+                return f;
+            if (!this.fill(in))
+                return null; // a partial frame at the end is dropped
+        }
+    }
+
+    /**
+     * @return whether readLine()/readFrame() have input left that was read ahead
+     */
+    public boolean hasBuffered() {
+        return readBuffer != null && readBuffer.hasRemaining();
+    }
+
+    private ByteBuffer readBuffer() {
+        if (readBuffer == null)
+            readBuffer = ByteBuffer.allocate(Math.min(maxLine + 2, 8192)).flip();
+        return readBuffer;
+    }
+
+    // refill the read buffer once everything in it was consumed; false at the end of the stream
+    private boolean fill(InputStream in) throws IOException {
+        readBuffer.clear();
+        int n = in.read(readBuffer.array(), 0, readBuffer.capacity());
+        readBuffer.limit(Math.max(n, 0));
+        return n != -1;
+    }
+}
+
+/**
+ * A client sent a line longer than the limit
+ */
+class LineTooLongException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public LineTooLongException(int maxLine) {
+        super("line longer than " + maxLine + " bytes");
+    }
+}
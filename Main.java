@@ -1,14 +1,100 @@
 // Author: Dr. Leune - Provided Initial version
 // Editor: Mateusz Gembarzewski - Finalized to work with project
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
 
 public class Main {
     private static final int SSLPort = 4001;
 
     public static void main(String... args) {
+        // -Dscoreboard.mode=shard|router spreads the games over several processes (see README)
+        String mode = System.getProperty("scoreboard.mode", "standalone");
+        List<String> shards = Arrays.asList(System.getProperty("scoreboard.shards", "").split("\\s*,\\s*"));
+        String self = System.getProperty("scoreboard.shard", "");
+        if (!mode.equals("standalone") && (shards.get(0).isEmpty() || (mode.equals("shard") && !shards.contains(self)))) {
+            System.err.println("scoreboard.mode=" + mode + " needs scoreboard.shards (and scoreboard.shard, one of them, on a shard)");
+            return;
+        }
+
+        ScoreboardServer server;
+        if (mode.equals("router"))
+            server = new ShardRouter(shards, Integer.getInteger("scoreboard.shardLinks", ShardRouter.DEFAULT_LINKS_PER_SHARD));
+        else {
+            // a shard keeps the games the ring gives it
+            HashRing ring = mode.equals("shard") ? new HashRing(shards) : null;
+            Predicate<String> hosted = id -> ring == null || ring.owner(id).equals(self);
+            // -Dscoreboard.questionBank=FILE loads the games from a CSV/JSON lines file instead of the built-in ones
+            String bank = System.getProperty("scoreboard.questionBank");
+            ArrayList<Game> games;
+            if (bank == null) {
+                games = games();
+                games.removeIf(g -> !hosted.test(g.getId()));
+            } else {
+                games = loadBank(new File(bank), hosted);
+                if (games == null)
+                    return;
+            }
+            server = new ScoreboardServer(games);
+        }
+        if (!mode.equals("shard")) { // a shard has no clients of its own, only the router's links
+            String storePassword = System.getProperty("scoreboard.keystorePassword", "password");
+            server.setupSSL(System.getProperty("scoreboard.keystore", "./keystore.jks"), storePassword,
+                    System.getProperty("scoreboard.keyPassword", storePassword));
+            // sessions are cached for resumption; a replaced keystore file is picked up without a restart
+            server.setupTLS(System.getProperty("scoreboard.tlsProtocols", ScoreboardServer.DEFAULT_TLS_PROTOCOLS),
+                    Integer.getInteger("scoreboard.tlsSessionCache", ScoreboardServer.DEFAULT_TLS_SESSION_CACHE),
+                    Integer.getInteger("scoreboard.tlsSessionTimeout", ScoreboardServer.DEFAULT_TLS_SESSION_TIMEOUT),
+                    Integer.getInteger("scoreboard.keystoreReloadSeconds", 30));
+            // -Dscoreboard.transport=nio selects the selector based front end
+            server.setTransport(System.getProperty("scoreboard.transport", "blocking"),
+                    Integer.getInteger("scoreboard.eventLoops", Runtime.getRuntime().availableProcessors()));
+            // -Dscoreboard.sessions=platform runs blocking sessions on a bounded pool instead of virtual threads
+            server.setSessionExecutor(System.getProperty("scoreboard.sessions", "virtual"),
+                    Integer.getInteger("scoreboard.maxSessionThreads", SessionExecutor.DEFAULT_MAX_THREADS));
+            // PBKDF2 hashing for /LOGIN and /REGISTER runs on its own bounded pool
+            server.setAuthPool(Integer.getInteger("scoreboard.hashThreads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)),
+                    Integer.getInteger("scoreboard.hashQueue", 256));
+            // bound open connections, and close stalled handshakes and sessions that stop sending commands
+            server.setConnectionLimits(Integer.getInteger("scoreboard.maxConnections", ScoreboardServer.DEFAULT_MAX_CONNECTIONS),
+                    Integer.getInteger("scoreboard.maxConnectionsPerIp", ScoreboardServer.DEFAULT_MAX_CONNECTIONS_PER_ADDRESS));
+            server.setMaxLineLength(Integer.getInteger("scoreboard.maxLineBytes", LineDecoder.DEFAULT_MAX_LINE));
+            server.setupTimeouts(Integer.getInteger("scoreboard.handshakeTimeoutSeconds", ScoreboardServer.DEFAULT_HANDSHAKE_TIMEOUT_SECONDS),
+                    Integer.getInteger("scoreboard.idleTimeoutSeconds", ScoreboardServer.DEFAULT_IDLE_TIMEOUT_SECONDS));
+            // announcements are queued per session; a session that falls behind is handled by the overflow policy
+            server.setupBroadcast(Integer.getInteger("scoreboard.broadcastQueue", Broadcaster.DEFAULT_QUEUE_SIZE),
+                    System.getProperty("scoreboard.broadcastOverflow", "drop-oldest"));
+            // -Dscoreboard.console=true reads /ANNOUNCE commands from standard input
+            if (Boolean.getBoolean("scoreboard.console"))
+                server.startConsole(System.in);
+        }
+        // a rendered scoreboard is reused for up to this long after scores change
+        server.setRenderCache(Integer.getInteger("scoreboard.renderCacheMillis", RenderCache.DEFAULT_STALE_MILLIS));
+        // counters and latency histograms: always in JMX, -Dscoreboard.metricsPort=N also serves them on http://127.0.0.1:N/metrics
+        server.setupMetrics(Integer.getInteger("scoreboard.metricsPort", 0));
+        // /WATCH subscribers get the changed scores once per tick
+        server.setupFeed(Integer.getInteger("scoreboard.feedMillis", ScoreFeed.DEFAULT_TICK_MILLIS));
+        // -Dscoreboard.dataDir=DIR keeps accounts and scores across restarts
+        String dataDir = System.getProperty("scoreboard.dataDir");
+        if (dataDir != null)
+            server.setupPersistence(dataDir, Integer.getInteger("scoreboard.snapshotSeconds", 300));
+        if (mode.equals("shard"))
+            new ShardServer(server).listen(self.substring(0, self.lastIndexOf(':')), Integer.parseInt(self.substring(self.lastIndexOf(':') + 1)));
+        else
+            server.startServer(SSLPort);
+    }
+
+    /**
+     * The games this server hosts
+     * @return the games
+     */
+    private static ArrayList<Game> games() {
         ArrayList<Game> games = new ArrayList<Game>();
 
-        ChallengeResponseGame cryptoGame = new ChallengeResponseGame("crypto");
+        ChallengeResponseGame cryptoGame = newGame("crypto");
         cryptoGame.addQuestion(new Question(
                 "q1",
                 "What block cipher uses a block size of 128 bits?",
@@ -23,7 +109,7 @@ public class Main {
             ));
         games.add(cryptoGame);
 
-        ChallengeResponseGame networkingGame = new ChallengeResponseGame("networking");
+        ChallengeResponseGame networkingGame = newGame("networking");
         networkingGame.addQuestion(new Question (
                 "q1",
                 "What layer-7 protocol would you expect at TCP port 25?",
@@ -37,9 +123,47 @@ public class Main {
                 5
             ));
         games.add(networkingGame);
+        return games;
+    }
+
+    /**
+     * The games in a question bank file
+     * @param file The bank
+     * @param hosted Which games to load
+     * @return the games, or null if the file can't be read
+     */
+    private static ArrayList<Game> loadBank(File file, Predicate<String> hosted) {
+        long start = System.nanoTime();
+        try {
+            // only ids, points and answers stay in memory; question text is read back through an LRU cache
+            QuestionBank bank = new QuestionBank(file, Integer.getInteger("scoreboard.questionCache", QuestionBank.DEFAULT_CACHE_SIZE));
+            ArrayList<Game> games = bank.load(hosted, Main::newGame);
+            System.out.println("Loaded " + bank.getQuestions() + " questions in " + games.size() + " games from " + file
+                    + " in " + (System.nanoTime() - start) / 1000000 + "ms");
+            return games;
+        } catch(IOException e) {
+            System.err.println(e);
+            return null;
+        }
+    }
 
-        ScoreboardServer server = nw ScoreboardServer(games);
-        server.setupSSL("./keystore.jks", "password");
-        server.startServer(SSLPort);
+    /**
+     * Create a game with the score store selected by scoreboard.store
+     * @param id Game id
+     * @return the game
+     */
+    private static ChallengeResponseGame newGame(String id) {
+        // -Dscoreboard.store=mapped keeps scores off-heap in DIR/<id>.scores
+        if (!"mapped".equals(System.getProperty("scoreboard.store", "memory")))
+            return new ChallengeResponseGame(id);
+        try {
+            MappedScoreStore store = new MappedScoreStore(new File(System.getProperty("scoreboard.storeDir", "scores")), id,
+                    Integer.getInteger("scoreboard.maxPlayers", 1000000), Integer.getInteger("scoreboard.maxQuestions", 1024));
+            Runtime.getRuntime().addShutdownHook(new Thread(store::force));
+            return new ChallengeResponseGame(id, store);
+        } catch(IOException e) {
+            System.err.println(e);
+            return new ChallengeResponseGame(id);
+        }
     }
 }
@@ -0,0 +1,115 @@
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+/**
+ * Who owns which nick: the live session currently using it and, once
+ * registered, the account. Every operation is a single hash lookup or an
+ * atomic putIfAbsent/remove, so checking and taking a nick can't race.
+ */
+class NickRegistry {
+    private ConcurrentHashMap<String, ScoreboardClient> sessions = new ConcurrentHashMap<String, ScoreboardClient>(); // nick -> session using it
+    private ConcurrentHashMap<String, Account> accounts = new ConcurrentHashMap<String, Account>(); // nick -> registered account
+
+    /**
+     * Check if nick is in use by a session or registered
+     * @param nick The nick
+     * @return whether the nick is taken
+     */
+    public boolean isTaken(String nick) {
+        return sessions.containsKey(nick) || accounts.containsKey(nick);
+    }
+
+    /**
+     * Reserve a nick for a new session
+     * @param nick The nick
+     * @param c The session
+     * @return false if another session already holds it
+     */
+    public boolean reserve(String nick, ScoreboardClient c) {
+        ScoreboardClient prev = sessions.putIfAbsent(nick, c);
+        return prev == null || prev == c;
+    }
+
+    /**
+     * Release a session's nick (no effect if another session holds it)
+     * @param nick The nick
+     * @param c The session
+     */
+    public void release(String nick, ScoreboardClient c) {
+        sessions.remove(nick, c);
+    }
+
+    /**
+     * Move a session to a new nick, atomically with respect to other sessions
+     * @param c The session
+     * @param from Nick it holds now
+     * @param to Requested nick
+     * @return false if the requested nick is registered or held by another session
+     */
+    public boolean rename(ScoreboardClient c, String from, String to) {
+        if (accounts.containsKey(to))
+            return false;
+        if (!this.reserve(to, c))
+            return false;
+        if (accounts.containsKey(to)) { // registered between the check and the reserve
+            this.release(to, c);
+            return false;
+        }
+        if (!to.equals(from))
+            this.release(from, c);
+        return true;
+    }
+
+    /**
+     * Move a session that just logged in to its account's nick. A session
+     * already logged in as the same account loses the reservation.
+     * @param c The session
+     * @param from Nick it holds now
+     * @param to The account's nick
+     */
+    public void claim(ScoreboardClient c, String from, String to) {
+        sessions.put(to, c);
+        if (!to.equals(from))
+            this.release(from, c);
+    }
+
+    /**
+     * Register an account if its nick isn't registered yet
+     * @param acc The account
+     * @return whether it was added
+     */
+    public boolean addAccount(Account acc) {
+        return accounts.putIfAbsent(acc.getNick(), acc) == null;
+    }
+
+    /**
+     * Find a registered account
+     * @param nick The nick
+     * @return the Account, or null
+     */
+    public Account getAccount(String nick) {
+        return accounts.get(nick);
+    }
+
+    /**
+     * Check if an account exists
+     * @param nick The nick
+     * @return whether the nick is registered
+     */
+    public boolean isRegistered(String nick) {
+        return accounts.containsKey(nick);
+    }
+
+    /**
+     * @return live view of all registered accounts
+     */
+    public Collection<Account> getAccounts() {
+        return accounts.values();
+    }
+
+    /**
+     * @return number of registered accounts
+     */
+    public int accountCount() {
+        return accounts.size();
+    }
+}
@@ -0,0 +1,726 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+/**
+ * Non-blocking TLS front end for the Scoreboard Server. One acceptor thread
+ * hands new connections to a small fixed set of event loops; each loop drives
+ * the SSLEngine of its connections and feeds complete lines to the same
+ * ScoreboardClient command handling the blocking transport uses.
+ */
+class NioTransport {
+    private ScoreboardServer master;
+    private SSLContext sc;
+    private EventLoop[] loops;
+
+    /**
+     * Constructor
+     * @param master Server owning the clients and games
+     * @param sc SSLContext used to create an engine per connection
+     * @param eventLoops number of event loop threads
+     */
+    public NioTransport(ScoreboardServer master, SSLContext sc, int eventLoops) {
+        this.master = master;
+        this.sc = sc;
+        this.loops = new EventLoop[Math.max(1, eventLoops)];
+    }
+
+    /**
+     * Start the event loops and accept connections on the calling thread
+     * @param port TCP port to listen on
+     */
+    protected void listen(int port) {
+        ServerSocketChannel server;
+        try {
+            for(int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop(Selector.open());
+                Thread t = new Thread(loops[i], "scoreboard-loop-" + i);
+                t.start();
+            }
+            server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(port));
+        } catch(IOException e) {
+            System.err.println(e);
+            return;
+        }
+
+        ConnectionLimiter limits = master.getConnectionLimiter();
+        int next = 0;
+        while (true) {
+            SocketChannel channel;
+            try {
+                limits.awaitSlot(); // at the limit, leave new connections in the backlog
+            } catch(InterruptedException e) {
+                return;
+            }
+            try {
+                // accept connection
+                channel = server.accept();
+                master.getMetrics().connectionAccepted();
+            }
+            catch (IOException e) {
+                limits.releaseSlot();
+                if (!server.isOpen())
+                    return;
+                System.err.println(e);
+                ConnectionLimiter.pause(); // e.g. out of file descriptors: give closing connections a moment
+                continue;
+            }
+
+            InetAddress address = channel.socket().getInetAddress();
+            if (!limits.open(address)) { // too many from this address
+                limits.releaseSlot();
+                master.getMetrics().connectionRefused();
+                closeQuietly(channel);
+                continue;
+            }
+            try {
+                channel.configureBlocking(false);
+            } catch(IOException e) {
+                System.err.println(e);
+                closeQuietly(channel);
+                limits.close(address);
+                continue;
+            }
+
+            SSLEngine engine = sc.createSSLEngine();
+            engine.setUseClientMode(false);
+            engine.setSSLParameters(master.getTLSParameters());
+            EventLoop loop = loops[next++ % loops.length]; // round robin over the loops
+            TlsConnection conn = new TlsConnection(loop, channel, engine, limits, address);
+            conn.post(() -> conn.open(master));
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch(IOException e) {
+            System.err.println(e);
+        }
+    }
+}
+
+/**
+ * A selector and the thread running it. Other threads hand work to the loop
+ * through execute() rather than touching its connections directly.
+ */
+class EventLoop implements Runnable {
+    private Selector selector;
+    private ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private Thread thread;
+
+    public EventLoop(Selector selector) {
+        this.selector = selector;
+    }
+
+    /**
+     * Run a task on the loop thread
+     * @param task the task to run
+     */
+    protected void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * @return whether the calling thread is this loop's thread
+     */
+    protected boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    protected Selector getSelector() {
+        return selector;
+    }
+
+    @Override
+    /**
+     * Loop logic
+     */
+    public void run() {
+        thread = Thread.currentThread();
+        while (true) {
+            try {
+                selector.select();
+            } catch(IOException e) {
+                System.err.println(e);
+                return;
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch(RuntimeException e) { // a connection's tasks close it themselves (TlsConnection.post)
+                    System.err.println(e);
+                }
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                TlsConnection conn = (TlsConnection) key.attachment();
+                try {
+                    if (!key.isValid())
+                        continue;
+                    if (key.isReadable())
+                        conn.onReadable();
+                    if (key.isValid() && key.isWritable())
+                        conn.pump();
+                } catch(RuntimeException e) { // a failing handler costs its own connection, not the loop
+                    conn.fail(e);
+                }
+            }
+        }
+    }
+}
+
+/**
+ * One client connection of the non-blocking transport. Holds the SSLEngine
+ * and the per-connection network and application buffers. Everything except
+ * enqueue() runs on the owning event loop.
+ */
+class TlsConnection {
+    private static final int PENDING_BUFFERS = 4; // plaintext a client may leave unread, in application buffers
+    private static final int PUSH_TIMEOUT_SECONDS = 10; // how long awaitRoom() waits for a client to read
+
+    private EventLoop loop;
+    private SocketChannel channel;
+    private SSLEngine engine;
+    private SelectionKey key;
+    private ScoreboardClient client;
+    private ServerMetrics metrics;
+    private long opened = System.nanoTime(); // for the handshake time
+
+    private ByteBuffer netIn;   // ciphertext read from the socket
+    private ByteBuffer appIn;   // plaintext produced by unwrap
+    private ByteBuffer netOut;  // ciphertext waiting to be written
+    private ByteBuffer appOut;  // plaintext waiting to be wrapped (guarded by outLock)
+    private int maxPending;     // appOut may not grow past this while it holds anything
+    private ReentrantLock outLock = new ReentrantLock(); // not synchronized: writers may be virtual threads
+    private Condition drained = outLock.newCondition(); // appOut went under maxPending
+    private ArrayList<Runnable> whenRoom = new ArrayList<Runnable>(); // run once appOut goes under maxPending (guarded by outLock)
+    private LineDecoder lines; // splits appIn into bounded lines
+
+    private boolean pumping;    // guards against re-entrant pump() while handling a line
+    private boolean paused;     // client is finishing a command asynchronously, don't feed it input
+    private boolean throttled;  // client isn't reading its replies, don't feed it input
+    private boolean closing;    // client quit, send close_notify then close
+    private boolean closeSent;  // closeOutbound() already called
+    private volatile boolean closed; // also read by writers in awaitRoom()
+    private boolean handshaken;
+    private ConnectionLimiter limits;
+    private InetAddress address;
+
+    public TlsConnection(EventLoop loop, SocketChannel channel, SSLEngine engine, ConnectionLimiter limits, InetAddress address) {
+        this.loop = loop;
+        this.channel = channel;
+        this.engine = engine;
+        this.limits = limits;
+        this.address = address;
+        int packet = engine.getSession().getPacketBufferSize();
+        int app = engine.getSession().getApplicationBufferSize();
+        netIn = ByteBuffer.allocate(packet);
+        netOut = ByteBuffer.allocate(packet);
+        appIn = ByteBuffer.allocate(app);
+        appOut = ByteBuffer.allocate(app);
+        maxPending = PENDING_BUFFERS * app;
+    }
+
+    /**
+     * Register with the loop's selector and greet the client (runs on the loop)
+     * @param master Server the client belongs to
+     */
+    protected void open(ScoreboardServer master) {
+        metrics = master.getMetrics();
+        lines = new LineDecoder(master.getMaxLineLength());
+        try {
+            key = channel.register(loop.getSelector(), SelectionKey.OP_READ, this);
+            engine.beginHandshake();
+        } catch(IOException e) {
+            System.err.println(e);
+            close();
+            return;
+        }
+        client = master.connect(null, new ConnectionOutputStream(this), channel.socket().getRemoteSocketAddress().toString());
+        client.setConnection(() -> post(this::disconnect));
+        client.setCallbackExecutor(this::post);
+        master.afterHandshakeTimeout(() -> post(() -> {
+            if (!handshaken)
+                disconnect();
+        }));
+        pump();
+    }
+
+    /**
+     * Run a task for this connection on its loop. May be called from any
+     * thread. If the task throws, only this connection is closed.
+     * @param task the task to run
+     */
+    protected void post(Runnable task) {
+        loop.execute(() -> {
+            try {
+                task.run();
+            } catch(RuntimeException e) {
+                fail(e);
+            }
+        });
+    }
+
+    /**
+     * A handler threw: log it and close this connection (runs on the loop)
+     * @param e What was thrown
+     */
+    protected void fail(RuntimeException e) {
+        System.err.println(e);
+        try {
+            disconnect();
+        } catch(RuntimeException ex) {
+            close(); // the session couldn't be ended cleanly, still let go of the socket
+        }
+    }
+
+    /**
+     * Queue plaintext for the client. May be called from any thread.
+     * Replies are always queued; the loop stops reading commands from a
+     * client whose output is over the limit until it catches up.
+     */
+    protected void enqueue(byte[] b, int off, int len) {
+        outLock.lock();
+        try {
+            if (appOut.remaining() < len) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(appOut.capacity() * 2, appOut.position() + len));
+                appOut.flip();
+                bigger.put(appOut);
+                appOut = bigger;
+            }
+            appOut.put(b, off, len);
+        } finally {
+            outLock.unlock();
+        }
+    }
+
+    /**
+     * Wait until the client's pending output is under the limit, before
+     * queueing output that isn't a reply (feed updates, announcements). Not
+     * for the loop's own thread, which never waits.
+     * @throws OutputFullException if the client doesn't catch up in time
+     */
+    protected void awaitRoom() throws OutputFullException {
+        if (loop.inLoop())
+            return;
+        outLock.lock();
+        try {
+            long nanos = TimeUnit.SECONDS.toNanos(PUSH_TIMEOUT_SECONDS);
+            while (appOut.position() > maxPending && !closed) {
+                if (nanos <= 0)
+                    throw new OutputFullException(appOut.position());
+                nanos = drained.awaitNanos(nanos);
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OutputFullException(appOut.position());
+        } finally {
+            outLock.unlock();
+        }
+    }
+
+    /**
+     * Check, without waiting, whether output that isn't a reply may be
+     * queued now. May be called from any thread.
+     * @param retry Run on the loop once the client has caught up (or the
+     *        connection closed), if there is no room now
+     * @return whether there is room
+     */
+    protected boolean hasRoom(Runnable retry) {
+        outLock.lock();
+        try {
+            if (closed || appOut.position() <= maxPending)
+                return true;
+            whenRoom.add(retry);
+            return false;
+        } finally {
+            outLock.unlock();
+        }
+    }
+
+    // run the retries waiting for room (taken under outLock, run outside it)
+    private void roomMade(ArrayList<Runnable> retries) {
+        for (Runnable r : retries) {
+            try {
+                r.run();
+            } catch(RuntimeException e) {
+                System.err.println(e);
+            }
+        }
+    }
+
+    // take the retries waiting for room (outLock held)
+    private ArrayList<Runnable> takeRetries() {
+        if (whenRoom.isEmpty())
+            return null;
+        ArrayList<Runnable> retries = whenRoom;
+        whenRoom = new ArrayList<Runnable>();
+        return retries;
+    }
+
+    // whether the client left more output unread than the limit
+    private boolean outputFull() {
+        outLock.lock();
+        try {
+            return appOut.position() > maxPending;
+        } finally {
+            outLock.unlock();
+        }
+    }
+
+    /**
+     * Ask the loop to push queued plaintext out. May be called from any thread.
+     */
+    protected void requestFlush() {
+        if (loop.inLoop())
+            pump();
+        else
+            post(this::pump);
+    }
+
+    /**
+     * Socket is readable: pull ciphertext in and process it
+     */
+    protected void onReadable() {
+        try {
+            if (channel.read(netIn) == -1) {
+                try {
+                    engine.closeInbound();
+                } catch(SSLException e) {
+                    // peer closed without close_notify; nothing left to do
+                }
+                disconnect();
+                return;
+            }
+        } catch(IOException e) {
+            disconnect();
+            return;
+        }
+        pump();
+    }
+
+    /**
+     * Drive the engine until no more progress can be made: run handshake
+     * tasks, unwrap received data into lines, wrap queued output and write
+     * it to the socket.
+     */
+    protected void pump() {
+        if (pumping || closed)
+            return;
+        pumping = true;
+        try {
+            boolean progress = true;
+            while (progress && !closed) {
+                progress = false;
+                if (throttled && !outputFull()) { // caught up with its replies
+                    throttled = false;
+                    deliver();
+                    progress = true;
+                }
+                SSLEngineResult.HandshakeStatus hs = engine.getHandshakeStatus();
+                if (hs == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null)
+                        task.run();
+                    progress = true;
+                    continue;
+                }
+                if (hs == SSLEngineResult.HandshakeStatus.NEED_WRAP || (hs == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING && hasOutput()))
+                    progress |= wrap();
+                if (hs == SSLEngineResult.HandshakeStatus.NEED_UNWRAP || (hs == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING && !paused && !throttled))
+                    progress |= unwrap();
+                if (closing && !closeSent && !hasOutput()) {
+                    engine.closeOutbound();
+                    closeSent = true;
+                    progress = true;
+                }
+            }
+            writeNet();
+            if (closed)
+                return;
+            if (engine.isOutboundDone() && netOut.position() == 0) {
+                close();
+                return;
+            }
+            int ops = paused || throttled ? 0 : SelectionKey.OP_READ; // stop reading while paused, the socket buffers for us
+            key.interestOps(netOut.position() > 0 ? ops | SelectionKey.OP_WRITE : ops);
+        } catch(IOException e) {
+            disconnect();
+        } finally {
+            pumping = false;
+        }
+    }
+
+    private boolean hasOutput() {
+        outLock.lock();
+        try {
+            return appOut.position() > 0;
+        } finally {
+            outLock.unlock();
+        }
+    }
+
+    /**
+     * Wrap queued plaintext (or handshake data) into netOut
+     * @return whether the engine made progress
+     */
+    private boolean wrap() throws IOException {
+        writeNet(); // make room
+        SSLEngineResult r;
+        ArrayList<Runnable> retries = null;
+        outLock.lock();
+        try {
+            appOut.flip();
+            r = engine.wrap(appOut, netOut);
+            appOut.compact();
+            if (appOut.position() <= maxPending) {
+                drained.signalAll();
+                retries = takeRetries();
+            }
+        } finally {
+            outLock.unlock();
+        }
+        if (retries != null)
+            roomMade(retries);
+        this.checkHandshake(r);
+        if (r.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+            if (netOut.position() > 0)
+                return false; // wait for the socket to drain
+            netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize()); // empty but still too small
+            return true;
+        }
+        return r.bytesConsumed() > 0 || r.bytesProduced() > 0;
+    }
+
+    // the handshake just completed: record how long it took
+    private void checkHandshake(SSLEngineResult r) {
+        if (r.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+            handshaken = true;
+            metrics.handshake(System.nanoTime() - opened, engine.getSession());
+        }
+    }
+
+    /**
+     * Unwrap received ciphertext and hand complete lines to the client
+     * @return whether the engine made progress
+     */
+    private boolean unwrap() throws IOException {
+        netIn.flip();
+        SSLEngineResult r = engine.unwrap(netIn, appIn);
+        netIn.compact();
+        this.checkHandshake(r);
+        if (r.bytesProduced() > 0)
+            metrics.bytesIn(r.bytesProduced());
+        switch (r.getStatus()) {
+            case BUFFER_UNDERFLOW:
+                if (netIn.position() == netIn.capacity()) { // record larger than buffer
+                    ByteBuffer bigger = ByteBuffer.allocate(engine.getSession().getPacketBufferSize() + netIn.capacity());
+                    netIn.flip();
+                    bigger.put(netIn);
+                    netIn = bigger;
+                }
+                return false;
+            case BUFFER_OVERFLOW:
+                ByteBuffer bigger = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize() + appIn.position());
+                appIn.flip();
+                bigger.put(appIn);
+                appIn = bigger;
+                return true;
+            case CLOSED:
+                disconnect();
+                return false;
+            default:
+                break;
+        }
+        deliver();
+        return r.bytesConsumed() > 0 || r.bytesProduced() > 0;
+    }
+
+    /**
+     * Split decrypted bytes into lines (\n, \r\n), or binary frames once
+     * the client switched protocols, and feed them to the client without
+     * waiting for earlier replies. Stops early (keeping the rest in appIn)
+     * while the client has too many replies outstanding, or leaves too much
+     * of its output unread, and resumes when it caught up.
+     */
+    private void deliver() {
+        appIn.flip();
+        try {
+            while (!closing && !closed && !paused) {
+                if (outputFull()) { // replies pile up unread: stop taking commands
+                    throttled = true;
+                    break;
+                }
+                boolean open;
+                if (client.isBinaryInput()) { // checked per command: /PROTO switches mid-buffer
+                    Frame frame = lines.nextFrame(appIn);
+                    if (frame == null)
+                        break;
+                    open = client.handle(frame);
+                }
+                else {
+                    String input = lines.next(appIn);
+                    if (input == null)
+                        break;
+                    open = client.handle(input);
+                }
+                if (!open)
+                    closing = true; // client quit (already removed from the server)
+                CompletableFuture<?> backlog = client.getBacklog();
+                if (backlog != null) { // too many replies outstanding
+                    paused = true;
+                    backlog.whenComplete((r, e) -> post(this::resume));
+                }
+            }
+        } catch(LineTooLongException e) {
+            client.rejectLine(e);
+            closing = true;
+        } catch(BadFrameException e) {
+            client.rejectFrame(e);
+            closing = true;
+        }
+        if (closing)
+            appIn.position(appIn.limit()); // nothing more will be handled, don't keep it
+        appIn.compact();
+    }
+
+    /**
+     * The client's asynchronous command finished: feed it the rest of its input
+     */
+    private void resume() {
+        paused = false;
+        if (closed)
+            return;
+        pumping = true; // replies flushed while delivering are picked up by the pump() below
+        try {
+            deliver();
+        } finally {
+            pumping = false;
+        }
+        pump();
+    }
+
+    /**
+     * Write as much of netOut to the socket as it will take
+     */
+    private void writeNet() throws IOException {
+        netOut.flip();
+        channel.write(netOut);
+        netOut.compact();
+    }
+
+    /**
+     * Connection dropped or failed: tell the server and close
+     */
+    private void disconnect() {
+        if (closed)
+            return;
+        if (!handshaken)
+            metrics.handshakeFailed();
+        if (client != null && !closing)
+            client.handleDisconnect();
+        close();
+    }
+
+    private void close() {
+        if (closed)
+            return;
+        closed = true;
+        ArrayList<Runnable> retries;
+        outLock.lock();
+        try {
+            drained.signalAll(); // writers waiting for room give up
+            retries = takeRetries(); // and those waiting to retry find out it's closed
+        } finally {
+            outLock.unlock();
+        }
+        if (retries != null)
+            roomMade(retries);
+        limits.close(address);
+        if (key != null)
+            key.cancel();
+        try {
+            channel.close();
+        } catch(IOException e) {
+            System.err.println(e);
+        }
+    }
+}
+
+/**
+ * OutputStream handed to ScoreboardClient that queues bytes on a
+ * TlsConnection instead of writing to a socket.
+ */
+class ConnectionOutputStream extends OutputStream {
+    private TlsConnection conn;
+
+    public ConnectionOutputStream(TlsConnection conn) {
+        this.conn = conn;
+    }
+
+    @Override
+    public void write(int b) {
+        conn.enqueue(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        conn.enqueue(b, off, len);
+    }
+
+    /**
+     * Wait for room before output that isn't a reply
+     * @throws OutputFullException if the client doesn't read it in time
+     */
+    public void awaitRoom() throws OutputFullException {
+        conn.awaitRoom();
+    }
+
+    /**
+     * @see TlsConnection#hasRoom
+     */
+    public boolean hasRoom(Runnable retry) {
+        return conn.hasRoom(retry);
+    }
+
+    @Override
+    public void flush() {
+        conn.requestFlush();
+    }
+}
+
+/**
+ * A client of the non-blocking transport stopped reading: its pending
+ * output stayed over the limit, and what was to be written wasn't queued
+ */
+class OutputFullException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public OutputFullException(int pending) {
+        super("client is not reading, " + pending + " bytes pending");
+    }
+}
@@ -0,0 +1,437 @@
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+/**
+ * Games and questions loaded from a file, one question per line, either as
+ * a CSV record or a JSON object:
+ *
+ *   gameID,questionID,points,question,answer[,alternative...]
+ *   {"game": "crypto", "id": "q1", "points": 5, "question": "...", "answer": "AES", "alternatives": ["..."]}
+ *
+ * CSV fields may be quoted ("" for a quote inside quotes) but not span
+ * lines. Blank lines, lines starting with # and a first line that is the
+ * CSV header "gameID,questionID,points,question,answer" are skipped. The file is read once, a buffer at a time; only
+ * each question's id, points, accepted answers and the offset of its line
+ * stay in memory. The question text is read back from the file when it is
+ * shown, through an LRU cache, so the file must not change while the
+ * server runs. A text is only cached when it is read a second time while
+ * its offset is still remembered, so listing one large game reads its
+ * lines without pushing every other game's text out of the cache.
+ */
+class QuestionBank {
+    static final int DEFAULT_CACHE_SIZE = 10000;
+    private static final int MAX_RECORD = 65536; // longest line in bytes
+    private static final int READ_SIZE = 65536;
+    private static final int MAX_REPORTED = 10; // bad lines printed, the rest are only counted
+    private static final String HEADER = "gameID,questionID,points,question,answer"; // optional first line
+
+    private File file;
+    private FileChannel channel;
+    private LinkedHashMap<Long, String> texts; // line offset -> question text, least recently used first
+    private LinkedHashMap<Long, Boolean> seen; // offsets read once and not cached (yet), least recently used first
+    private int questions;
+    private int skipped;
+
+    /**
+     * Constructor
+     * @param file The question bank
+     * @param cacheSize Question texts kept in memory
+     * @throws IOException if the file can't be opened
+     */
+    public QuestionBank(File file, int cacheSize) throws IOException {
+        this.file = file;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        texts = new LinkedHashMap<Long, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        seen = new LinkedHashMap<Long, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Read the whole bank and build its games
+     * @param hosted Which game IDs to build; questions of other games are skipped
+     * @param newGame Creates an empty game for an ID
+     * @return the games, in the order they first appear in the file
+     * @throws IOException if reading fails
+     */
+    public ArrayList<Game> load(Predicate<String> hosted, Function<String, ChallengeResponseGame> newGame) throws IOException {
+        LinkedHashMap<String, ArrayList<Question>> byGame = new LinkedHashMap<String, ArrayList<Question>>();
+        LineDecoder lines = new LineDecoder(MAX_RECORD);
+        ByteBuffer buf = ByteBuffer.allocate(READ_SIZE);
+        long base = 0;  // file offset of the start of buf
+        long start = 0; // file offset of the current line
+        int lineNo = 0;
+        boolean tail = false; // the rest of a line that was too long
+        int n;
+        while ((n = channel.read(buf.clear())) != -1) {
+            buf.flip();
+            while (true) {
+                String line;
+                try {
+                    line = lines.next(buf);
+                } catch(LineTooLongException e) {
+                    if (!tail) // reported once, however long it is
+                        this.skip(++lineNo, e.getMessage());
+                    // the decoder stops at the limit; unless it got to the newline, what follows is the same line
+                    tail = buf.get(buf.position() - 1) != '\n';
+                    if (!tail)
+                        start = base + buf.position();
+                    continue;
+                }
+                if (line == null)
+                    break;
+                long end = base + buf.position();
+                if (!tail)
+                    this.add(byGame, line, ++lineNo, start, (int) (end - start - 1), hosted);
+                tail = false;
+                start = end;
+            }
+            base += n;
+        }
+        String last = lines.next(ByteBuffer.wrap(new byte[] {'\n'})); // a last line without a newline
+        if (last != null && !tail)
+            this.add(byGame, last, ++lineNo, start, (int) (base - start), hosted);
+
+        ArrayList<Game> games = new ArrayList<Game>();
+        for (Map.Entry<String, ArrayList<Question>> e : byGame.entrySet()) {
+            ChallengeResponseGame g = newGame.apply(e.getKey());
+            g.addQuestions(e.getValue());
+            games.add(g);
+        }
+        if (skipped > MAX_REPORTED)
+            System.err.println(file + ": " + (skipped - MAX_REPORTED) + " more bad lines skipped");
+        return games;
+    }
+
+    // parse one line and keep its question, without the text, under its game
+    private void add(Map<String, ArrayList<Question>> byGame, String line, int lineNo, long offset, int length, Predicate<String> hosted) {
+        String trimmed = line.replace("\uFEFF", "").trim();
+        if (trimmed.isEmpty() || trimmed.startsWith("#") || lineNo == 1 && trimmed.equalsIgnoreCase(HEADER))
+            return; // a game may well be called "game", so only the exact header line is skipped
+        Record r;
+        try {
+            r = Record.parse(line);
+        } catch(IllegalArgumentException e) {
+            this.skip(lineNo, e.getMessage());
+            return;
+        }
+        if (!hosted.test(r.game))
+            return;
+        byGame.computeIfAbsent(r.game, k -> new ArrayList<Question>())
+                .add(new BankQuestion(this, offset, length, r.id, r.answer, r.points, r.alternatives));
+        questions++;
+    }
+
+    private void skip(int lineNo, String reason) {
+        if (++skipped <= MAX_REPORTED)
+            System.err.println(file + ":" + lineNo + ": " + reason + ", skipped");
+    }
+
+    /**
+     * @return questions loaded
+     */
+    public int getQuestions() {
+        return questions;
+    }
+
+    /**
+     * The text of a question, from the cache or the file
+     * @param offset Offset of the question's line
+     * @param length Length of the line in bytes
+     * @return the text, empty if it can't be read
+     */
+    String text(long offset, int length) {
+        synchronized (texts) {
+            String t = texts.get(offset);
+            if (t != null)
+                return t;
+        }
+        String t;
+        try {
+            t = Record.parse(this.read(offset, length)).question;
+        } catch(IOException | IllegalArgumentException e) {
+            System.err.println(e);
+            return "";
+        }
+        synchronized (texts) {
+            if (seen.remove(offset) != null) // asked for before: worth keeping
+                texts.put(offset, t);
+            else
+                seen.put(offset, Boolean.TRUE);
+        }
+        return t;
+    }
+
+    // read one line back from the file
+    private String read(long offset, int length) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(length);
+        FileChannel ch = this.channel();
+        while (b.hasRemaining())
+            if (ch.read(b, offset + b.position()) < 0)
+                throw new EOFException(file + " is shorter than when it was loaded");
+        return new String(b.array(), 0, length, StandardCharsets.UTF_8);
+    }
+
+    private synchronized FileChannel channel() throws IOException {
+        if (!channel.isOpen()) // closed by a reader that was interrupted
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        return channel;
+    }
+
+    /**
+     * One line of the bank
+     */
+    private static class Record {
+        String game;
+        String id;
+        int points;
+        String question;
+        String answer;
+        String[] alternatives;
+
+        /**
+         * Parse a CSV or JSON line
+         * @param line The line, with or without a trailing \r
+         * @return the record
+         * @throws IllegalArgumentException if the line is malformed or misses a field
+         */
+        static Record parse(String line) {
+            line = line.replace("\uFEFF", "").trim(); // a byte order mark may start the file
+            Record r = new Record();
+            if (line.startsWith("{")) {
+                Map<String, Object> o = new JsonLine(line).object();
+                r.game = string(o, "game");
+                r.id = string(o, "id");
+                r.points = points(string(o, "points"));
+                r.question = string(o, "question");
+                r.answer = string(o, "answer");
+                Object alts = o.get("alternatives");
+                if (alts != null && !(alts instanceof List))
+                    throw new IllegalArgumentException("alternatives is not a list");
+                r.alternatives = alts == null ? new String[0] : ((List<?>) alts).toArray(new String[0]);
+            } else {
+                List<String> f = csv(line);
+                if (f.size() < 5)
+                    throw new IllegalArgumentException("expected gameID,questionID,points,question,answer");
+                r.game = f.get(0);
+                r.id = f.get(1);
+                r.points = points(f.get(2));
+                r.question = f.get(3);
+                r.answer = f.get(4);
+                r.alternatives = f.subList(5, f.size()).toArray(new String[0]);
+            }
+            if (r.game.isEmpty() || r.id.isEmpty() || r.game.contains(" ") || r.id.contains(" "))
+                throw new IllegalArgumentException("gameID and questionID must be words");
+            return r;
+        }
+
+        private static String string(Map<String, Object> o, String key) {
+            Object v = o.get(key);
+            if (v == null)
+                throw new IllegalArgumentException("no " + key);
+            if (v instanceof List)
+                throw new IllegalArgumentException(key + " is a list");
+            return (String) v;
+        }
+
+        private static int points(String s) {
+            try {
+                int p = Integer.parseInt(s.trim());
+                if (p >= 0)
+                    return p;
+            } catch(NumberFormatException e) {
+            }
+            throw new IllegalArgumentException("bad points: " + s);
+        }
+
+        // split a CSV record; "" inside a quoted field is a quote
+        private static List<String> csv(String line) {
+            ArrayList<String> fields = new ArrayList<String>();
+            StringBuilder f = new StringBuilder();
+            boolean quoted = false;
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (quoted) {
+                    if (c != '"')
+                        f.append(c);
+                    else if (i + 1 < line.length() && line.charAt(i + 1) == '"')
+                        f.append(line.charAt(++i));
+                    else
+                        quoted = false;
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    fields.add(f.toString().trim());
+                    f.setLength(0);
+                } else {
+                    f.append(c);
+                }
+            }
+            if (quoted)
+                throw new IllegalArgumentException("unterminated quote");
+            fields.add(f.toString().trim());
+            return fields;
+        }
+    }
+
+    /**
+     * Just enough JSON for one flat object per line: string, number and
+     * boolean values, and lists of strings. Numbers and booleans are kept as
+     * their text, nulls are left out.
+     */
+    private static class JsonLine {
+        private String s;
+        private int pos;
+
+        JsonLine(String s) {
+            this.s = s;
+        }
+
+        Map<String, Object> object() {
+            LinkedHashMap<String, Object> o = new LinkedHashMap<String, Object>();
+            this.expect('{');
+            if (this.peek() != '}') {
+                do {
+                    String key = this.string();
+                    this.expect(':');
+                    Object v = this.value();
+                    if (v != null)
+                        o.put(key, v);
+                } while (this.accept(','));
+            }
+            this.expect('}');
+            if (this.peek() != 0)
+                throw new IllegalArgumentException("text after the JSON object");
+            return o;
+        }
+
+        private Object value() {
+            char c = this.peek();
+            if (c == '"')
+                return this.string();
+            if (c == '[') {
+                ArrayList<String> list = new ArrayList<String>();
+                this.expect('[');
+                if (this.peek() != ']') {
+                    do {
+                        list.add(this.string());
+                    } while (this.accept(','));
+                }
+                this.expect(']');
+                return list;
+            }
+            int start = pos;
+            while (pos < s.length() && (Character.isLetterOrDigit(s.charAt(pos)) || "+-.".indexOf(s.charAt(pos)) >= 0))
+                pos++;
+            if (start == pos)
+                throw new IllegalArgumentException("bad JSON value at column " + (pos + 1));
+            String word = s.substring(start, pos);
+            return word.equals("null") ? null : word;
+        }
+
+        private String string() {
+            this.expect('"');
+            StringBuilder b = new StringBuilder();
+            while (true) {
+                if (pos >= s.length())
+                    throw new IllegalArgumentException("unterminated JSON string");
+                char c = s.charAt(pos++);
+                if (c == '"')
+                    return b.toString();
+                if (c != '\\') {
+                    b.append(c);
+                    continue;
+                }
+                if (pos >= s.length())
+                    throw new IllegalArgumentException("unterminated JSON string");
+                char e = s.charAt(pos++);
+                switch (e) {
+                    case 'b': b.append('\b'); break;
+                    case 'f': b.append('\f'); break;
+                    case 'n': b.append('\n'); break;
+                    case 'r': b.append('\r'); break;
+                    case 't': b.append('\t'); break;
+                    case 'u':
+                        if (pos + 4 > s.length())
+                            throw new IllegalArgumentException("bad JSON escape");
+                        try {
+                            b.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+                        } catch(NumberFormatException ex) {
+                            throw new IllegalArgumentException("bad JSON escape");
+                        }
+                        pos += 4;
+                        break;
+                    default: b.append(e); // \" \\ \/
+                }
+            }
+        }
+
+        // next non-blank character, 0 at the end
+        private char peek() {
+            while (pos < s.length() && Character.isWhitespace(s.charAt(pos)))
+                pos++;
+            return pos < s.length() ? s.charAt(pos) : 0;
+        }
+
+        private boolean accept(char c) {
+            if (this.peek() != c)
+                return false;
+            pos++;
+            return true;
+        }
+
+        private void expect(char c) {
+            if (!this.accept(c))
+                throw new IllegalArgumentException("expected " + c + " at column " + (pos + 1));
+        }
+    }
+}
+
+/**
+ * A question from a QuestionBank: the text stays in the file until it is shown
+ */
+class BankQuestion extends Question {
+    private QuestionBank bank;
+    private long offset; // of the question's line in the bank
+    private int length;
+
+    /**
+     * Constructor
+     * @param bank The bank the question is in
+     * @param offset Offset of its line in the file
+     * @param length Length of the line in bytes
+     * @param id Question identifier
+     * @param answer correct answer
+     * @param points points awarded if answered correctly
+     * @param alternatives other accepted answers
+     */
+    public BankQuestion(QuestionBank bank, long offset, int length, String id, String answer, int points, String... alternatives) {
+        super(id, null, answer, points, alternatives);
+        this.bank = bank;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public String getQuestion() {
+        return bank.text(offset, length);
+    }
+}
@@ -0,0 +1,129 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.X509ExtendedKeyManager;
+/**
+ * Key manager that serves the keys of a keystore file and picks up a new
+ * version of the file without a restart (e.g. a renewed certificate).
+ * A background thread checks the file's modification time; when it
+ * changes the keystore is loaded again and swapped in, so handshakes
+ * started after that use the new key. If the new file can't be loaded the
+ * old keys stay in use.
+ */
+class ReloadingKeyManager extends X509ExtendedKeyManager {
+    private File file;
+    private char[] storePassword;
+    private char[] keyPassword;
+    private volatile X509ExtendedKeyManager delegate;
+    private long loadedModified;
+    private ScheduledExecutorService watcher;
+
+    /**
+     * Load the keystore
+     * @param file The keystore (JKS or PKCS12)
+     * @param storePassword Password of the keystore
+     * @param keyPassword Password of the private key
+     * @throws Exception if the keystore can't be loaded
+     */
+    public ReloadingKeyManager(File file, String storePassword, String keyPassword) throws Exception {
+        this.file = file;
+        this.storePassword = storePassword.toCharArray();
+        this.keyPassword = keyPassword.toCharArray();
+        loadedModified = file.lastModified();
+        delegate = load();
+    }
+
+    // the key manager for the current file contents
+    private X509ExtendedKeyManager load() throws Exception {
+        KeyStore ks = KeyStore.getInstance("JKS"); // also reads PKCS12
+        try (InputStream in = new FileInputStream(file)) {
+            ks.load(in, storePassword);
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, keyPassword);
+        for (KeyManager km : kmf.getKeyManagers())
+            if (km instanceof X509ExtendedKeyManager)
+                return (X509ExtendedKeyManager) km;
+        throw new IllegalStateException("no X.509 key manager for " + file);
+    }
+
+    /**
+     * Check the file for changes every few seconds
+     * @param seconds Seconds between checks (0 or less disables reloading)
+     */
+    public void watch(int seconds) {
+        if (seconds <= 0 || watcher != null)
+            return;
+        watcher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "scoreboard-keystore");
+            t.setDaemon(true);
+            return t;
+        });
+        watcher.scheduleWithFixedDelay(this::reloadIfChanged, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Load the keystore again if the file was modified since the last load
+     * @return whether new keys were loaded
+     */
+    public boolean reloadIfChanged() {
+        long modified = file.lastModified();
+        if (modified == loadedModified || modified == 0) // unchanged, or missing while being replaced
+            return false;
+        loadedModified = modified; // a broken file is reported once, not on every check
+        try {
+            delegate = load();
+        } catch(Exception e) {
+            System.err.println("Keeping the old keys, could not reload " + file + ": " + e);
+            return false;
+        }
+        System.out.println("Reloaded keystore " + file);
+        return true;
+    }
+
+    @Override
+    public String[] getClientAliases(String keyType, Principal[] issuers) {
+        return delegate.getClientAliases(keyType, issuers);
+    }
+
+    @Override
+    public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket) {
+        return delegate.chooseClientAlias(keyType, issuers, socket);
+    }
+
+    @Override
+    public String[] getServerAliases(String keyType, Principal[] issuers) {
+        return delegate.getServerAliases(keyType, issuers);
+    }
+
+    @Override
+    public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+        return delegate.chooseServerAlias(keyType, issuers, socket);
+    }
+
+    @Override
+    public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+        return delegate.chooseEngineServerAlias(keyType, issuers, engine);
+    }
+
+    @Override
+    public X509Certificate[] getCertificateChain(String alias) {
+        return delegate.getCertificateChain(alias);
+    }
+
+    @Override
+    public PrivateKey getPrivateKey(String alias) {
+        return delegate.getPrivateKey(alias);
+    }
+}
@@ -0,0 +1,169 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+/**
+ * Pre-rendered /SHOW responses. The games list and question lists are kept
+ * as encoded bytes until their version changes, so a /SHOW costs one array
+ * copy into the reply. Scoreboards change constantly, so a cached one is
+ * also reused while it is younger than a short staleness window; an idle
+ * game's scoreboard stays cached until someone scores. Binary protocol
+ * frames are cached alongside the text, under the same rules. Question
+ * lists of games loaded from a QuestionBank are rendered every time, so
+ * their text is not kept in memory.
+ */
+class RenderCache {
+    static final int DEFAULT_STALE_MILLIS = 250;
+
+    private long staleNanos;
+    private volatile Rendered games;
+    private volatile Rendered gamesFrame;
+    private ConcurrentHashMap<Game, Rendered> questions = new ConcurrentHashMap<Game, Rendered>();        // /SHOW questions
+    private ConcurrentHashMap<Game, Rendered> questionsById = new ConcurrentHashMap<Game, Rendered>();    // /SHOW questions gameID
+    private ConcurrentHashMap<Game, Rendered> scoreboards = new ConcurrentHashMap<Game, Rendered>();      // /SHOW scoreboard
+    private ConcurrentHashMap<Game, Rendered> scoreboardsById = new ConcurrentHashMap<Game, Rendered>();  // /SHOW scoreboard gameID
+    private ConcurrentHashMap<Game, Rendered> questionFrames = new ConcurrentHashMap<Game, Rendered>();   // binary, with or without gameID
+    private ConcurrentHashMap<Game, Rendered> scoreboardFrames = new ConcurrentHashMap<Game, Rendered>();
+
+    /**
+     * Constructor
+     * @param staleMillis how long a scoreboard may be served after it changed
+     */
+    public RenderCache(int staleMillis) {
+        this.staleNanos = staleMillis * 1000000L;
+    }
+
+    /**
+     * The games list
+     * @param list The games
+     * @param version Version of the list
+     * @param binary whether to encode a binary frame instead of text
+     * @return the encoded response
+     */
+    public byte[] games(List<Game> list, long version, boolean binary) {
+        Rendered r = binary ? gamesFrame : games;
+        if (r != null && r.version == version)
+            return r.bytes;
+        ArrayList<String> ids = new ArrayList<String>();
+        for (Game g : list)
+            ids.add(g.getId());
+        if (binary)
+            gamesFrame = r = render(version, out -> BinaryProtocol.games(out, ids));
+        else
+            games = r = render(version, out -> gameList(out, ids));
+        return r.bytes;
+    }
+
+    /**
+     * Render a games list from game IDs (the router gathers them from its shards)
+     * @param out Buffer to render into
+     * @param ids The game IDs
+     */
+    static void gameList(ResponseBuffer out, List<String> ids) {
+        out.appendLine("\033[35m-----------------");
+        out.appendLine("**Games**");
+        for (String id : ids)
+            out.appendLine(id);
+        out.appendLine("-----------------\033[0m");
+    }
+
+    /**
+     * A game's questions
+     * @param g The game
+     * @param byId whether the game was named in the command (changes the title)
+     * @return the encoded response
+     */
+    public byte[] questions(ChallengeResponseGame g, boolean byId) {
+        ConcurrentHashMap<Game, Rendered> cache = byId ? questionsById : questions;
+        long version = g.getQuestionsVersion();
+        Rendered r = cache.get(g);
+        if (r != null && r.version == version)
+            return r.bytes;
+        r = render(version, out -> {
+            out.appendLine("\033[35m-----------------");
+            out.appendLine(byId ? "**Questions (GameID " + g.getId() + ")**" : "**Questions**");
+            for (Question q : g.getQuestionList())
+                out.appendLine(q.getId() + ": " + q.getQuestion() + " (Points: " + q.getPoints() + ")");
+            out.appendLine("-----------------\033[0m");
+        });
+        if (!g.hasBankText()) // a bank's text stays in its file and its own bounded cache
+            cache.put(g, r);
+        return r.bytes;
+    }
+
+    /**
+     * A game's scoreboard, best first
+     * @param g The game
+     * @param byId whether the game was named in the command (changes the title)
+     * @return the encoded response, at most the staleness window out of date
+     */
+    public byte[] scoreboard(Game g, boolean byId) {
+        ConcurrentHashMap<Game, Rendered> cache = byId ? scoreboardsById : scoreboards;
+        long version = g.getScoreVersion(); // read before rendering, so a change during the render shows as a new version
+        Rendered r = cache.get(g);
+        if (r != null && (r.version == version || System.nanoTime() - r.renderedAt < staleNanos))
+            return r.bytes;
+        r = render(version, out -> {
+            out.appendLine("\033[35m-----------------");
+            out.appendLine(byId ? "**SCOREBOARD (GameID " + g.getId() + ")**" : "**SCOREBOARD**");
+            for (Map.Entry<String, Integer> entry : g.getTopScores(Integer.MAX_VALUE))
+                out.appendLine(entry.getKey() + ": " + entry.getValue());
+            out.appendLine("-----------------\033[0m");
+        });
+        cache.put(g, r);
+        return r.bytes;
+    }
+
+    /**
+     * A game's questions as a binary frame
+     * @param g The game
+     * @return the encoded frame
+     */
+    public byte[] questionsFrame(ChallengeResponseGame g) {
+        long version = g.getQuestionsVersion();
+        Rendered r = questionFrames.get(g);
+        if (r != null && r.version == version)
+            return r.bytes;
+        r = render(version, out -> BinaryProtocol.questions(out, g));
+        if (!g.hasBankText())
+            questionFrames.put(g, r);
+        return r.bytes;
+    }
+
+    /**
+     * A game's scoreboard as a binary frame, best first
+     * @param g The game
+     * @return the encoded frame, at most the staleness window out of date
+     */
+    public byte[] scoreboardFrame(Game g) {
+        long version = g.getScoreVersion();
+        Rendered r = scoreboardFrames.get(g);
+        if (r != null && (r.version == version || System.nanoTime() - r.renderedAt < staleNanos))
+            return r.bytes;
+        r = render(version, out -> BinaryProtocol.scores(out, g.getId(), g.getTopScores(Integer.MAX_VALUE)));
+        scoreboardFrames.put(g, r);
+        return r.bytes;
+    }
+
+    // render once into a fresh buffer and keep the bytes
+    private static Rendered render(long version, Consumer<ResponseBuffer> renderer) {
+        ResponseBuffer out = new ResponseBuffer();
+        renderer.accept(out);
+        return new Rendered(version, out.toByteArray());
+    }
+
+    /**
+     * An encoded response and the version it was rendered from
+     */
+    private static class Rendered {
+        private final long version;
+        private final long renderedAt = System.nanoTime();
+        private final byte[] bytes; // shared by every reply, never modified
+
+        Rendered(long version, byte[] bytes) {
+            this.version = version;
+            this.bytes = bytes;
+        }
+    }
+}
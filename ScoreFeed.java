@@ -0,0 +1,280 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+/**
+ * Live scoreboard for /WATCH. Score changes are collected per game as they
+ * happen; once per tick every game with subscribers and changes gets one
+ * update holding just the changed rows. The update is encoded once (per
+ * protocol in use) and the same bytes are queued to each subscriber.
+ * Sending happens off the tick thread, on a small fixed pool of writers
+ * that never wait for a subscriber that is behind: its updates stay
+ * queued until its connection has room. Each queue is bounded, so a client
+ * that doesn't read can't slow down scoring or other watchers; it is
+ * unsubscribed.
+ */
+class ScoreFeed implements GameListener {
+    static final int DEFAULT_TICK_MILLIS = 250;
+    private static final int MAX_ROWS = 50;     // changed rows per update, best first
+    private static final int BASELINE_ROWS = 10; // rows shown when a watch starts
+    private static final int OUTBOX_SIZE = 16;   // updates a subscriber may fall behind by
+
+    private ConcurrentHashMap<Game, Channel> channels = new ConcurrentHashMap<Game, Channel>();
+    private ConcurrentHashMap<ScoreboardClient, Subscriber> subscribers = new ConcurrentHashMap<ScoreboardClient, Subscriber>();
+    private ScheduledExecutorService ticker;
+    private ExecutorService senders; // write queued updates, one task per subscriber with something queued
+
+    // metrics
+    private AtomicInteger updates = new AtomicInteger();
+    private AtomicInteger dropped = new AtomicInteger();
+
+    /**
+     * Constructor
+     * @param tickMillis how often changes are sent out
+     */
+    public ScoreFeed(int tickMillis) {
+        ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "scoreboard-feed");
+            t.setDaemon(true);
+            return t;
+        });
+        senders = SessionExecutor.writers("scoreboard-feed-send", SessionExecutor.DEFAULT_WRITERS);
+        ticker.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Subscribe a client to a game's score changes (replacing any earlier watch)
+     * @param c The client
+     * @param g The game
+     */
+    public void watch(ScoreboardClient c, Game g) {
+        this.unwatch(c);
+        Subscriber s = new Subscriber(c, g);
+        subscribers.put(c, s);
+        channels.computeIfAbsent(g, k -> new Channel()).subscribers.add(s);
+    }
+
+    /**
+     * Stop sending updates to a client
+     * @param c The client
+     * @return whether the client was watching a game
+     */
+    public boolean unwatch(ScoreboardClient c) {
+        Subscriber s = subscribers.get(c);
+        return s != null && this.remove(s);
+    }
+
+    // take one subscription out of the tables (false if already gone)
+    private boolean remove(Subscriber s) {
+        if (!subscribers.remove(s.client, s))
+            return false;
+        Channel ch = channels.get(s.game);
+        if (ch != null)
+            ch.subscribers.remove(s);
+        return true;
+    }
+
+    /**
+     * Render the top of a game's scoreboard, as sent when a watch starts
+     * @param g The game
+     * @param out Buffer to append to
+     * @param binary whether to encode a binary frame instead of text
+     */
+    public void baseline(Game g, ResponseBuffer out, boolean binary) {
+        if (binary) {
+            BinaryProtocol.scores(out, g.getId(), g.getTopScores(BASELINE_ROWS));
+            return;
+        }
+        out.appendLine("\033[35m-----------------");
+        out.appendLine("**WATCHING " + g.getId() + " (top " + BASELINE_ROWS + ")**");
+        int rank = 1;
+        for (Map.Entry<String, Integer> e : g.getTopScores(BASELINE_ROWS))
+            out.appendLine(e.getKey() + ": " + e.getValue() + " (#" + rank++ + ")");
+        out.appendLine("-----------------\033[0m");
+    }
+
+    public void playerJoined(Game g, String player) {
+        Channel ch = channels.get(g);
+        if (ch != null && !ch.subscribers.isEmpty())
+            ch.dirty.putIfAbsent(player, 0);
+    }
+
+    public void questionAnswered(ChallengeResponseGame g, Question q, String player, int score) {
+        Channel ch = channels.get(g);
+        if (ch != null && !ch.subscribers.isEmpty())
+            ch.dirty.merge(player, score, Math::max); // several answers in one tick become one row
+    }
+
+    // send each game's coalesced changes to its watchers
+    private void tick() {
+        try {
+            for (Map.Entry<Game, Channel> e : channels.entrySet()) {
+                Channel ch = e.getValue();
+                if (ch.dirty.isEmpty())
+                    continue;
+                if (ch.subscribers.isEmpty()) {
+                    ch.dirty.clear();
+                    continue;
+                }
+                Game g = e.getKey();
+                List<Map.Entry<String, Integer>> rows = this.changes(ch);
+                int shown = Math.min(rows.size(), MAX_ROWS);
+                int[] ranks = new int[shown];
+                for (int i = 0; i < shown; i++)
+                    ranks[i] = g.getRank(rows.get(i).getKey());
+                byte[] text = null;
+                byte[] frame = null;
+                updates.incrementAndGet();
+                for (Subscriber s : ch.subscribers) {
+                    if (s.client.isBinary()) {
+                        if (frame == null) {
+                            ResponseBuffer out = new ResponseBuffer();
+                            BinaryProtocol.scoreUpdate(out, g.getId(), rows.size(), rows.subList(0, shown), ranks);
+                            frame = out.toByteArray();
+                        }
+                        this.offer(s, frame);
+                    }
+                    else {
+                        if (text == null)
+                            text = this.encode(g, rows, ranks);
+                        this.offer(s, text);
+                    }
+                }
+            }
+        } catch(RuntimeException ex) { // keep ticking
+            System.err.println(ex);
+        }
+    }
+
+    // take the changed rows, best first
+    private List<Map.Entry<String, Integer>> changes(Channel ch) {
+        ArrayList<Map.Entry<String, Integer>> rows = new ArrayList<Map.Entry<String, Integer>>();
+        for (Map.Entry<String, Integer> e : ch.dirty.entrySet())
+            if (ch.dirty.remove(e.getKey(), e.getValue())) // a newer score stays for the next tick
+                rows.add(Map.entry(e.getKey(), e.getValue()));
+        rows.sort(Comparator.comparing((Map.Entry<String, Integer> e) -> e.getValue()).reversed()
+                .thenComparing(Map.Entry::getKey));
+        return rows;
+    }
+
+    // render the changed rows once for every text subscriber
+    private byte[] encode(Game g, List<Map.Entry<String, Integer>> rows, int[] ranks) {
+        ResponseBuffer out = new ResponseBuffer();
+        out.appendLine("\033[35m-----------------");
+        out.appendLine("**SCORE UPDATE (GameID " + g.getId() + ")**");
+        int shown = ranks.length;
+        for (int i = 0; i < shown; i++) {
+            Map.Entry<String, Integer> e = rows.get(i);
+            out.appendLine(e.getKey() + ": " + e.getValue() + " (#" + ranks[i] + ")");
+        }
+        if (rows.size() > shown)
+            out.appendLine("... and " + (rows.size() - shown) + " more");
+        out.appendLine("-----------------\033[0m");
+        return out.toByteArray();
+    }
+
+    // queue an update; a subscriber that is too far behind is dropped
+    private void offer(Subscriber s, byte[] update) {
+        if (!s.outbox.offer(update) && this.remove(s)) {
+            s.overflowed = true;
+            dropped.incrementAndGet();
+        }
+        if (s.sending.compareAndSet(false, true))
+            senders.execute(() -> this.drain(s));
+    }
+
+    // write out everything queued for one subscriber, until its connection is full
+    private void drain(Subscriber s) {
+        while (true) {
+            byte[] update;
+            while ((update = s.pending != null ? s.pending : s.outbox.poll()) != null) {
+                s.pending = null;
+                try {
+                    if (!s.client.offerPush(update, () -> senders.execute(() -> this.drain(s)))) {
+                        s.pending = update;
+                        return; // still marked sending: drained again once the client catches up
+                    }
+                } catch(IOException e) {
+                    this.remove(s);
+                    s.outbox.clear();
+                }
+            }
+            if (s.overflowed) {
+                s.overflowed = false;
+                s.client.pushNotice("Too far behind, /WATCH stopped.");
+            }
+            s.sending.set(false);
+            if (s.outbox.isEmpty() || !s.sending.compareAndSet(false, true))
+                return; // nothing arrived after the last poll, or another sender took over
+        }
+    }
+
+    /**
+     * @return number of games' updates encoded so far
+     */
+    public int getUpdates() {
+        return updates.get();
+    }
+
+    /**
+     * @return number of subscribers dropped for falling behind
+     */
+    public int getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @param c The client
+     * @return whether the client is watching a game
+     */
+    public boolean isWatching(ScoreboardClient c) {
+        return subscribers.containsKey(c);
+    }
+
+    /**
+     * @return number of clients watching a game
+     */
+    public int getSubscribers() {
+        return subscribers.size();
+    }
+
+    @Override
+    public String toString() {
+        return "feed: watchers=" + getSubscribers() + " updates=" + getUpdates() + " dropped=" + getDropped();
+    }
+
+    /**
+     * Per game state: who is watching and what changed since the last tick
+     */
+    private static class Channel {
+        private Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+        private ConcurrentHashMap<String, Integer> dirty = new ConcurrentHashMap<String, Integer>(); // player -> latest score
+    }
+
+    /**
+     * One watching client and the updates not yet written to it
+     */
+    private static class Subscriber {
+        private ScoreboardClient client;
+        private Game game;
+        private ArrayBlockingQueue<byte[]> outbox = new ArrayBlockingQueue<byte[]>(OUTBOX_SIZE);
+        private AtomicBoolean sending = new AtomicBoolean();
+        private byte[] pending; // taken from the outbox but not written yet (only the sending task uses it)
+        private volatile boolean overflowed;
+
+        Subscriber(ScoreboardClient client, Game game) {
+            this.client = client;
+            this.game = game;
+        }
+    }
+}
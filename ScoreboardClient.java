@@ -1,19 +1,51 @@
-import java.util.Map;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.BufferedReader;
-import java.io.PrintWriter;
-import java.util.ArrayList;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+import java.nio.charset.StandardCharsets;
 /**
  * Collect all the Scoreboard Client classes in this file. Note that this file
  * MUST BE called ScoreboardClient.java
  */
 class ScoreboardClient implements Runnable {
-    private BufferedReader in;
-    private PrintWriter out;
+    private InputStream in;
+    private OutputStream out;
+    private ResponseBuffer direct = new ResponseBuffer(); // text sent outside of any command (MOTD, input errors), written by flush()
+    private ResponseBuffer reply = direct; // where the running command's output goes
+    private ReentrantLock writeLock = new ReentrantLock(); // replies and pushed updates are written whole
+    private ReentrantLock sessionLock = new ReentrantLock(); // commands and their completions run one at a time
+    private ArrayDeque<ReplySlot> replies = new ArrayDeque<ReplySlot>(); // one per command, in request order
+    private ArrayDeque<ReplySlot> queued = new ArrayDeque<ReplySlot>(); // commands waiting for earlier ones
+    private ArrayDeque<ResponseBuffer> spares = new ArrayDeque<ResponseBuffer>(); // reply buffers to reuse
+    private ResponseBuffer outgoing = new ResponseBuffer(); // complete replies not yet written
+    private ReplySlot current; // command running now (null if none)
+    private int running; // commands started whose reply isn't complete
+    private boolean exclusiveRunning; // one of them may change the session's state
+    private boolean draining; // in runQueued(), don't start commands from a nested call
+    private boolean corked; // hold complete replies back, more input is already here
+    private CompletableFuture<Void> backlog; // completes when the pipeline has room again (null if it has)
     private ScoreboardServer master;
     private String nick;
+    private String address; // remote host, for throttling
+    private Closeable connection; // closes the transport's connection (null if not set)
+    private Executor callbacks = Runnable::run; // finishes deferred commands (set by the transport)
+    private volatile boolean closed;
+    private volatile boolean quit; // left with /QUIT, the server has already let go of the client
+    private volatile long lastActivity = System.nanoTime(); // when the last command arrived
+    private volatile long writeStarted; // System.nanoTime() when the write in progress began, 0 if none
+    private volatile boolean binary; // speaking BinaryProtocol frames instead of text (after /PROTO binary)
+    private volatile boolean binaryInput; // the client's next command comes as a frame: switched when a /PROTO arrives, before it runs
     private int points; // client score
-    private ChallengeResponseGame currGame; // current game
+    private volatile ChallengeResponseGame currGame; // current game (read by the broadcaster too)
     private boolean loggedIn; // user currently logged in/registered
 
     /**
@@ -23,14 +55,54 @@ class ScoreboardClient implements Runnable {
      * @param nick Nick name string
      */
 
-    public ScoreboardClient(BufferedReader in, PrintWriter out, String nick) {
+    public ScoreboardClient(InputStream in, OutputStream out, String nick) {
         this.in = in;
         this.out = out;
         this.nick = nick;
+        this.address = nick.lastIndexOf(':') > 0 ? nick.substring(0, nick.lastIndexOf(':')) : nick; // initial nick is the remote address
         loggedIn = false;
         currGame = null;
     }
 
+    /**
+     * Set how the transport's connection is closed
+     * @param connection Closes the socket or connection
+     */
+    protected void setConnection(Closeable connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Set where deferred commands are finished: their reply written and the
+     * commands held back behind them started. Keeps that off the thread
+     * completing the work, e.g. a password hashing thread.
+     * @param callbacks A session thread or the connection's event loop
+     */
+    protected void setCallbackExecutor(Executor callbacks) {
+        this.callbacks = callbacks;
+    }
+
+    /**
+     * Close the connection. The transport notices and ends the session.
+     */
+    protected void close() {
+        closed = true;
+        if (connection == null)
+            return;
+        try {
+            connection.close();
+        } catch(IOException e) {
+            System.err.println(e);
+        }
+    }
+
+    /**
+     * @return System.nanoTime() of the last command (or of connecting)
+     */
+    protected long getLastActivity() {
+        return lastActivity;
+    }
+
     /**
      * Register chat server handler for callbacks
      */
@@ -39,23 +111,134 @@ class ScoreboardClient implements Runnable {
     }
 
     /**
-     * Display text to client
+     * Display text to client (buffered until flush())
      * @param text Text to be displayed
      */
     protected void send(String text) {
-        out.printf("%s\r\n", text);
+        reply.appendLine(text);
+    }
+
+    /**
+     * Write everything sent outside of a command (and any complete replies) in one go
+     */
+    protected void flush() {
+        sessionLock.lock();
+        try {
+            outgoing.append(direct);
+            direct.reset();
+            this.write();
+        } finally {
+            sessionLock.unlock();
+        }
+    }
+
+    /**
+     * Hold complete replies back while more commands are already buffered,
+     * so a pipelined batch is answered in one write. Uncorking writes them.
+     * @param corked true to hold replies, false to write them
+     */
+    protected void setCorked(boolean corked) {
+        sessionLock.lock();
+        try {
+            this.corked = corked;
+            if (!corked)
+                this.write();
+        } finally {
+            sessionLock.unlock();
+        }
+    }
+
+    // write the complete replies (called with the session lock held)
+    private void write() {
+        if (outgoing.size() == 0)
+            return;
+        writeLock.lock();
+        try {
+            master.getMetrics().bytesOut(outgoing.size());
+            writeStarted = System.nanoTime();
+            outgoing.writeTo(out);
+        } catch(IOException e) {
+            if (!closed)
+                System.err.println(e);
+        } finally {
+            writeStarted = 0;
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return System.nanoTime() when the socket write in progress began, 0
+     *         if none is (the server closes sessions whose writes stall)
+     */
+    protected long getWriteStarted() {
+        return writeStarted;
+    }
+
+    /**
+     * Write bytes that didn't come from a command (e.g. /WATCH updates),
+     * without mixing them into a reply being written
+     * @param data Encoded lines
+     */
+    protected void push(byte[] data) throws IOException {
+        if (out instanceof ConnectionOutputStream) // the non-blocking transport never blocks a writer by itself
+            ((ConnectionOutputStream) out).awaitRoom();
+        this.pushNow(data);
+    }
+
+    /**
+     * Like push(), but without waiting for a client that is behind: if the
+     * connection already holds more unread output than it allows, nothing
+     * is written and retry runs once it has room again. On a blocking
+     * socket the data is written; a write that stalls ends when the server
+     * closes the session.
+     * @param data Encoded lines
+     * @param retry Run (on another thread) when it's worth trying again
+     * @return false if the data wasn't written
+     */
+    protected boolean offerPush(byte[] data, Runnable retry) throws IOException {
+        if (out instanceof ConnectionOutputStream && !((ConnectionOutputStream) out).hasRoom(retry))
+            return false;
+        this.pushNow(data);
+        return true;
+    }
+
+    private void pushNow(byte[] data) throws IOException {
+        writeLock.lock();
+        try {
+            master.getMetrics().bytesOut(data.length);
+            writeStarted = System.nanoTime();
+            out.write(data);
+            out.flush();
+        } finally {
+            writeStarted = 0;
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Push a notice outside of any command, unless the client is too far
+     * behind to read it (see offerPush())
+     * @param text Text to be displayed after "*** "
+     */
+    protected void pushNotice(String text) {
+        try {
+            if (binary) {
+                ResponseBuffer frame = new ResponseBuffer();
+                BinaryProtocol.message(frame, BinaryProtocol.OP_NOTICE, text);
+                this.offerPush(frame.toByteArray(), () -> {});
+            }
+            else
+                this.offerPush(("\033[33m*** " + text + "\033[0m\r\n").getBytes(StandardCharsets.UTF_8), () -> {});
+        } catch(IOException e) {
+            System.err.println(e);
+        }
     }
 
     /**
      * Display the current scoreboard
      */
     protected void displayScoreboard() {
-        this.send("\033[35m-----------------");
-        this.send("**SCOREBOARD**");
-        currGame.getScores().entrySet().stream().forEach(entry ->
-                this.send(entry.getKey() + ": " + entry.getValue())
-        );
-        this.send("-----------------\033[0m");
+        reply.append(binary ? master.getRenderCache().scoreboardFrame(currGame) : master.getRenderCache().scoreboard(currGame, false));
     }
     
     /**
@@ -64,29 +247,17 @@ class ScoreboardClient implements Runnable {
     protected void displayScoreboard(String gameID) {
         Game temp = master.getGame(gameID);
         if(!(temp instanceof ChallengeResponseGame)) { // invalid gameID
-            this.send("\033[31m*** Invalid Game ID\033[0m");
+            this.error("Invalid Game ID");
             return;
         }
-        ChallengeResponseGame g = (ChallengeResponseGame) temp;
-        
-        this.send("\033[35m-----------------");
-        this.send("**SCOREBOARD (GameID " + gameID + ")**");
-        g.getScores().entrySet().stream().forEach(entry ->
-                this.send(entry.getKey() + ": " + entry.getValue())
-        );
-        this.send("-----------------\033[0m");
+        reply.append(binary ? master.getRenderCache().scoreboardFrame(temp) : master.getRenderCache().scoreboard(temp, true));
     }
 
     /**
      * Display all games
      */
     protected void displayGames() {
-        this.send("\033[35m-----------------");
-        this.send("**Games**");
-        ArrayList<Game> games = master.getGames();
-        for(Game g : games)
-            this.send(g.getId());
-        this.send("-----------------\033[0m");
+        reply.append(master.getRenderCache().games(master.getGames(), master.getGamesVersion(), binary));
     }
 
     /** 
@@ -94,12 +265,7 @@ class ScoreboardClient implements Runnable {
      * format: ID. question (points )
      */
     protected void displayQuestions() {
-        this.send("\033[35m-----------------");
-        this.send("**Questions**");
-        ArrayList<Question> questions = this.currGame.getQuestions();
-        for(Question q : questions)
-            this.send(q.getId() + ": " + q.getQuestion() + " (Points: " + q.getPoints() + ")");
-        this.send("-----------------\033[0m");
+        reply.append(binary ? master.getRenderCache().questionsFrame(currGame) : master.getRenderCache().questions(currGame, false));
     }
 
     /** 
@@ -110,17 +276,78 @@ class ScoreboardClient implements Runnable {
     protected void displayQuestions(String gameID) {
         Game temp = master.getGame(gameID);
         if(!(temp instanceof ChallengeResponseGame)) { // invalid gameID
-            this.send("\033[31m*** Invalid Game ID\033[0m");
+            this.error("Invalid Game ID");
             return;
         }
         ChallengeResponseGame g = (ChallengeResponseGame) temp;
-        
-        this.send("\033[35m-----------------");
-        this.send("**Questions (GameID " + gameID + ")**");
-        ArrayList<Question> questions = g.getQuestions();
-        for(Question q : questions)
-            this.send(q.getId() + ": " + q.getQuestion() + " (Points: " + q.getPoints() + ")");
-        this.send("-----------------\033[0m");
+        reply.append(binary ? master.getRenderCache().questionsFrame(g) : master.getRenderCache().questions(g, true));
+    }
+
+    /**
+     * Append encoded lines or frames to the reply (e.g. a reply relayed from a shard)
+     * @param data Encoded lines or frames
+     */
+    protected void sendBytes(byte[] data) {
+        reply.append(data);
+    }
+
+    /**
+     * @return whether the client speaks the binary protocol
+     */
+    protected boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * A /PROTO that is still queued behind other commands already applies
+     * to what the client sends after it
+     * @return whether the transport should read the client's next command as a binary frame
+     */
+    protected boolean isBinaryInput() {
+        return binaryInput;
+    }
+
+    /**
+     * Encode replies as binary frames (a shard running a command for a
+     * binary client of the router)
+     * @param binary true for frames, false for text
+     */
+    protected void setBinary(boolean binary) {
+        this.binary = binary;
+        this.binaryInput = binary;
+    }
+
+    /**
+     * @param gameID A game
+     * @return whether the client is playing that game (gets its announcements)
+     */
+    protected boolean inGame(String gameID) {
+        ChallengeResponseGame g = currGame;
+        return g != null && g.getId().equals(gameID);
+    }
+
+    /**
+     * @return the game the client is in, or null
+     */
+    protected ChallengeResponseGame getGame() {
+        return currGame;
+    }
+
+    /**
+     * Put the client in a game without the /JOIN checks (a shard running a
+     * command for a player the router says is in the game)
+     * @param g The game
+     */
+    protected void setGame(ChallengeResponseGame g) {
+        this.currGame = g;
+    }
+
+    /**
+     * @param line A line of input
+     * @return the command word as registered (e.g. "/JOIN" for "/join x"), or null if it isn't a command
+     */
+    static String commandOf(String line) {
+        return COMMANDS.verbOf(line);
     }
 
     /**
@@ -147,230 +374,831 @@ class ScoreboardClient implements Runnable {
          * /SHOW games|questions|scoreboard (gameID)
          * /ANSWER qID ans
          */
+        LineDecoder lines = new LineDecoder(master.getMaxLineLength());
         while(true) {
             /** get input **/
             String input = null;
+            Frame frame = null;
             try {
-                input = in.readLine(); // read line
+                if(binaryInput)
+                    frame = lines.readFrame(in); // read frame
+                else
+                    input = lines.readLine(in); // read line
+            }
+            catch (LineTooLongException e)
+            {
+                this.rejectLine(e);
+                break;
+            }
+            catch (BadFrameException e)
+            {
+                this.rejectFrame(e);
+                break;
             }
             catch (IOException e)
             {
-                System.err.println(e);
+                if(!closed) // not just closed by us
+                    System.err.println(e);
             }
             /** no input **/
-            if(input == null) // error reading or end of stream [probably closed window]
+            if(input == null && frame == null) // error reading or end of stream [probably closed window]
             {
-                //master.sendToAll("*** " + nick + "'s connection has dropped"); // send disconnect message to everyone
-                master.leave(this); // remove this from arraylist
+                this.handleDisconnect();
                 break;
             }
-            /** QUIT **/
-            if(input.toUpperCase().matches("/QUIT|QUIT") ) // disconnect
-            {
-                //master.sendToAll("*** " + nick + " has disconnected."); // send disconnect message to everyone
-                master.leave(this); // remove this from arraylist
+            this.setCorked(true); // replies to commands that arrived together go out in one write
+            if(!(frame != null ? this.handle(frame) : this.handle(input))) {
+                this.setCorked(false);
                 break;
             }
-            /** empty line **/
-            if(input.equals(""))
-                continue; // blank line
-            /** NICK **/
-            if(input.toUpperCase().startsWith("/NICK ")) { // user is requesting new nickname
-                if(loggedIn) { // already registered
-                    this.send("\033[31m*** ERROR: Cannot change nick after registering.\033[0m");
-                    continue;
-                }
-                if(currGame != null) { // currently in game
-                    this.send("\033[31m*** ERROR: Cannot change nick while in a game [[/LEAVE]].\033[0m");
-                    continue;
-                }
-                input = input.replaceFirst("(?i)/NICK ", ""); // remove command (case insensitive)
-                if(input.equals("")) { // no nick entered
-                    this.send("\033[31m*** /NICK new nickname\033[0m");
-                    continue;
-                }
-                if(input.contains(" ")) { // invalid nick
-                    this.send("\033[31m*** ERROR: Invalid nick\033[0m");
-                    continue;
-                }
-                if(!master.checkNick(input)) { // nickname not being used
-                    // master.sendToAll("*** " + nick + " is now known as " + input); // send to everyone (no sender)
-                    this.nick = input;
-                    this.send("\033[32m*** nick set to " + input + ".\033[0m");
-                }
-                else { // nick used - error message
-                    this.send("\033[31m*** ERROR: nick " + input + " is already taken.\033[0m"); // send error message to user only
-                }
-                continue;
+            if(!lines.hasBuffered())
+                this.setCorked(false);
+            CompletableFuture<?> full = this.getBacklog();
+            if(full != null) { // too many replies outstanding, stop reading until some are written
+                this.setCorked(false);
+                full.join();
             }
-            /** REGISTER **/
-            if(input.toUpperCase().startsWith("/REGISTER ")) { // user is requesting to register current nickname
-                if(loggedIn) { // user already logged in/registered
-                    this.send("\033[31m*** ERROR: Already Logged In.\033[0m");
-                    continue;
-                }
-                input = input.replaceFirst("(?i)/REGISTER ", "");
-                if(input.equals("")) { // no password entered
-                    this.send("\033[31m*** /REGISTER password\033[0m");
-                    continue;
-                }
-                if(master.registerNick(this.nick, input)) {// attempt to register nickname/password
-                    this.send("\033[32m*** " + this.nick  + " Registered.\033[0m");
-                    this.loggedIn = true;
-                }
-                else
-                    this.send("\033[31m*** ERROR: Issue registering nick.\033[0m");
-                continue;
+        }
+    }
+
+    /**
+     * The client sent a line over the length limit: tell it and leave. The
+     * transport closes the connection without reading the rest of the line.
+     * @param e The exception from the LineDecoder
+     */
+    protected void rejectLine(LineTooLongException e) {
+        master.getMetrics().lineRejected();
+        this.reject(e);
+    }
+
+    /**
+     * The client sent a binary frame over the length limit or one that
+     * can't be decoded: tell it and leave, as for a long line
+     * @param e The exception from the LineDecoder
+     */
+    protected void rejectFrame(BadFrameException e) {
+        master.getMetrics().frameRejected();
+        this.reject(e);
+    }
+
+    private void reject(IOException e) {
+        sessionLock.lock();
+        try {
+            this.error("ERROR: Input " + e.getMessage() + ", closing connection.");
+        } finally {
+            sessionLock.unlock();
+        }
+        this.flush();
+        master.leave(this);
+    }
+
+    /**
+     * Called when the connection drops without a /QUIT
+     */
+    protected void handleDisconnect() {
+        //master.sendToAll("*** " + nick + "'s connection has dropped"); // send disconnect message to everyone
+        if(!quit) // a pipelined /QUIT closes the connection after leaving
+            master.leave(this); // remove this from arraylist
+    }
+
+    /**
+     * Process a single line of input from the client. Shared by the blocking
+     * thread-per-connection loop above and the non-blocking transport.
+     * A line may start with "@tag " to have its reply preceded by
+     * "@tag length" (in bytes), for clients keeping several commands in flight.
+     * @param input The line received from the client
+     * @return false once the client has quit, true otherwise
+     */
+    protected boolean handle(String input) {
+        String tag = null;
+        if(input.length() > 1 && input.charAt(0) == '@') {
+            int space = input.indexOf(' ');
+            tag = input.substring(1, space == -1 ? input.length() : space);
+            input = space == -1 ? "" : input.substring(space + 1);
+        }
+        String line = input;
+        String verb = COMMANDS.verbOf(line);
+        boolean open = this.submit(verb, tag, () -> COMMANDS.dispatch(this, line));
+        if("/PROTO".equals(verb)) {
+            int space = line.indexOf(' ');
+            this.switchInput(space == -1 ? new String[0] : CommandDispatcher.split(line, space + 1, 1));
+        }
+        return open;
+    }
+
+    /**
+     * Process a single binary request, through the same handlers as text
+     * @param frame The decoded request
+     * @return false once the client has quit, true otherwise
+     */
+    protected boolean handle(Frame frame) {
+        if(frame.verb == null)
+            return this.submit(null, frame.tag, () -> { // a text client's unknown verb is ignored, but a program waits for its answer
+                this.error("ERROR: Unknown opcode");
+                return true;
+            });
+        boolean open = this.submit(frame.verb, frame.tag, () -> COMMANDS.dispatch(this, frame.verb, frame.args));
+        if("/PROTO".equals(frame.verb))
+            this.switchInput(frame.args);
+        return open;
+    }
+
+    // a /PROTO was received: read what follows it in the new protocol, even while the command waits its turn
+    private void switchInput(String[] args) {
+        Boolean mode = protocol(args);
+        if(mode != null)
+            binaryInput = mode;
+    }
+
+    // the protocol a /PROTO asks for: true for binary, false for text, null if neither
+    private static Boolean protocol(String[] args) {
+        String mode = args.length == 0 ? "" : args[0];
+        if(mode.equalsIgnoreCase("BINARY"))
+            return true;
+        return mode.equalsIgnoreCase("TEXT") ? false : null;
+    }
+
+    /*
+     * Pipelining: the transports hand over commands as they are decoded,
+     * without waiting for earlier replies. Every command gets a reply slot
+     * in arrival order and slots are written strictly in that order, as
+     * each one and all before it are complete. Commands that only read the
+     * session's state (SHARED) run while earlier SHARED ones are still
+     * finishing off the session thread (e.g. a shard round trip); any other
+     * command waits until everything before it is complete, and holds back
+     * all the ones after it, SHARED or not, until it is (an /ANSWER behind a
+     * /LOGIN that is still hashing must credit the nick the login sets).
+     * Held back commands are started by whichever thread completes the
+     * work they waited for.
+     */
+
+    // accept a command: queue its reply slot and run it as soon as it may
+    private boolean submit(String verb, String tag, BooleanSupplier command) {
+        sessionLock.lock();
+        try {
+            lastActivity = System.nanoTime();
+            ReplySlot s = new ReplySlot(verb, tag, binaryInput, !SHARED.contains(verb), command, spares.isEmpty() ? new ResponseBuffer() : spares.poll());
+            replies.add(s);
+            queued.add(s);
+            if(replies.size() >= MAX_PIPELINE && backlog == null)
+                backlog = new CompletableFuture<Void>();
+            return this.runQueued();
+        } finally {
+            sessionLock.unlock();
+        }
+    }
+
+    // start queued commands in order while nothing they depend on is running; false if one quit
+    private boolean runQueued() {
+        if(draining)
+            return true; // the outer call carries on
+        draining = true;
+        boolean open = true;
+        try {
+            while(open && !queued.isEmpty()) {
+                ReplySlot s = queued.peek();
+                if(s.exclusive ? running > 0 : exclusiveRunning)
+                    break;
+                queued.poll();
+                open = this.start(s);
             }
-            /** LOGIN **/
-            if(input.toUpperCase().startsWith("/LOGIN ")) { // user is attempting to login
-                if(loggedIn) { // user already logged in/registered
-                    this.send* /REGISTER password
-         * /LOGIN nick password
-                            *
-         * /JOIN gameID
-         * /LEAVE
-                            * /NICK nickname
-         * /SHOW games|questions|scoreboard (gameID)
-                            * /ANSWER qID ans("\033[31m*** ERROR: Already Logged In.\033[0m");
-                    continue;
-                }
-                input = input.replaceFirst("(?i)/LOGIN ", "");
-                if(input.equals("")) { // no details entered
-                    this.send("\033[31m*** /LOGIN nick password\033[0m");
-                    continue;
-                }
-                String acc[] = input.split(" ", 2); // separate nick and password
-                if(acc.length != 2 || acc[1].equals("")) { // didnt enter nick & password
-                    this.send("\033[31m*** /LOGIN nick password\033[0m");
-                    continue;
-                }
-
-                if(master.login(acc[0], acc[1])) { // attempt to login w/ user & pass
-                    this.send("\033[32m*** Success: Logged in as " + acc[0] + ".\033[0m");
-                    this.nick = acc[0];
-                    this.loggedIn = true;
-                }
+        } finally {
+            draining = false;
+        }
+        if(!open)
+            queued.clear();
+        return open;
+    }
+
+    // run one command with its output going to its slot
+    private boolean start(ReplySlot s) {
+        running++;
+        if(s.exclusive)
+            exclusiveRunning = true;
+        current = s;
+        reply = s.out;
+        boolean open = true;
+        RuntimeException failed = null;
+        try {
+            open = s.command.getAsBoolean();
+        } catch(RuntimeException e) {
+            failed = e;
+        } finally {
+            s.command = null;
+            current = null;
+            reply = direct;
+        }
+        if(!s.deferred)
+            this.complete(s); // also after a failure, so the commands behind it aren't held back for good
+        if(failed != null)
+            throw failed;
+        return open;
+    }
+
+    // a command's reply is final: write it and any complete ones after it, in order
+    private void complete(ReplySlot s) {
+        s.done = true;
+        running--;
+        if(s.exclusive)
+            exclusiveRunning = false;
+        master.getMetrics().command(s.verb, System.nanoTime() - s.start);
+        while(!replies.isEmpty() && replies.peek().done) {
+            ReplySlot next = replies.poll();
+            if(next.tag != null) { // the header tells the client which command this is and where its reply ends
+                if(next.binary)
+                    BinaryProtocol.tagged(outgoing, next.tag, next.out.size());
                 else
-                    this.send("\033[31m*** ERROR: Invalid Account Credentials.\033[0m");
-                continue;
+                    outgoing.appendLine("@" + next.tag + " " + next.out.size());
             }
-            /** SHOW [games, questions, scoreboard]**/
-            if(input.toUpperCase().startsWith("/SHOW ")) { // user is requesting to show something (games, questions or scoreboard)
-                input = input.replaceFirst("(?i)/SHOW ", ""); // remove command (case insensitive)
-                if(input.equals("")) { // no command entered
-                    this.send("\033[31m*** /SHOW games, questions, scoreboard (gameID)\033[0m");
-                    continue;
-                }
-                if(input.toUpperCase().startsWith("GAMES")) { // show games
-                    this.displayGames();
-                    continue;
-                }
-
-                String req[] = input.split(" ", 2); // separate potential gameID from request
-                boolean gameIDEntered = true;
-                if(req.length != 2 || req[1].equals("")) // didnt enter gameID
-                    gameIDEntered = false;
-
-                if(input.toUpperCase().startsWith("QUESTIONS")) { // show questions
-                    if(gameIDEntered) {
-                        this.displayQuestions(req[1]); // print w/ gameID
-                        continue;
-                    }
-                    if(currGame == null) { // not in a game
-                        this.send("\033[31m*** Must be in a game to use /SHOW questions\033[0m");
-                        continue;
-                    }
-                    this.displayQuestions();
-                    continue;
-                }
-                if(input.toUpperCase().startsWith("SCOREBOARD")) { // show scoreboard
-                    if(gameIDEntered) {
-                        this.displayScoreboard(req[1]); // print w/ gameID
-                        continue;
-                    }
-                    if(currGame == null) { // not in a game
-                        this.send("\033[31m*** Must be in a game to use /SHOW scoreboard\033[0m");
-                        continue;
-                    }
-                    this.displayScoreboard();
-                    continue;
-                }
-
-                this.send("\033[31m*** /SHOW games, questions, scoreboard (gameID)\033[0m");
-                continue;
+            outgoing.append(next.out);
+            next.out.reset();
+            if(spares.size() < MAX_SPARES)
+                spares.add(next.out);
+        }
+        if(backlog != null && replies.size() < MAX_PIPELINE) {
+            backlog.complete(null);
+            backlog = null;
+        }
+        if(!corked)
+            this.write();
+    }
+
+    /**
+     * Finish the current command asynchronously. Its reply is written when
+     * the work is done, after the replies to earlier commands; commands
+     * that depend on it wait for it. The reply is built on the session's
+     * callback executor, not on the thread that did the work.
+     * @param work Work the command waits for
+     * @param then Builds the reply from the work's result (or failure)
+     */
+    protected <T> void defer(CompletableFuture<T> work, BiConsumer<? super T, ? super Throwable> then) {
+        ReplySlot s = current;
+        s.deferred = true;
+        work.whenCompleteAsync((r, e) -> {
+            sessionLock.lock();
+            ReplySlot was = current; // not null only if the work was already done
+            current = s;
+            reply = s.out;
+            try {
+                then.accept(r, e);
+            } catch(RuntimeException ex) {
+                System.err.println(ex);
+            } finally {
+                current = was;
+                reply = was == null ? direct : was.out;
             }
-            /** JOIN **/
-            if(input.toUpperCase().startsWith("/JOIN ")) { // user is requesting to join a game
-                if(currGame != null) { // already in a game
-                    this.send("\033[31m*** You must leave your current game before joining a new one. [[/LEAVE]]\033[0m");
-                    continue;
-                }
-                input = input.replaceFirst("(?i)/JOIN ", ""); // remove command (case insensitive)
-                if(input.equals("")) { // no ID entered
-                    this.send("\033[31m*** /JOIN gameID\033[0m");
-                    continue;
-                }
-
-                Game temp = master.joinGame(input, this.nick);
-                if(temp instanceof ChallengeResponseGame) { // successfully joined game
-                    currGame = (ChallengeResponseGame) temp;
-                    this.send("\033[32m*** Joined " + input + "\033[0m");
-                }
-                else // failed to join game
-                    this.send("\033[31m*** Invalid Game ID\033[0m");
-                continue;
+            try {
+                this.complete(s);
+                if(!this.runQueued()) // a held back /QUIT ran
+                    this.close();
+            } catch(RuntimeException ex) { // a held back command failed: end the session as its transport would
+                System.err.println(ex);
+                this.close();
+            } finally {
+                sessionLock.unlock();
             }
-            /** LEAVE **/
-            if(input.toUpperCase().startsWith("/LEAVE")) // user is requseting to leave a game
-                if(currGame == null) // not in a game
-                    this.send("\033[31m*** You must join a game to leave a game. [[/JOIN ]]\033[0m");
-                else {
-                    this.send("\033[33m*** Left " + currGame.getId() + "\033[0m");
-                    currGame = null; // "leave" game (player remains in scoreboard - just can't answer questions
-                }
-            /** ANSWER **/
-            if(input.toUpperCase().startsWith("/ANSWER ")) { // user is requesting to answer a question
-                if(currGame == null) { // not in a game
-                    this.send("\033[31m*** You must be in a game to answer questions [[/JOIN]]\033[0m");
-                    continue;
-                }
-                input = input.replaceFirst("(?i)/ANSWER ", ""); // remove command (case insensitive)
-                if(input.equals("")) { // no ID entered
-                    this.send("\033[31m*** /ANSWER questionID answer\033[0m");
-                    continue;
-                }
-
-                String answer[] = input.split(" ", 2); // separate gameID and answer
-                if(answer.length != 2 || answer[1].equals("")) { // didnt enter gameID & answer
-                    this.send("\033[31m*** /ANSWER questionID answer\033[0m");
-                    continue;
-                }
-                
-                /* check if already answered/DNE
-                 * (answer performs this check but its responce is the same as getting the question wrong) */
-                ArrayList<Question> questions = currGame.getQuestions();
-                Question theQuestion = null;
-                for(Question q : questions)
-                    if(q.equals(answer[0])) {
-                        theQuestion = q;
-                        break;
-                    }
-                if(theQuestion == null) {
-                    this.send("\033[31m*** ERROR: Invalid Question\033[0m");
-                    continue;
-                } else if(theQuestion.isAnsweredBy(this.nick)) {
-                    this.send("\033[31m*** ERROR: Question already answered.\033[0m");
-                    continue;
-                }
-                
-                int score = currGame.answer(this.nick, answer[0], answer[1]); // submit answer
-                if(score == 0) // wrong answer
-                    this.send("\033[31m*** Wrong answer\033[0m");
-                else // correct answer
-                    this.send("\033[32m*** Correct! " + score + " points awarded.\033[0m");
+        }, callbacks);
+    }
+
+    /**
+     * @return null if the client may send more commands, otherwise a future
+     *         completing once enough replies were written; the transport
+     *         stops reading until then
+     */
+    protected CompletableFuture<?> getBacklog() {
+        sessionLock.lock();
+        try {
+            return backlog;
+        } finally {
+            sessionLock.unlock();
+        }
+    }
+
+    /**
+     * Display an error to the client
+     * @param text Text to be displayed after "*** "
+     */
+    protected void error(String text) {
+        if(binary)
+            BinaryProtocol.message(reply, BinaryProtocol.OP_ERROR, text);
+        else
+            this.send("\033[31m*** " + text + "\033[0m");
+    }
+
+    /**
+     * Display a success message to the client
+     * @param text Text to be displayed after "*** "
+     */
+    protected void success(String text) {
+        if(binary)
+            BinaryProtocol.message(reply, BinaryProtocol.OP_OK, text);
+        else
+            this.send("\033[32m*** " + text + "\033[0m");
+    }
+
+    /**
+     * Display a notice to the client
+     * @param text Text to be displayed after "*** "
+     */
+    protected void notice(String text) {
+        if(binary)
+            BinaryProtocol.message(reply, BinaryProtocol.OP_NOTICE, text);
+        else
+            this.send("\033[33m*** " + text + "\033[0m");
+    }
+
+    /** replies a session may have outstanding before its input is paused **/
+    private static final int MAX_PIPELINE = 64;
+    private static final int MAX_SPARES = 4;
+
+    /** commands that only read the session's state and may run alongside each other (see submit()) **/
+    private static final Set<String> SHARED = new HashSet<String>(Arrays.asList("/SHOW", "/ANSWER"));
+
+    /** command table shared by all clients (handlers are instance methods, so subclasses can override them) **/
+    private static final CommandDispatcher<ScoreboardClient> COMMANDS = new CommandDispatcher<ScoreboardClient>()
+            .register("/QUIT", 0, ScoreboardClient::quit)
+            .register("QUIT", 0, ScoreboardClient::quit)
+            .register("/NICK", 1, ScoreboardClient::nick)
+            .register("/REGISTER", 1, ScoreboardClient::register)
+            .register("/LOGIN", 2, ScoreboardClient::login)
+            .register("/SHOW", 2, ScoreboardClient::show)
+            .register("/JOIN", 1, ScoreboardClient::join)
+            .register("/LEAVE", 0, ScoreboardClient::leave)
+            .register("/ANSWER", 2, ScoreboardClient::answer)
+            .register("/WATCH", 1, ScoreboardClient::watch)
+            .register("/UNWATCH", 0, ScoreboardClient::unwatch)
+            .register("/PROTO", 1, ScoreboardClient::proto);
+
+    /**
+     * QUIT - disconnect
+     */
+    protected boolean quit(String[] args) {
+        quit = true;
+        //master.sendToAll("*** " + nick + " has disconnected."); // send disconnect message to everyone
+        master.leave(this); // remove this from arraylist
+        return false;
+    }
+
+    /**
+     * NICK nickname - request a new nickname
+     */
+    protected boolean nick(String[] args) {
+        if(loggedIn) { // already registered
+            this.error("ERROR: Cannot change nick after registering.");
+            return true;
+        }
+        if(currGame != null) { // currently in game
+            this.error("ERROR: Cannot change nick while in a game [[/LEAVE]].");
+            return true;
+        }
+        if(args.length == 0 || args[0].equals("")) { // no nick entered
+            this.error("/NICK new nickname");
+            return true;
+        }
+        String newNick = args[0];
+        if(newNick.contains(" ")) { // invalid nick
+            this.error("ERROR: Invalid nick");
+            return true;
+        }
+        if(master.changeNick(this, this.nick, newNick)) { // nickname wasn't being used, now reserved for us
+            // master.sendToAll("*** " + nick + " is now known as " + newNick); // send to everyone (no sender)
+            this.nick = newNick;
+            this.success("nick set to " + newNick + ".");
+        }
+        else { // nick used - error message
+            this.error("ERROR: nick " + newNick + " is already taken."); // send error message to user only
+        }
+        return true;
+    }
+
+    /**
+     * REGISTER password - register the current nickname
+     */
+    protected boolean register(String[] args) {
+        if(loggedIn) { // user already logged in/registered
+            this.error("ERROR: Already Logged In.");
+            return true;
+        }
+        if(args.length == 0 || args[0].equals("")) { // no password entered
+            this.error("/REGISTER password");
+            return true;
+        }
+        String requested = this.nick;
+        this.defer(master.registerNick(requested, args[0], address), (result, e) -> { // attempt to register nickname/password
+            if(result == AuthResult.OK) {
+                this.success(requested + " Registered.");
+                this.loggedIn = true;
+            }
+            else if(result == AuthResult.BUSY)
+                this.error("ERROR: Server busy, try again later.");
+            else
+                this.error("ERROR: Issue registering nick.");
+        });
+        return true;
+    }
+
+    /**
+     * LOGIN nick password - log in to a registered account
+     */
+    protected boolean login(String[] args) {
+        if(loggedIn) { // user already logged in/registered
+            this.error("ERROR: Already Logged In.");
+            return true;
+        }
+        if(args.length != 2 || args[1].equals("")) { // didnt enter nick & password
+            this.error("/LOGIN nick password");
+            return true;
+        }
+
+        String account = args[0];
+        this.defer(master.login(account, args[1], address), (result, e) -> { // attempt to login w/ user & pass
+            if(result == AuthResult.OK) {
+                this.success("Success: Logged in as " + account + ".");
+                master.claimNick(this, this.nick, account);
+                this.nick = account;
+                this.loggedIn = true;
+            }
+            else if(result == AuthResult.THROTTLED)
+                this.error("ERROR: Too many login attempts, try again later.");
+            else if(result == AuthResult.BUSY)
+                this.error("ERROR: Server busy, try again later.");
+            else
+                this.error("ERROR: Invalid Account Credentials.");
+        });
+        return true;
+    }
+
+    /**
+     * SHOW games|questions|scoreboard (gameID)
+     */
+    protected boolean show(String[] args) {
+        if(args.length == 0 || args[0].equals("")) { // no command entered
+            this.error("/SHOW games, questions, scoreboard (gameID)");
+            return true;
+        }
+        String what = args[0];
+        boolean gameIDEntered = args.length == 2 && !args[1].equals("");
+
+        if(what.equalsIgnoreCase("GAMES")) { // show games
+            this.displayGames();
+            return true;
+        }
+        if(what.equalsIgnoreCase("QUESTIONS")) { // show questions
+            if(gameIDEntered) {
+                this.displayQuestions(args[1]); // print w/ gameID
+                return true;
+            }
+            if(currGame == null) { // not in a game
+                this.error("Must be in a game to use /SHOW questions");
+                return true;
+            }
+            this.displayQuestions();
+            return true;
+        }
+        if(what.equalsIgnoreCase("SCOREBOARD")) { // show scoreboard
+            if(gameIDEntered) {
+                this.displayScoreboard(args[1]); // print w/ gameID
+                return true;
+            }
+            if(currGame == null) { // not in a game
+                this.error("Must be in a game to use /SHOW scoreboard");
+                return true;
+            }
+            this.displayScoreboard();
+            return true;
+        }
+
+        this.error("/SHOW games, questions, scoreboard (gameID)");
+        return true;
+    }
+
+    /**
+     * JOIN gameID - join a game
+     */
+    protected boolean join(String[] args) {
+        if(currGame != null) { // already in a game
+            this.error("You must leave your current game before joining a new one. [[/LEAVE]]");
+            return true;
+        }
+        if(args.length == 0 || args[0].equals("")) { // no ID entered
+            this.error("/JOIN gameID");
+            return true;
+        }
+
+        Game temp = master.joinGame(args[0], this.nick);
+        if(temp instanceof ChallengeResponseGame) { // successfully joined game
+            currGame = (ChallengeResponseGame) temp;
+            this.success("Joined " + args[0]);
+        }
+        else // failed to join game
+            this.error("Invalid Game ID");
+        return true;
+    }
+
+    /**
+     * LEAVE - leave the current game
+     */
+    protected boolean leave(String[] args) {
+        if(currGame == null) // not in a game
+            this.error("You must join a game to leave a game. [[/JOIN ]]");
+        else {
+            this.notice("Left " + currGame.getId());
+            currGame = null; // "leave" game (player remains in scoreboard - just can't answer questions
+        }
+        return true;
+    }
+
+    /**
+     * ANSWER questionID answer - answer a question in the current game
+     */
+    protected boolean answer(String[] args) {
+        if(currGame == null) { // not in a game
+            this.error("You must be in a game to answer questions [[/JOIN]]");
+            return true;
+        }
+        if(args.length != 2 || args[1].equals("")) { // didnt enter questionID & answer
+            this.error("/ANSWER questionID answer");
+            return true;
+        }
+
+        /* check if already answered/DNE
+         * (answer performs this check but its responce is the same as getting the question wrong) */
+        Question theQuestion = currGame.getQuestion(args[0]);
+        if(theQuestion == null) {
+            this.error("ERROR: Invalid Question");
+            return true;
+        } else if(theQuestion.isAnsweredBy(this.nick)) {
+            this.error("ERROR: Question already answered.");
+            return true;
+        }
+
+        int score = currGame.answer(this.nick, args[0], args[1]); // submit answer
+        master.getMetrics().answer(currGame, score != 0);
+        if(binary) // points as a number, 0 if wrong
+            BinaryProtocol.answered(reply, score);
+        else if(score == 0) // wrong answer
+            this.error("Wrong answer");
+        else // correct answer
+            this.success("Correct! " + score + " points awarded.");
+        return true;
+    }
+
+    /**
+     * WATCH gameID - receive score changes of a game as they happen
+     */
+    protected boolean watch(String[] args) {
+        if(args.length == 0 || args[0].equals("")) { // no ID entered
+            this.error("/WATCH gameID");
+            return true;
+        }
+        if(!master.watch(this, args[0])) {
+            this.error("Invalid Game ID");
+            return true;
+        }
+        this.success("Watching " + args[0] + " [[/UNWATCH]]");
+        master.getScoreFeed().baseline(master.getGame(args[0]), reply, binary);
+        return true;
+    }
+
+    /**
+     * PROTO text|binary - switch the wire format; the reply is the last
+     * thing sent in the old one
+     */
+    protected boolean proto(String[] args) {
+        Boolean mode = protocol(args);
+        if(mode == null) {
+            this.error("/PROTO text|binary");
+            return true;
+        }
+        this.success("Protocol " + (mode ? "binary" : "text"));
+        binary = mode; // input was already switched when the command arrived
+        return true;
+    }
+
+    /**
+     * UNWATCH - stop receiving score changes
+     */
+    protected boolean unwatch(String[] args) {
+        if(master.unwatch(this))
+            this.notice("No longer watching.");
+        else
+            this.error("You are not watching a game. [[/WATCH gameID]]");
+        return true;
+    }
+}
+
+/**
+ * Reusable byte buffer a client builds its response in. Text is encoded to
+ * UTF-8 directly into the buffer, so a response with many lines costs one
+ * socket write (and one TLS flush) instead of one per line. Binary protocol
+ * frames are built in place the same way.
+ */
+class ResponseBuffer {
+    private static final int INITIAL_SIZE = 1024;
+    private static final int KEEP_SIZE = 64 * 1024; // larger buffers are dropped after use
+    private static final int FRAME_LENGTH_BYTES = 4; // frames up to 256 MB
+
+    private byte[] buf = new byte[INITIAL_SIZE];
+    private int count;
+
+    /**
+     * Append text followed by CRLF
+     * @param text Text to append
+     */
+    public void appendLine(String text) {
+        append(text);
+        ensure(2);
+        buf[count++] = '\r';
+        buf[count++] = '\n';
+    }
+
+    /**
+     * Append text encoded as UTF-8
+     * @param text Text to append
+     */
+    public void append(String text) {
+        int len = text.length();
+        ensure(len);
+        for (int i = 0; i < len; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) { // ASCII, the common case
+                if (count == buf.length)
+                    ensure(len - i);
+                buf[count++] = (byte) c;
                 continue;
             }
+            ensure(4 + len - i);
+            if (c < 0x800) {
+                buf[count++] = (byte) (0xC0 | (c >> 6));
+                buf[count++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, text.charAt(++i));
+                buf[count++] = (byte) (0xF0 | (cp >> 18));
+                buf[count++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buf[count++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buf[count++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) { // unpaired surrogate
+                buf[count++] = '?';
+            } else {
+                buf[count++] = (byte) (0xE0 | (c >> 12));
+                buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[count++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    /**
+     * Append the contents of another buffer
+     * @param other Buffer to copy from (unchanged)
+     */
+    public void append(ResponseBuffer other) {
+        ensure(other.count);
+        System.arraycopy(other.buf, 0, buf, count, other.count);
+        count += other.count;
+    }
+
+    /**
+     * Append raw bytes
+     * @param b bytes to append
+     */
+    public void append(byte[] b) {
+        ensure(b.length);
+        System.arraycopy(b, 0, buf, count, b.length);
+        count += b.length;
+    }
+
+    /**
+     * Append an unsigned LEB128 varint (7 bits a byte, low bits first)
+     * @param value Value to append, treated as unsigned
+     */
+    public void appendVarint(long value) {
+        ensure(10);
+        while ((value & ~0x7FL) != 0) {
+            buf[count++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
         }
+        buf[count++] = (byte) value;
+    }
+
+    /**
+     * Append a binary protocol string: varint byte length, then UTF-8
+     * @param text Text to append
+     */
+    public void appendField(String text) {
+        appendVarint(utf8Length(text));
+        append(text);
+    }
+
+    /**
+     * Start a binary protocol frame. The length is filled in by endFrame().
+     * @param op Opcode
+     * @return position to pass to endFrame()
+     */
+    public int beginFrame(int op) {
+        int start = count;
+        ensure(FRAME_LENGTH_BYTES + 1);
+        count += FRAME_LENGTH_BYTES;
+        buf[count++] = (byte) op;
+        return start;
+    }
+
+    /**
+     * Finish a frame: write its length (opcode and fields) as a padded
+     * 4 byte varint, so the frame needn't be built twice
+     * @param start Position returned by beginFrame()
+     */
+    public void endFrame(int start) {
+        int length = count - start - FRAME_LENGTH_BYTES;
+        for (int i = 0; i < FRAME_LENGTH_BYTES - 1; i++)
+            buf[start + i] = (byte) (((length >>> (7 * i)) & 0x7F) | 0x80);
+        buf[start + FRAME_LENGTH_BYTES - 1] = (byte) ((length >>> (7 * (FRAME_LENGTH_BYTES - 1))) & 0x7F);
+    }
+
+    // bytes append(String) will produce for text
+    private static int utf8Length(String text) {
+        int len = text.length();
+        int bytes = len;
+        for (int i = 0; i < len; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80)
+                continue;
+            if (c < 0x800)
+                bytes += 1;
+            else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(text.charAt(i + 1))) {
+                bytes += 2; // 4 bytes for two chars
+                i++;
+            } else if (!Character.isSurrogate(c)) // an unpaired surrogate becomes '?'
+                bytes += 2;
+        }
+        return bytes;
+    }
+
+    /**
+     * Copy out the buffered bytes (e.g. to send the same text to many clients)
+     * @return the bytes
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf, count);
+    }
+
+    /**
+     * @return number of bytes buffered
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Write the buffered bytes, flush the stream and empty the buffer
+     * @param out Stream to write to
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        try {
+            out.write(buf, 0, count);
+            out.flush();
+        } finally {
+            reset();
+        }
+    }
+
+    /**
+     * Empty the buffer
+     */
+    public void reset() {
+        count = 0;
+        if (buf.length > KEEP_SIZE) // don't hold on to the memory of one huge scoreboard
+            buf = new byte[INITIAL_SIZE];
+    }
+
+    private void ensure(int extra) {
+        if (count + extra <= buf.length)
+            return;
+        byte[] bigger = new byte[Math.max(buf.length * 2, count + extra)];
+        System.arraycopy(buf, 0, bigger, 0, count);
+        buf = bigger;
+    }
+}
+
+/**
+ * A command's place in a session's pipeline and the reply it builds
+ */
+class ReplySlot {
+    final String verb;        // for metrics (null if not a command)
+    final String tag;         // client's tag, null if untagged
+    final boolean binary;     // protocol the command arrived in, which its reply header uses
+    final boolean exclusive;  // may change the session's state
+    final ResponseBuffer out;
+    final long start = System.nanoTime();
+    BooleanSupplier command;  // until started
+    boolean deferred;         // finishing off the session thread
+    boolean done;             // reply is final
+
+    ReplySlot(String verb, String tag, boolean binary, boolean exclusive, BooleanSupplier command, ResponseBuffer out) {
+        this.verb = verb;
+        this.tag = tag;
+        this.binary = binary;
+        this.exclusive = exclusive;
+        this.command = command;
+        this.out = out;
     }
 }
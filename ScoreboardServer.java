@@ -1,41 +1,91 @@
 import java.util.Random;
 import javax.crypto.SecretKeyFactory;
 import java.util.Arrays;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import javax.crypto.spec.PBEKeySpec;
 import java.security.spec.KeySpec;
 import javax.net.ssl.SSLServerSocket;
 import java.security.SecureRandom;
-import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLContext;
-import java.security.KeyStore;
-import java.io.InputStream;
-import java.io.FileInputStream;
+import java.io.File;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.SSLSocket;
 import java.io.BufferedReader;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 /**
  * Collect all the Scoreboard Server classes in this file. Note that this file
  * MUST BE called ScoreboardServer.java
  */
 public class ScoreboardServer {
     private static String MOTD = "\033[32mWelcome\033[0m";
-    private ArrayList<ScoreboardClient> clients = new ArrayList<ScoreboardClient>();
-    private ArrayList<Account> accounts = new ArrayList<Account>();
-    private ArrayList<Game> games;
-    private KeyManagerFactory kmf;
+    private Set<ScoreboardClient> clients = ConcurrentHashMap.newKeySet();
+    private NickRegistry nicks = new NickRegistry(); // live session nicks and registered accounts
+    private CopyOnWriteArrayList<Game> games; // read on every command, changed rarely
+    private AtomicInteger gamesVersion = new AtomicInteger(); // bumped when the list changes
+    static final String DEFAULT_TLS_PROTOCOLS = "TLSv1.3,TLSv1.2";
+    static final int DEFAULT_TLS_SESSION_CACHE = 20000;
+    static final int DEFAULT_TLS_SESSION_TIMEOUT = 24 * 60 * 60;
+    // preferred first: AES-GCM is hardware accelerated almost everywhere, ChaCha20 is the fallback for clients without it
+    private static final String[] AEAD_CIPHER_SUITES = {
+        "TLS_AES_128_GCM_SHA256", "TLS_AES_256_GCM_SHA384", "TLS_CHACHA20_POLY1305_SHA256",
+        "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
+        "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384", "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384",
+        "TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_SHA256", "TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256"
+    };
+    static final int DEFAULT_MAX_CONNECTIONS = 10000;
+    static final int DEFAULT_MAX_CONNECTIONS_PER_ADDRESS = 100;
+    static final int DEFAULT_HANDSHAKE_TIMEOUT_SECONDS = 10;
+    static final int DEFAULT_IDLE_TIMEOUT_SECONDS = 15 * 60;
+    static final int WRITE_TIMEOUT_SECONDS = 10; // a socket write to a client that stopped reading
+    private ReloadingKeyManager keys;
+    private SSLContext sc; // built once by setupTLS, shared by every connection
+    private SSLParameters tlsParameters;
+    private String transport = "blocking"; // blocking (thread per client) or nio
+    private int eventLoops = Runtime.getRuntime().availableProcessors();
+    private ExecutorService sessions; // runs ScoreboardClient sessions of the blocking transport
+    private AuthService auth = new AuthService(Math.max(1, Runtime.getRuntime().availableProcessors() / 2), 256);
+    private Journal journal; // null unless persistence is enabled
+    private ScoreFeed feed; // /WATCH updates, null until setupFeed
+    private Broadcaster broadcaster; // announcements, null until setupBroadcast
+    private ServerMetrics metrics = new ServerMetrics(this);
+    private RenderCache renders = new RenderCache(RenderCache.DEFAULT_STALE_MILLIS); // encoded /SHOW responses
+    private ConnectionLimiter limits = new ConnectionLimiter(DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS_PER_ADDRESS);
+    private int maxLineLength = LineDecoder.DEFAULT_MAX_LINE;
+    private int handshakeTimeoutMillis = DEFAULT_HANDSHAKE_TIMEOUT_SECONDS * 1000;
+    private ScheduledExecutorService reaper; // closes idle sessions and unfinished handshakes
     /**
      * Create a new Scoreboard Server
      * @param games ArrayList of Game
      */
     public ScoreboardServer(ArrayList<Game> games) {
-        this.games = games;
+        this.games = new CopyOnWriteArrayList<Game>(games);
     }
 
     /**
@@ -44,25 +94,396 @@ public class ScoreboardServer {
      * @param password A string containing the password for the keystore.jks file
      */
     protected void setupSSL(String keystorePath, String password) {
-        // Load the key store
-        KeyStore ks = null;
+        setupSSL(keystorePath, password, password);
+    }
+
+    /**
+     * Set up SSL with the default TLS settings
+     * @param keystorePath Path of the keystore (JKS or PKCS12)
+     * @param storePassword Password of the keystore
+     * @param keyPassword Password of the private key in it
+     */
+    protected void setupSSL(String keystorePath, String storePassword, String keyPassword) {
         try {
-            ks = KeyStore.getInstance("JKS");
-            InputStream ksIs = new FileInputStream(keystorePath);
-            ks.load(ksIs, password.toCharArray());
-        } catch (java.security.KeyStoreException | IOException | java.security.NoSuchAlgorithmException | java.security.cert.CertificateException e) {
+            keys = new ReloadingKeyManager(new File(keystorePath), storePassword, keyPassword);
+        } catch(Exception e) {
             System.err.println(e);
             return;
         }
+        setupTLS(DEFAULT_TLS_PROTOCOLS, DEFAULT_TLS_SESSION_CACHE, DEFAULT_TLS_SESSION_TIMEOUT, 0);
+    }
 
-        // create a keymanager that uses the keys from the keystore
+    /**
+     * Build the SSLContext every connection is made from. Sessions are kept
+     * so returning clients can resume them (TLS 1.2 session IDs, TLS 1.3
+     * tickets) instead of doing a full handshake, and the server's order of
+     * AEAD cipher suites is preferred over the client's.
+     * @param protocols Comma separated protocol versions, e.g. "TLSv1.3,TLSv1.2"
+     * @param sessionCacheSize Number of sessions kept for resumption (0 for no limit)
+     * @param sessionTimeout Seconds a session can be resumed for
+     * @param reloadSeconds Seconds between checks for a changed keystore (0 to never reload)
+     */
+    protected void setupTLS(String protocols, int sessionCacheSize, int sessionTimeout, int reloadSeconds) {
+        if (keys == null)
+            return; // setupSSL failed
+        SSLContext context;
         try {
-            kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-            kmf.init(ks, "password".toCharArray());
-        } catch(java.security.KeyStoreException | java.security.NoSuchAlgorithmException | java.security.UnrecoverableKeyException e) {
+            context = SSLContext.getInstance("TLS");
+            context.init(new KeyManager[] {keys}, null, new SecureRandom());
+        } catch(java.security.NoSuchAlgorithmException | java.security.KeyManagementException e) {
             System.err.println(e);
             return;
         }
+        SSLSessionContext cache = context.getServerSessionContext();
+        cache.setSessionCacheSize(sessionCacheSize);
+        cache.setSessionTimeout(sessionTimeout);
+
+        SSLParameters supported = context.getSupportedSSLParameters();
+        SSLParameters params = context.getDefaultSSLParameters();
+        params.setProtocols(supportedOnly(protocols.split("\\s*,\\s*"), supported.getProtocols()));
+        params.setCipherSuites(supportedOnly(AEAD_CIPHER_SUITES, supported.getCipherSuites()));
+        params.setUseCipherSuitesOrder(true);
+        keys.watch(reloadSeconds);
+        this.sc = context;
+        this.tlsParameters = params;
+    }
+
+    // the wanted names this JVM supports, in the wanted order
+    private static String[] supportedOnly(String[] wanted, String[] supported) {
+        List<String> have = Arrays.asList(supported);
+        ArrayList<String> out = new ArrayList<String>();
+        for (String name : wanted)
+            if (have.contains(name))
+                out.add(name);
+        return out.toArray(new String[0]);
+    }
+
+    /**
+     * @return the settings applied to every TLS connection
+     */
+    protected SSLParameters getTLSParameters() {
+        return tlsParameters;
+    }
+
+    /**
+     * Select the transport used to serve clients
+     * @param transport "blocking" for one thread per client, "nio" for the selector based front end
+     * @param eventLoops number of event loop threads used by the nio transport
+     */
+    protected void setTransport(String transport, int eventLoops) {
+        this.transport = transport;
+        this.eventLoops = eventLoops;
+    }
+
+    /**
+     * Select how blocking transport sessions are run
+     * @param mode "virtual" for a virtual thread per session, "platform" for a bounded thread pool
+     * @param maxThreads maximum number of platform session threads
+     */
+    protected void setSessionExecutor(String mode, int maxThreads) {
+        this.sessions = SessionExecutor.create(mode, maxThreads);
+    }
+
+    /**
+     * Size the pool that does password hashing for /LOGIN and /REGISTER
+     * @param threads number of hashing threads
+     * @param queueSize number of requests allowed to wait (more are answered "busy")
+     */
+    protected void setAuthPool(int threads, int queueSize) {
+        this.auth = new AuthService(threads, queueSize);
+    }
+
+    /**
+     * Limit the number of open connections. At the global limit the server
+     * stops accepting, so new connections wait in the listen backlog;
+     * connections over the per-address limit are closed right away.
+     * @param max Open connections in total
+     * @param perAddress Open connections from one IP address
+     */
+    protected void setConnectionLimits(int max, int perAddress) {
+        limits = new ConnectionLimiter(max, perAddress);
+    }
+
+    /**
+     * Limit the length of a line of client input; a longer line closes the connection
+     * @param bytes Longest accepted line in bytes
+     */
+    protected void setMaxLineLength(int bytes) {
+        this.maxLineLength = bytes;
+    }
+
+    /**
+     * @return longest accepted line of client input, in bytes
+     */
+    protected int getMaxLineLength() {
+        return maxLineLength;
+    }
+
+    /**
+     * Close connections that stall or go quiet. Call before starting the
+     * server. Sessions whose socket write has not finished after
+     * WRITE_TIMEOUT_SECONDS are closed too, so the thread writing is freed.
+     * @param handshakeSeconds Time allowed to complete the TLS handshake
+     * @param idleSeconds Time a session may go without sending a command (0 for no limit); /WATCH subscribers are exempt
+     */
+    protected void setupTimeouts(int handshakeSeconds, int idleSeconds) {
+        handshakeTimeoutMillis = handshakeSeconds * 1000;
+        reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "scoreboard-reaper");
+            t.setDaemon(true);
+            return t;
+        });
+        long writeNanos = TimeUnit.SECONDS.toNanos(WRITE_TIMEOUT_SECONDS);
+        reaper.scheduleWithFixedDelay(() -> this.reapStalled(writeNanos), 1, 1, TimeUnit.SECONDS);
+        if (idleSeconds <= 0)
+            return;
+        long idleNanos = TimeUnit.SECONDS.toNanos(idleSeconds);
+        long period = Math.max(1, Math.min(idleSeconds / 4, 30));
+        reaper.scheduleWithFixedDelay(() -> this.reapIdle(idleNanos), period, period, TimeUnit.SECONDS);
+    }
+
+    // close every session that has been quiet for too long; the transport then removes it from clients
+    private void reapIdle(long idleNanos) {
+        long now = System.nanoTime();
+        for (ScoreboardClient c : clients) {
+            if (now - c.getLastActivity() < idleNanos || (feed != null && feed.isWatching(c)))
+                continue;
+            metrics.sessionReaped();
+            c.close();
+        }
+    }
+
+    // close every session stuck in a socket write; closing the socket ends the write
+    private void reapStalled(long writeNanos) {
+        long now = System.nanoTime();
+        for (ScoreboardClient c : clients) {
+            long started = c.getWriteStarted();
+            if (started == 0 || now - started < writeNanos)
+                continue;
+            metrics.sessionReaped();
+            c.close();
+        }
+    }
+
+    /**
+     * Run a task once the handshake timeout has passed
+     * @param task The task
+     */
+    protected void afterHandshakeTimeout(Runnable task) {
+        if (reaper != null)
+            reaper.schedule(task, handshakeTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the open connection limits
+     */
+    protected ConnectionLimiter getConnectionLimiter() {
+        return limits;
+    }
+
+    /**
+     * Load saved accounts and game state from dataDir and log every change
+     * there from now on. Call before starting the server.
+     * @param dataDir Directory for the journal and snapshots
+     * @param snapshotSeconds Seconds between snapshots
+     */
+    protected void setupPersistence(String dataDir, int snapshotSeconds) {
+        Journal j = new Journal(new File(dataDir), this);
+        try {
+            long n = j.recover();
+            System.out.println("Restored " + n + " records from " + dataDir);
+            j.start(snapshotSeconds);
+        } catch(IOException e) {
+            System.err.println(e);
+            return;
+        }
+        for(Game g : games)
+            g.addListener(j);
+        this.journal = j;
+    }
+
+    /**
+     * Set how long a rendered scoreboard may be reused after scores change
+     * @param staleMillis Staleness window in milliseconds (0 re-renders on every change)
+     */
+    protected void setRenderCache(int staleMillis) {
+        renders = new RenderCache(staleMillis);
+    }
+
+    /**
+     * @return the cache of rendered /SHOW responses
+     */
+    protected RenderCache getRenderCache() {
+        return renders;
+    }
+
+    /**
+     * Publish the metrics through JMX and, if a port is given, over HTTP on localhost
+     * @param port Port of the plaintext endpoint (0 for none)
+     */
+    protected void setupMetrics(int port) {
+        metrics.registerMBean();
+        if (port > 0)
+            metrics.startHttp(port);
+    }
+
+    /**
+     * @return the server's metrics
+     */
+    protected ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return number of connected clients
+     */
+    protected int getClientCount() {
+        return clients.size();
+    }
+
+    /**
+     * Start the /WATCH feed
+     * @param tickMillis how often watchers are sent the score changes
+     */
+    protected void setupFeed(int tickMillis) {
+        feed = new ScoreFeed(tickMillis);
+        for (Game g : games)
+            g.addListener(feed);
+    }
+
+    /**
+     * Start the announcement fan-out
+     * @param queueSize Announcements a session may fall behind by
+     * @param overflow What happens to a session further behind: drop-newest, drop-oldest or disconnect
+     */
+    protected void setupBroadcast(int queueSize, String overflow) {
+        Broadcaster.Overflow policy;
+        try {
+            policy = Broadcaster.overflow(overflow);
+        } catch(IllegalArgumentException e) {
+            System.err.println("Unknown overflow policy " + overflow + ", using drop-oldest");
+            policy = Broadcaster.Overflow.DROP_OLDEST;
+        }
+        broadcaster = new Broadcaster(clients, queueSize, policy);
+    }
+
+    /**
+     * @return the announcement fan-out, or null if it isn't running
+     */
+    protected Broadcaster getBroadcaster() {
+        return broadcaster;
+    }
+
+    /**
+     * Announce something to every connected client. Returns without waiting for the writes.
+     * @param text The message
+     */
+    protected void sendToAll(String text) {
+        if (broadcaster != null)
+            broadcaster.announce(text);
+    }
+
+    /**
+     * Announce something to the clients playing a game. Returns without waiting for the writes.
+     * @param gameID The game
+     * @param text The message
+     */
+    protected void sendToGame(String gameID, String text) {
+        if (broadcaster != null)
+            broadcaster.announce(gameID, text);
+    }
+
+    /**
+     * Read operator commands from a stream (e.g. System.in) on a thread of
+     * their own: "/ANNOUNCE text" to everyone, "/ANNOUNCE #gameID text" to a game
+     * @param in The stream
+     */
+    protected void startConsole(InputStream in) {
+        Thread t = new Thread(() -> {
+            try (BufferedReader console = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = console.readLine()) != null)
+                    if (CONSOLE.verbOf(line.trim()) != null)
+                        CONSOLE.dispatch(this, line.trim());
+                    else if (!line.trim().isEmpty())
+                        System.out.println("Commands: /ANNOUNCE text, /ANNOUNCE #gameID text");
+            } catch(IOException e) {
+                System.err.println(e);
+            }
+        }, "scoreboard-console");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /** operator commands read by startConsole() **/
+    private static final CommandDispatcher<ScoreboardServer> CONSOLE = new CommandDispatcher<ScoreboardServer>()
+            .register("/ANNOUNCE", 2, ScoreboardServer::announce);
+
+    /**
+     * ANNOUNCE (#gameID) text - send a message to everyone or to one game's players
+     */
+    private boolean announce(String[] args) {
+        if (args.length == 0 || args[0].isEmpty()) {
+            System.out.println("/ANNOUNCE (#gameID) text");
+            return true;
+        }
+        if (!args[0].startsWith("#")) {
+            this.sendToAll(args.length == 1 ? args[0] : args[0] + " " + args[1]);
+            System.out.println("Announced to " + clients.size() + " clients");
+            return true;
+        }
+        String gameID = args[0].substring(1);
+        if (args.length == 1 || args[1].isEmpty())
+            System.out.println("/ANNOUNCE #gameID text");
+        else {
+            this.sendToGame(gameID, args[1]);
+            System.out.println("Announced to the players of " + gameID);
+        }
+        return true;
+    }
+
+    /**
+     * @return the /WATCH feed, or null if it isn't running
+     */
+    protected ScoreFeed getScoreFeed() {
+        return feed;
+    }
+
+    /**
+     * Called when a client wants a game's score changes pushed to it
+     * @param c The client
+     * @param gameID ID of the game
+     * @return false if there is no such game (or no feed)
+     */
+    protected boolean watch(ScoreboardClient c, String gameID) {
+        Game g = this.getGame(gameID);
+        if (g == null || feed == null)
+            return false;
+        feed.watch(c, g);
+        return true;
+    }
+
+    /**
+     * Called when a client no longer wants score changes
+     * @param c The client
+     * @return whether the client was watching a game
+     */
+    protected boolean unwatch(ScoreboardClient c) {
+        return feed != null && feed.unwatch(c);
+    }
+
+    /**
+     * @return the journal, or null if persistence is off
+     */
+    protected Journal getJournal() {
+        return journal;
+    }
+
+    /**
+     * @return the authentication service (for its metrics)
+     */
+    protected AuthService getAuthService() {
+        return auth;
     }
 
     /**
@@ -70,15 +491,16 @@ public class ScoreboardServer {
      * @param SSLPort int containing SSL port number
      */
     protected void startServer(int SSLPort) {
-        SSLContext sc = null;
-        try {
-            sc = SSLContext.getInstance("TLSv1.2");
-            sc.init(kmf.getKeyManagers(), null, new SecureRandom());
-        } catch(NullPointerException | java.security.NoSuchAlgorithmException | java.security.KeyManagementException e) {
-            System.err.println(e);
+        if (sc == null) {
+            System.err.println("TLS is not set up, call setupSSL first");
             return;
         }
-        this.handleTLS(SSLPort, sc);
+        if (reaper == null)
+            setupTimeouts(DEFAULT_HANDSHAKE_TIMEOUT_SECONDS, DEFAULT_IDLE_TIMEOUT_SECONDS);
+        if(transport.equalsIgnoreCase("nio"))
+            new NioTransport(this, sc, eventLoops).listen(SSLPort);
+        else
+            this.handleTLS(SSLPort, sc);
     }
 
     /**
@@ -90,67 +512,188 @@ public class ScoreboardServer {
         SSLServerSocket server;
         try {
             server = (SSLServerSocket) sc.getServerSocketFactory().createServerSocket(port);
+            server.setSSLParameters(tlsParameters);
         } catch(Exception e) {
             System.err.println(e);
             return;
         }
 
-        BufferedReader in = null;
-        PrintWriter out = null;
+        if(sessions == null)
+            sessions = SessionExecutor.create("virtual", SessionExecutor.DEFAULT_MAX_THREADS);
+
         while (true) {
-            SSLSocket clientSocket = null;
+            SSLSocket clientSocket;
+            try {
+                limits.awaitSlot(); // at the limit, leave new connections in the backlog
+            } catch(InterruptedException e) {
+                return;
+            }
             try {
                 // accept connection
                 clientSocket = (SSLSocket) server.accept();
-
-                // extract streams
-                in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                out = new PrintWriter(clientSocket.getOutputStream(), true);
+                metrics.connectionAccepted();
             }
             catch (IOException e) {
+                limits.releaseSlot();
+                if (server.isClosed())
+                    return;
                 System.err.println(e);
-                return;
+                ConnectionLimiter.pause(); // e.g. out of file descriptors: give closing sessions a moment
+                continue;
+            }
+
+            InetAddress address = clientSocket.getInetAddress();
+            if (!limits.open(address)) { // too many from this address
+                limits.releaseSlot();
+                metrics.connectionRefused();
+                closeQuietly(clientSocket);
+                continue;
+            }
+
+            // handshake and session run on the session thread, so a slow client can't hold up accept
+            try {
+                sessions.execute(() -> this.serve(clientSocket));
+            } catch(RejectedExecutionException e) { // every session thread busy
+                metrics.connectionRefused();
+                closeQuietly(clientSocket); // no message: writing would run the TLS handshake on this thread
+                limits.close(address);
             }
+        }
+    }
+
+    /**
+     * Run one connection of the blocking transport: handshake, then the
+     * client session until it quits, drops or is closed by the reaper
+     * @param socket The accepted socket
+     */
+    private void serve(SSLSocket socket) {
+        InputStream in;
+        OutputStream out;
+        try {
+            socket.setSoTimeout(handshakeTimeoutMillis);
+            long started = System.nanoTime();
+            socket.startHandshake(); // would otherwise happen on the first write, the MOTD below
+            metrics.handshake(System.nanoTime() - started, socket.getSession());
+            socket.setSoTimeout(0); // from here on, idle sessions are closed by the reaper
+            // extract streams
+            in = new CountingInputStream(socket.getInputStream(), metrics); // split into lines by the client's LineDecoder
+            out = socket.getOutputStream(); // ScoreboardClient writes whole responses, no buffering needed
+        } catch(IOException e) {
+            metrics.handshakeFailed();
+            closeQuietly(socket);
+            limits.close(socket.getInetAddress());
+            return;
+        }
+
+        // start session
+        ScoreboardClient client = this.connect(in, out, socket.getRemoteSocketAddress().toString());
+        client.setConnection(socket);
+        client.setCallbackExecutor(this::runCallback);
+        try {
+            client.run();
+        } finally {
+            client.close();
+            limits.close(socket.getInetAddress());
+        }
+    }
 
-            // start thread
-            ScoreboardClient client = new ScoreboardClient(in, out, clientSocket.getRemoteSocketAddress().toString());
-            client.send(MOTD);
-            Thread t = new Thread(client);
+    // finish a deferred command of a blocking transport session on a session thread
+    private void runCallback(Runnable task) {
+        try {
+            sessions.execute(task);
+        } catch(RejectedExecutionException e) { // every session thread busy, but the reply mustn't be lost
+            Thread t = new Thread(task, "scoreboard-callback");
+            t.setDaemon(true);
             t.start();
+        }
+    }
 
-            // register callback
-            client.registerCallback(this);
-            clients.add(client);
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch(IOException e) {
+            System.err.println(e);
         }
     }
 
+    /**
+     * Create the session object for a new connection
+     * @param in Input stream (null when the transport feeds lines itself)
+     * @param out Output stream
+     * @param address Remote address of the client
+     * @return the client
+     */
+    protected ScoreboardClient newClient(InputStream in, OutputStream out, String address) {
+        return new ScoreboardClient(in, out, address);
+    }
+
+    /**
+     * Set up a newly connected client: greet it, register the callback and
+     * add it to the list of clients. Used by every transport.
+     * @param in Input stream (null when the transport feeds lines itself)
+     * @param out Output stream
+     * @param address Remote address of the client, used as initial nick
+     * @return the new client
+     */
+    protected ScoreboardClient connect(InputStream in, OutputStream out, String address) {
+        ScoreboardClient client = this.newClient(in, out, address);
+        // register callback
+        client.registerCallback(this);
+        client.send(MOTD);
+        client.flush();
+
+        clients.add(client);
+        nicks.reserve(address, client); // initial nick is the (unique) remote address
+        return client;
+    }
+
     /** 
-     * Attempt to register nick name (succeeds if nick isn't already taken)
+     * Attempt to register nick name (succeeds if nick isn't already taken).
+     * The password is hashed on the authentication pool.
      * @param nick The requested nickname
      * @param password The requested password
-     * @return boolean whether or not the registration was successful
-     */
-    public boolean registerNick(String nick, String password) {
-        for(Account acc : accounts) // double check all registered accounts [[should have already been checked when first choosing nick name]]
-            if(acc.getNick().equals(nick))
-                return false;
-        accounts.add(new Account(nick, password));
-        System.out.println("New Account Registered: " + nick); // log newly registered accounts
-        return true;
+     * @param address Address of the requesting client (for throttling)
+     * @return OK if registered, completed once hashing is done
+     */
+    public CompletableFuture<AuthResult> registerNick(String nick, String password, String address) {
+        if(nicks.isRegistered(nick)) // double check all registered accounts [[should have already been checked when first choosing nick name]]
+            return CompletableFuture.completedFuture(AuthResult.FAILED);
+        return auth.createAccount(nick, password, address).thenApply(acc -> {
+            if(acc == null) // throttled or hashing queue full
+                return AuthResult.BUSY;
+            if(!nicks.addAccount(acc)) // atomic: only one registration of a nick wins
+                return AuthResult.FAILED;
+            if(journal != null)
+                journal.accountRegistered(acc);
+            System.out.println("New Account Registered: " + nick); // log newly registered accounts
+            return AuthResult.OK;
+        });
     }
 
     /** 
-     * Attempt to login
+     * Attempt to login. The password is checked on the authentication pool.
      * @param nick The account's nickname
      * @param password The account's password
-     * @return boolean whether or not login was successful
+     * @param address Address of the requesting client (for throttling)
+     * @return OK if the passwords match, completed once hashing is done
      */
-    public boolean login(String nick, String password) {
-        for(Account acc : accounts) // check all registered accounts
-            if(acc.getNick().equals(nick)) // account found
-                return acc.checkPass(password); // return whether or not the passwords match
+    public CompletableFuture<AuthResult> login(String nick, String password, String address) {
+        return auth.login(nicks.getAccount(nick), nick, password, address);
+    }
 
-        return false; // no nick found
+    /**
+     * Add an account loaded from disk
+     * @param acc The account
+     */
+    protected void restoreAccount(Account acc) {
+        nicks.addAccount(acc);
+    }
+
+    /**
+     * @return all registered accounts
+     */
+    protected Collection<Account> getAccounts() {
+        return nicks.getAccounts();
     }
 
     /**
@@ -159,14 +702,28 @@ public class ScoreboardServer {
      * @return boolean whether or not the nick is in use
      */
     public boolean checkNick(String nick) {
-        for(ScoreboardClient c : clients) // loop through all chat handlers (make sure name isn't used by a current user - registered or not)
-            if(c.getNick().equals(nick))
-                return true;
-        for(Account acc : accounts) // check all registered accounts
-            if(acc.getNick().equals(nick))
-                return true;
+        return nicks.isTaken(nick); // used by a current user (registered or not) or a registered account
+    }
 
-        return false;
+    /**
+     * Attempt to change a client's nick (succeeds if the new nick isn't in use)
+     * @param c The client
+     * @param from The client's current nick
+     * @param to The requested nick
+     * @return boolean whether or not the nick was changed
+     */
+    public boolean changeNick(ScoreboardClient c, String from, String to) {
+        return nicks.rename(c, from, to);
+    }
+
+    /**
+     * Give a client that just logged in its account's nick
+     * @param c The client
+     * @param from The client's current nick
+     * @param account The account's nick
+     */
+    public void claimNick(ScoreboardClient c, String from, String account) {
+        nicks.claim(c, from, account);
     }
 
     /**
@@ -174,14 +731,15 @@ public class ScoreboardServer {
      * @param c Disconnecting client
      */
     public void leave(ScoreboardClient c) {
-        int i = clients.indexOf(c);
-        synchronized(System.out) {
-            if (i != -1) {
-                System.out.print("Client disconnected. ");
-                clients.remove(c);
-            }
-            System.out.println(clients.size()+" clients remaining.");
-        }
+        nicks.release(c.getNick(), c);
+        this.unwatch(c);
+        if (broadcaster != null)
+            broadcaster.forget(c);
+        // no lock: a single println keeps the line intact and doesn't pin virtual threads
+        if (clients.remove(c))
+            System.out.println("Client disconnected. " + clients.size() + " clients remaining.");
+        else
+            System.out.println(clients.size() + " clients remaining.");
     }
 
     /**
@@ -213,11 +771,178 @@ public class ScoreboardServer {
      * Called when trying to get a list of all games
      * @return all Games
      */
-    protected ArrayList<Game> getGames() {
+    protected List<Game> getGames() {
         return this.games;
     }
+
+    /**
+     * Add a game while the server is running
+     * @param g The game
+     */
+    protected void addGame(Game g) {
+        if (feed != null)
+            g.addListener(feed);
+        if (journal != null)
+            g.addListener(journal);
+        games.add(g);
+        gamesVersion.incrementAndGet();
+    }
+
+    /**
+     * Changes whenever a game is added
+     * @return the current games list version
+     */
+    protected int getGamesVersion() {
+        return gamesVersion.get();
+    }
+}
+/**
+ * Caps on open connections: a global number of slots, taken before accept
+ * and given back when the connection closes, and a count per remote address.
+ */
+class ConnectionLimiter {
+    private Semaphore slots;
+    private int perAddress;
+    private ConcurrentHashMap<InetAddress, Integer> byAddress = new ConcurrentHashMap<InetAddress, Integer>();
+    private AtomicInteger open = new AtomicInteger();
+
+    /**
+     * Constructor
+     * @param max Open connections in total
+     * @param perAddress Open connections from one address
+     */
+    public ConnectionLimiter(int max, int perAddress) {
+        this.slots = new Semaphore(max);
+        this.perAddress = perAddress;
+    }
+
+    /**
+     * Wait until a connection may be accepted
+     */
+    public void awaitSlot() throws InterruptedException {
+        slots.acquire();
+    }
+
+    /**
+     * Give back a slot taken by awaitSlot() that didn't become a connection
+     */
+    public void releaseSlot() {
+        slots.release();
+    }
+
+    /**
+     * Count a new connection against its address
+     * @param address Remote address
+     * @return false if the address already has its maximum (nothing is counted then)
+     */
+    public boolean open(InetAddress address) {
+        boolean[] ok = {false};
+        byAddress.compute(address, (k, n) -> {
+            int count = n == null ? 0 : n;
+            if (count >= perAddress)
+                return n;
+            ok[0] = true;
+            return count + 1;
+        });
+        if (ok[0])
+            open.incrementAndGet();
+        return ok[0];
+    }
+
+    /**
+     * A connection counted by open() closed: release its address count and slot
+     * @param address Remote address
+     */
+    public void close(InetAddress address) {
+        byAddress.computeIfPresent(address, (k, n) -> n == 1 ? null : n - 1);
+        open.decrementAndGet();
+        slots.release();
+    }
+
+    /**
+     * @return number of open connections
+     */
+    public int getOpen() {
+        return open.get();
+    }
+
+    /**
+     * Back off after a failed accept
+     */
+    static void pause() {
+        try {
+            Thread.sleep(100);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+/**
+ * Creates the executor that runs blocking transport sessions. Prefers a
+ * virtual thread per session (JDK 21+, looked up reflectively so the server
+ * still runs on older JDKs) and falls back to a bounded platform thread pool.
+ */
+class SessionExecutor {
+    static final int DEFAULT_MAX_THREADS = 10000;
+    static final int DEFAULT_WRITERS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Create a session executor
+     * @param mode "virtual" or "platform"
+     * @param maxThreads maximum number of platform threads (ignored for virtual threads)
+     * @return the executor
+     */
+    static ExecutorService create(String mode, int maxThreads) {
+        if (mode.equalsIgnoreCase("virtual")) {
+            try {
+                Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) m.invoke(null);
+            } catch(ReflectiveOperationException e) {
+                System.err.println("Virtual threads unavailable on this JVM, using " + maxThreads + " platform threads");
+            }
+        }
+        // no queue: a session is long lived, so rather than wait behind others it is rejected when the pool is full
+        AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                r -> new Thread(r, "scoreboard-session-" + count.incrementAndGet()));
+    }
+
+    /**
+     * Create a fixed pool for writing queued output to sessions, one task
+     * per session with something to send. Tasks must not wait for a slow
+     * client (see ScoreboardClient.offerPush()): a session that is behind
+     * keeps its output queued and is retried once it has caught up.
+     * @param name Thread name prefix
+     * @param threads Number of threads
+     * @return the executor
+     */
+    static ExecutorService writers(String name, int threads) {
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
 }
 class Password {
+    // SecretKeyFactory isn't thread safe, so each hashing thread keeps its own instead of calling getInstance per hash
+    private static final ThreadLocal<SecretKeyFactory> FACTORY = ThreadLocal.withInitial(() -> {
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+        } catch (java.security.NoSuchAlgorithmException e) {
+            return null;
+        }
+    });
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (java.security.NoSuchAlgorithmException e) {
+            return null;
+        }
+    });
+
     /**
      * Returns the password hash using the supplied salt (PKCS5 based)
      * @param password the password to be hashed
@@ -227,17 +952,36 @@ class Password {
     public static byte[] calculateHash(String password, byte[] salt) {
         KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, 65536, 128);
         try {
-            SecretKeyFactory kf = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+            SecretKeyFactory kf = FACTORY.get();
+            if (kf == null)
+                return salt;
             return kf.generateSecret(spec).getEncoded();
-        } catch (java.security.NoSuchAlgorithmException | java.security.spec.InvalidKeySpecException e) {
+        } catch (java.security.spec.InvalidKeySpecException e) {
             return salt;
         }
     }
+
+    /**
+     * Returns a cheap salted digest of the password, used only to recognise a
+     * password that was verified with calculateHash moments ago
+     * @param password the password to be hashed
+     * @param salt the salt to be used to compute the hash
+     * @return the digest
+     */
+    public static byte[] quickHash(String password, byte[] salt) {
+        MessageDigest md = DIGEST.get();
+        md.reset();
+        md.update(salt);
+        return md.digest(password.getBytes(StandardCharsets.UTF_8));
+    }
 }
 class Account {
     private byte[] salt;
     private byte[] passwordHash;
     private String nick;
+    private static final long VERIFIED_TTL = 10 * 60 * 1000000000L; // remember a verified password for 10 minutes
+    private volatile byte[] verified; // quickHash of the last password that passed checkPass
+    private volatile long verifiedUntil;
 
     /**
      * constructor
@@ -265,7 +1009,32 @@ class Account {
      * @return whether or not the passwords match
      */
     protected boolean checkPass(String pass) {
-        return Arrays.equals(this.passwordHash, Password.calculateHash(pass, this.salt));
+        boolean ok = Arrays.equals(this.passwordHash, Password.calculateHash(pass, this.salt));
+        if (ok) {
+            this.verified = Password.quickHash(pass, this.salt);
+            this.verifiedUntil = System.nanoTime() + VERIFIED_TTL;
+        }
+        return ok;
+    }
+
+    /**
+     * check the password against the recently verified one, without PBKDF2
+     * @param pass the password to check
+     * @return true if it matches a password verified within the last few minutes
+     */
+    protected boolean checkCachedPass(String pass) {
+        byte[] v = this.verified;
+        if (v == null || System.nanoTime() - this.verifiedUntil > 0)
+            return false;
+        return MessageDigest.isEqual(v, Password.quickHash(pass, this.salt));
+    }
+
+    protected byte[] getSalt() {
+        return this.salt;
+    }
+
+    protected byte[] getPasswordHash() {
+        return this.passwordHash;
     }
 
     /**
@@ -0,0 +1,336 @@
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.net.ssl.SSLSession;
+import com.sun.net.httpserver.HttpServer;
+/**
+ * Counters and latency histograms for the whole server: connections, TLS
+ * handshakes, every command, password hashing, bytes in and out, answers
+ * per game, plus the numbers the auth pool, journal, broadcaster and /WATCH feed keep
+ * themselves. Recording is a LongAdder or histogram increment, so it is
+ * always on.
+ *
+ * All values are exposed under the same names through JMX (as one MBean,
+ * scoreboard:type=Server) and as "name value" lines from an HTTP endpoint
+ * bound to localhost. Counters only ever go up; rates are the difference
+ * between two reads. Times are in microseconds.
+ */
+class ServerMetrics implements DynamicMBean {
+    private ScoreboardServer server;
+    private LongAdder accepted = new LongAdder();
+    private LongAdder refused = new LongAdder();
+    private LongAdder reaped = new LongAdder();
+    private LongAdder longLines = new LongAdder();
+    private LongAdder badFrames = new LongAdder();
+    private LongAdder handshakeFailures = new LongAdder();
+    private LatencyHistogram handshakes = new LatencyHistogram();
+    private LongAdder resumptions = new LongAdder();
+    private LongAdder bytesIn = new LongAdder();
+    private LongAdder bytesOut = new LongAdder();
+    private ConcurrentHashMap<String, LatencyHistogram> commands = new ConcurrentHashMap<String, LatencyHistogram>(); // verb as registered -> histogram
+    private ConcurrentHashMap<String, LatencyHistogram> commandsByName = new ConcurrentHashMap<String, LatencyHistogram>(); // QUIT and /QUIT share one
+    private ConcurrentHashMap<Game, LongAdder[]> answers = new ConcurrentHashMap<Game, LongAdder[]>(); // {correct, wrong}
+    private HttpServer http;
+
+    /**
+     * Constructor
+     * @param server The server whose other components are included
+     */
+    public ServerMetrics(ScoreboardServer server) {
+        this.server = server;
+    }
+
+    public void connectionAccepted() {
+        accepted.increment();
+    }
+
+    /**
+     * Record a finished TLS handshake
+     * @param nanos time from accept to a finished TLS handshake
+     * @param session The negotiated session
+     */
+    public void handshake(long nanos, SSLSession session) {
+        handshakes.record(nanos);
+        // a resumed session was created by an earlier handshake
+        if (session.getCreationTime() < System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(nanos) - 1)
+            resumptions.increment();
+    }
+
+    /**
+     * A connection was closed right after accept (per-address limit, no session thread)
+     */
+    public void connectionRefused() {
+        refused.increment();
+    }
+
+    /**
+     * An idle session was closed by the reaper
+     */
+    public void sessionReaped() {
+        reaped.increment();
+    }
+
+    /**
+     * A session was closed for sending a line over the length limit
+     */
+    public void lineRejected() {
+        longLines.increment();
+    }
+
+    /**
+     * A session was closed for sending an oversized or malformed binary frame
+     */
+    public void frameRejected() {
+        badFrames.increment();
+    }
+
+    public void handshakeFailed() {
+        handshakeFailures.increment();
+    }
+
+    /**
+     * @param n plaintext bytes received from a client
+     */
+    public void bytesIn(long n) {
+        bytesIn.add(n);
+    }
+
+    /**
+     * @param n plaintext bytes sent to a client
+     */
+    public void bytesOut(long n) {
+        bytesOut.add(n);
+    }
+
+    /**
+     * Record a handled command
+     * @param verb The command word as registered (null for unknown commands)
+     * @param nanos time from receiving the line to writing the reply
+     */
+    public void command(String verb, long nanos) {
+        String key = verb == null ? "other" : verb;
+        LatencyHistogram h = commands.get(key);
+        if (h == null)
+            h = commands.computeIfAbsent(key, k -> commandsByName.computeIfAbsent(metricName(k), n -> new LatencyHistogram()));
+        h.record(nanos);
+    }
+
+    /**
+     * Record an /ANSWER
+     * @param g The game
+     * @param correct whether points were awarded
+     */
+    public void answer(Game g, boolean correct) {
+        LongAdder[] a = answers.get(g);
+        if (a == null)
+            a = answers.computeIfAbsent(g, k -> new LongAdder[] {new LongAdder(), new LongAdder()});
+        a[correct ? 0 : 1].increment();
+    }
+
+    // "/ANSWER" -> "answer"
+    private static String metricName(String verb) {
+        return (verb.startsWith("/") ? verb.substring(1) : verb).toLowerCase();
+    }
+
+    /**
+     * Read every metric
+     * @return metric name -> value, in a stable order
+     */
+    public LinkedHashMap<String, Long> snapshot() {
+        LinkedHashMap<String, Long> m = new LinkedHashMap<String, Long>();
+        m.put("sessions.active", (long) server.getClientCount());
+        m.put("sessions.reaped", reaped.sum());
+        m.put("sessions.line_too_long", longLines.sum());
+        m.put("sessions.bad_frame", badFrames.sum());
+        m.put("connections.accepted", accepted.sum());
+        m.put("connections.refused", refused.sum());
+        m.put("connections.open", (long) server.getConnectionLimiter().getOpen());
+        m.put("tls.handshake.failures", handshakeFailures.sum());
+        histogram(m, "tls.handshake", handshakes);
+        long resumed = resumptions.sum();
+        long total = handshakes.getCount();
+        m.put("tls.handshake.full", total - resumed);
+        m.put("tls.handshake.resumed", resumed);
+        m.put("tls.resumption.ratio_pct", total == 0 ? 0 : resumed * 100 / total);
+        m.put("bytes.in", bytesIn.sum());
+        m.put("bytes.out", bytesOut.sum());
+        ArrayList<String> names = new ArrayList<String>(commandsByName.keySet());
+        names.sort(null);
+        for (String name : names)
+            histogram(m, "command." + name, commandsByName.get(name));
+        for (Game g : server.getGames()) {
+            LongAdder[] a = answers.get(g);
+            m.put("game." + g.getId() + ".players", (long) g.getPlayers().size());
+            m.put("game." + g.getId() + ".answers.correct", a == null ? 0 : a[0].sum());
+            m.put("game." + g.getId() + ".answers.wrong", a == null ? 0 : a[1].sum());
+        }
+
+        AuthService auth = server.getAuthService();
+        m.put("auth.requests", auth.getRequests());
+        m.put("auth.cached", auth.getCacheHits());
+        m.put("auth.throttled", auth.getThrottled());
+        m.put("auth.rejected", auth.getRejected());
+        m.put("auth.queue", (long) auth.getQueueDepth());
+        m.put("auth.latency.mean_us", auth.getMeanLatencyMicros()); // queue wait + hashing
+        histogram(m, "auth.hash", auth.getHashTime());
+
+        Journal journal = server.getJournal();
+        if (journal != null) {
+            m.put("journal.records", journal.getRecords());
+            m.put("journal.batches", journal.getBatches());
+            m.put("journal.fsync.mean_us", journal.getMeanFsyncMicros());
+            m.put("journal.queue", (long) journal.getQueueDepth());
+        }
+        Broadcaster broadcaster = server.getBroadcaster();
+        if (broadcaster != null) {
+            m.put("broadcast.messages", broadcaster.getMessages());
+            m.put("broadcast.deliveries", broadcaster.getDeliveries());
+            m.put("broadcast.dropped", broadcaster.getDropped());
+            m.put("broadcast.disconnected", broadcaster.getDisconnected());
+        }
+        ScoreFeed feed = server.getScoreFeed();
+        if (feed != null) {
+            m.put("feed.watchers", (long) feed.getSubscribers());
+            m.put("feed.updates", (long) feed.getUpdates());
+            m.put("feed.dropped", (long) feed.getDropped());
+        }
+        return m;
+    }
+
+    private static void histogram(Map<String, Long> m, String name, LatencyHistogram h) {
+        m.put(name + ".count", h.getCount());
+        m.put(name + ".mean_us", h.getMean() / 1000);
+        m.put(name + ".p50_us", h.getPercentile(50) / 1000);
+        m.put(name + ".p99_us", h.getPercentile(99) / 1000);
+        m.put(name + ".p999_us", h.getPercentile(99.9) / 1000);
+        m.put(name + ".max_us", h.getMax() / 1000);
+    }
+
+    /**
+     * @return every metric as a "name value" line
+     */
+    public String render() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> e : snapshot().entrySet())
+            sb.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+        return sb.toString();
+    }
+
+    /**
+     * Register with the platform MBean server as scoreboard:type=Server
+     */
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("scoreboard:type=Server"));
+        } catch(Exception e) {
+            System.err.println(e);
+        }
+    }
+
+    /**
+     * Serve the metrics as plain text on http://127.0.0.1:port/metrics
+     * @param port TCP port (only reachable from this machine)
+     */
+    public void startHttp(int port) {
+        try {
+            http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        } catch(IOException e) {
+            System.err.println(e);
+            return;
+        }
+        http.createContext("/metrics", exchange -> {
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        http.start();
+        System.out.println("Metrics on http://127.0.0.1:" + port + "/metrics");
+    }
+
+    // DynamicMBean: one read-only attribute per metric
+
+    public Object getAttribute(String name) throws AttributeNotFoundException {
+        Long v = snapshot().get(name);
+        if (v == null)
+            throw new AttributeNotFoundException(name);
+        return v;
+    }
+
+    public AttributeList getAttributes(String[] names) {
+        LinkedHashMap<String, Long> m = snapshot();
+        AttributeList out = new AttributeList();
+        for (String name : names)
+            if (m.containsKey(name))
+                out.add(new Attribute(name, m.get(name)));
+        return out;
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(action));
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        ArrayList<MBeanAttributeInfo> attrs = new ArrayList<MBeanAttributeInfo>();
+        for (String name : snapshot().keySet())
+            attrs.add(new MBeanAttributeInfo(name, "java.lang.Long", name, true, false, false));
+        return new MBeanInfo(getClass().getName(), "Scoreboard server metrics", attrs.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+}
+
+/**
+ * InputStream that counts the bytes read through it into the server metrics
+ */
+class CountingInputStream extends FilterInputStream {
+    private ServerMetrics metrics;
+
+    public CountingInputStream(InputStream in, ServerMetrics metrics) {
+        super(in);
+        this.metrics = metrics;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b != -1)
+            metrics.bytesIn(1);
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0)
+            metrics.bytesIn(n);
+        return n;
+    }
+}
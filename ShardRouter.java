@@ -0,0 +1,432 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+/**
+ * Front end of a sharded deployment. Games are spread over several shard
+ * processes by consistent hashing of their IDs; the router terminates TLS,
+ * keeps nicks and accounts itself, and forwards the game commands of each
+ * session to the shard owning the game. /SHOW games asks every shard.
+ */
+class ShardRouter extends ScoreboardServer {
+    static final int DEFAULT_LINKS_PER_SHARD = 4;
+
+    private HashRing ring;
+    private LinkedHashMap<String, ShardLink[]> links = new LinkedHashMap<String, ShardLink[]>(); // shard -> its connections, in shard list order
+    private AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Constructor
+     * @param shards Shard addresses (host:port), the same list the shards are given
+     * @param linksPerShard Connections to each shard, used in turn
+     */
+    public ShardRouter(List<String> shards, int linksPerShard) {
+        super(new ArrayList<Game>());
+        ring = new HashRing(shards);
+        for (String shard : shards) {
+            ShardLink[] l = new ShardLink[Math.max(1, linksPerShard)];
+            ShardLink.Health health = new ShardLink.Health();
+            for (int i = 0; i < l.length; i++)
+                l[i] = new ShardLink(shard, health);
+            links.put(shard, l);
+        }
+    }
+
+    @Override
+    protected ScoreboardClient newClient(InputStream in, OutputStream out, String address) {
+        return new RouterClient(in, out, address, this);
+    }
+
+    private ShardLink link(String shard) {
+        ShardLink[] l = links.get(shard);
+        return l[Math.floorMod(next.getAndIncrement(), l.length)];
+    }
+
+    /**
+     * Run a command on the shard owning a game
+     * @param owner ID of the game that decides the shard
+     * @param nick The player
+     * @param gameID Game the player is in ("" for none)
+     * @param line The command
+     * @param binary whether the reply should be binary protocol frames
+     * @return the shard's reply
+     */
+    protected CompletableFuture<ShardReply> forward(String owner, String nick, String gameID, String line, boolean binary) {
+        return link(ring.owner(owner)).call(binary ? ShardServer.OP_COMMAND_BINARY : ShardServer.OP_COMMAND, nick, gameID, line);
+    }
+
+    /**
+     * Gather the game IDs of every shard
+     * @return the IDs in shard order, or null in place of a shard that didn't answer
+     */
+    protected CompletableFuture<List<List<String>>> gameIDs() {
+        List<CompletableFuture<List<String>>> calls = new ArrayList<CompletableFuture<List<String>>>();
+        for (String shard : links.keySet())
+            calls.add(link(shard).call(ShardServer.OP_GAMES, "", "", "").handle((r, e) -> {
+                if (e != null)
+                    return null;
+                String ids = new String(r.body, StandardCharsets.UTF_8);
+                return ids.isEmpty() ? new ArrayList<String>() : Arrays.asList(ids.split("\n"));
+            }));
+        return CompletableFuture.allOf(calls.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            List<List<String>> out = new ArrayList<List<String>>();
+            for (CompletableFuture<List<String>> c : calls)
+                out.add(c.join());
+            return out;
+        });
+    }
+}
+
+/**
+ * A shard's answer to one request
+ */
+class ShardReply {
+    final byte status;
+    final byte[] body; // encoded reply lines or frames
+
+    ShardReply(byte status, byte[] body) {
+        this.status = status;
+        this.body = body;
+    }
+}
+
+/**
+ * One connection from the router to a shard, shared by many sessions.
+ * Calls only queue their request: a thread of the link's own opens the
+ * connection and writes the requests in order, and the shard answers them
+ * in order, so replies are matched to callers through a FIFO queue and
+ * read by another thread. Callers (the NIO loop among them) never wait
+ * for the network. A broken connection fails its waiting calls and is
+ * opened again on the next call; a shard that can't be reached at all is
+ * left alone for a while by all its links, and calls fail at once in the
+ * meantime.
+ */
+class ShardLink {
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final int CALL_TIMEOUT_SECONDS = 5;
+    private static final int RETRY_MILLIS = 1000; // after a failed connect
+    private static final int MAX_QUEUED = 10000; // requests not yet written
+
+    private String host;
+    private int port;
+    private ReentrantLock lock = new ReentrantLock();
+    private Connection current; // null until the next call or after a failure
+    private Health health;
+
+    /**
+     * Constructor
+     * @param address Shard address, host:port
+     * @param health Shared by all links to the shard
+     */
+    public ShardLink(String address, Health health) {
+        int colon = address.lastIndexOf(':');
+        this.host = address.substring(0, colon);
+        this.port = Integer.parseInt(address.substring(colon + 1));
+        this.health = health;
+    }
+
+    /**
+     * Whether a shard could be reached at the last attempt
+     */
+    static class Health {
+        private volatile boolean down; // the last connect failed...
+        private volatile long downSince; // ...at this System.nanoTime()
+
+        boolean isDown() {
+            return down && System.nanoTime() - downSince < TimeUnit.MILLISECONDS.toNanos(RETRY_MILLIS);
+        }
+
+        void failed() {
+            downSince = System.nanoTime();
+            down = true;
+        }
+
+        void connected() {
+            down = false;
+        }
+    }
+
+    /**
+     * Send a request. Doesn't block: the request is written by the link's thread.
+     * @param op ShardServer.OP_COMMAND, OP_COMMAND_BINARY or OP_GAMES
+     * @param nick The player
+     * @param gameID The player's game ("" for none)
+     * @param line The command
+     * @return the reply; fails if the shard can't be reached or doesn't answer in time
+     */
+    public CompletableFuture<ShardReply> call(byte op, String nick, String gameID, String line) {
+        CompletableFuture<ShardReply> reply = new CompletableFuture<ShardReply>();
+        lock.lock();
+        try {
+            if (current == null) {
+                if (health.isDown())
+                    throw new ConnectException("Shard " + host + ":" + port + " is unavailable");
+                current = new Connection();
+            }
+            if (!current.requests.offer(new Request(op, nick, gameID, line, reply)))
+                throw new IOException("Too many requests queued for shard " + host + ":" + port);
+        } catch(IOException e) {
+            reply.completeExceptionally(e);
+        } finally {
+            lock.unlock();
+        }
+        return reply.orTimeout(CALL_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * A request waiting to be written
+     */
+    private static class Request {
+        final byte op;
+        final String nick;
+        final String gameID;
+        final String line;
+        final CompletableFuture<ShardReply> reply;
+
+        Request(byte op, String nick, String gameID, String line, CompletableFuture<ShardReply> reply) {
+            this.op = op;
+            this.nick = nick;
+            this.gameID = gameID;
+            this.line = line;
+            this.reply = reply;
+        }
+    }
+
+    /**
+     * A socket to the shard (open or being opened), the requests still to
+     * be written and the calls waiting for their replies
+     */
+    private class Connection {
+        private Socket socket = new Socket();
+        private Thread writer;
+        private LinkedBlockingQueue<Request> requests = new LinkedBlockingQueue<Request>(MAX_QUEUED);
+        private ConcurrentLinkedQueue<CompletableFuture<ShardReply>> waiting = new ConcurrentLinkedQueue<CompletableFuture<ShardReply>>();
+
+        Connection() {
+            writer = new Thread(this::write, "scoreboard-shard-send-" + host + ":" + port);
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        // connect, then write the requests in order
+        private void write() {
+            try {
+                socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+            } catch(IOException e) {
+                health.failed();
+                this.failLocked(e);
+                return;
+            }
+            health.connected();
+            try {
+                socket.setTcpNoDelay(true);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                Thread reader = new Thread(this::read, "scoreboard-shard-" + host + ":" + port);
+                reader.setDaemon(true);
+                reader.start();
+                while (true) {
+                    Request r = requests.take();
+                    waiting.add(r.reply); // queued before the request goes out, so the reader finds it
+                    out.writeByte(r.op);
+                    out.writeUTF(r.nick);
+                    out.writeUTF(r.gameID);
+                    out.writeUTF(r.line);
+                    if (requests.isEmpty())
+                        out.flush();
+                }
+            } catch(IOException e) {
+                this.failLocked(e);
+            } catch(InterruptedException e) {
+                this.failLocked(new IOException("Shard connection closed")); // failed elsewhere, clear up anything added since
+            }
+        }
+
+        // read replies in order and hand them to the waiting calls
+        private void read() {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+                while (true) {
+                    byte status = in.readByte();
+                    byte[] body = new byte[in.readInt()];
+                    in.readFully(body);
+                    CompletableFuture<ShardReply> reply = waiting.poll();
+                    if (reply != null)
+                        reply.complete(new ShardReply(status, body)); // no-op if it already timed out
+                }
+            } catch(IOException e) {
+                this.failLocked(e);
+            }
+        }
+
+        private void failLocked(IOException e) {
+            lock.lock();
+            try {
+                this.fail(e);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // close and fail everything still queued or waiting (called with the lock held)
+        void fail(IOException e) {
+            if (current == this)
+                current = null;
+            try {
+                socket.close();
+            } catch(IOException ex) {
+                // closing anyway
+            }
+            if (Thread.currentThread() != writer)
+                writer.interrupt();
+            Request r;
+            while ((r = requests.poll()) != null)
+                r.reply.completeExceptionally(e);
+            CompletableFuture<ShardReply> reply;
+            while ((reply = waiting.poll()) != null)
+                reply.completeExceptionally(e);
+        }
+    }
+}
+
+/**
+ * A session on the router. Nicks, accounts and /LEAVE are handled here;
+ * /JOIN, /ANSWER and /SHOW questions|scoreboard go to the shard owning the
+ * game and the shard's reply is passed on unchanged.
+ */
+class RouterClient extends ScoreboardClient {
+    private ShardRouter router;
+    private volatile String gameID; // game joined through its shard, null if none
+
+    /**
+     * Constructor
+     * @param in Input stream
+     * @param out Output stream
+     * @param nick Nick name string
+     * @param router The router
+     */
+    public RouterClient(InputStream in, OutputStream out, String nick, ShardRouter router) {
+        super(in, out, nick);
+        this.router = router;
+    }
+
+    // run a command on a game's shard and relay the reply
+    private void forward(String owner, String line, boolean join) {
+        this.defer(router.forward(owner, this.getNick(), gameID == null ? "" : gameID, line, this.isBinary()), (r, e) -> {
+            if (e != null) {
+                this.error("ERROR: Game server unavailable, try again later.");
+                return;
+            }
+            this.sendBytes(r.body);
+            if (join && r.status == ShardServer.STATUS_IN_GAME)
+                gameID = owner;
+        });
+    }
+
+    @Override
+    protected boolean inGame(String id) {
+        return id.equals(gameID);
+    }
+
+    @Override
+    protected boolean nick(String[] args) {
+        if(gameID != null) { // currently in game
+            this.error("ERROR: Cannot change nick while in a game [[/LEAVE]].");
+            return true;
+        }
+        return super.nick(args);
+    }
+
+    @Override
+    protected boolean join(String[] args) {
+        if(gameID != null) { // already in a game
+            this.error("You must leave your current game before joining a new one. [[/LEAVE]]");
+            return true;
+        }
+        if(args.length == 0 || args[0].equals("")) { // no ID entered
+            this.error("/JOIN gameID");
+            return true;
+        }
+        this.forward(args[0], "/JOIN " + args[0], true);
+        return true;
+    }
+
+    @Override
+    protected boolean leave(String[] args) {
+        if(gameID == null) // not in a game
+            this.error("You must join a game to leave a game. [[/JOIN ]]");
+        else {
+            this.notice("Left " + gameID);
+            gameID = null;
+        }
+        return true;
+    }
+
+    @Override
+    protected boolean answer(String[] args) {
+        if(gameID == null) { // not in a game
+            this.error("You must be in a game to answer questions [[/JOIN]]");
+            return true;
+        }
+        if(args.length != 2 || args[1].equals("")) { // didnt enter questionID & answer
+            this.error("/ANSWER questionID answer");
+            return true;
+        }
+        this.forward(gameID, "/ANSWER " + args[0] + " " + args[1], false);
+        return true;
+    }
+
+    @Override
+    protected boolean show(String[] args) {
+        if(args.length == 0)
+            return super.show(args);
+        if(args[0].equalsIgnoreCase("GAMES")) {
+            this.defer(router.gameIDs(), (shards, e) -> {
+                List<String> ids = new ArrayList<String>();
+                boolean missing = false;
+                for (List<String> s : shards) {
+                    if (s == null)
+                        missing = true;
+                    else
+                        ids.addAll(s);
+                }
+                ResponseBuffer out = new ResponseBuffer();
+                if (this.isBinary())
+                    BinaryProtocol.games(out, ids);
+                else
+                    RenderCache.gameList(out, ids);
+                this.sendBytes(out.toByteArray());
+                if (missing)
+                    this.error("ERROR: Some game servers are unavailable, not all games are listed.");
+            });
+            return true;
+        }
+        boolean gameIDEntered = args.length == 2 && !args[1].equals("");
+        String owner = gameIDEntered ? args[1] : gameID;
+        if(owner == null || !(args[0].equalsIgnoreCase("QUESTIONS") || args[0].equalsIgnoreCase("SCOREBOARD")))
+            return super.show(args); // the usual error
+        this.forward(owner, "/SHOW " + args[0] + (gameIDEntered ? " " + args[1] : ""), false);
+        return true;
+    }
+
+    @Override
+    protected boolean watch(String[] args) {
+        this.error("ERROR: /WATCH is not available on a sharded server.");
+        return true;
+    }
+}
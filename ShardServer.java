@@ -0,0 +1,130 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+/**
+ * Serves a shard's games to the shard router over plain framed TCP. The
+ * router has already authenticated the player, so every request carries
+ * the player's nick and current game and is run statelessly: a throwaway
+ * session is set up with them, runs the one command through the normal
+ * ScoreboardClient handlers and its reply bytes are sent back.
+ *
+ * Request: byte op, UTF nick, UTF game ("" for none), UTF command line.
+ * Response: byte status, int length, reply bytes.
+ *
+ * The link is unauthenticated; bind it to loopback or a private network.
+ */
+class ShardServer {
+    static final byte OP_COMMAND = 1; // run /JOIN, /ANSWER or /SHOW questions|scoreboard
+    static final byte OP_GAMES = 2;   // list this shard's game IDs, one per line
+    static final byte OP_COMMAND_BINARY = 3; // OP_COMMAND for a binary protocol client: the reply is frames
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_IN_GAME = 1; // OK, and a /JOIN put the player in the game
+    static final byte STATUS_REFUSED = 2;
+
+    private ScoreboardServer master;
+
+    /**
+     * Constructor
+     * @param master Server holding this shard's games
+     */
+    public ShardServer(ScoreboardServer master) {
+        this.master = master;
+    }
+
+    /**
+     * Accept router connections on the calling thread, one thread per connection
+     * @param host Address to bind (e.g. 127.0.0.1)
+     * @param port TCP port
+     */
+    protected void listen(String host, int port) {
+        ServerSocket server;
+        try {
+            server = new ServerSocket();
+            server.bind(new InetSocketAddress(InetAddress.getByName(host), port));
+        } catch(IOException e) {
+            System.err.println(e);
+            return;
+        }
+        System.out.println("Shard serving " + master.getGames().size() + " games on " + host + ":" + port);
+        AtomicInteger count = new AtomicInteger();
+        while (true) {
+            Socket s;
+            try {
+                s = server.accept();
+                s.setTcpNoDelay(true);
+            } catch(IOException e) {
+                if (server.isClosed())
+                    return;
+                System.err.println(e);
+                ConnectionLimiter.pause();
+                continue;
+            }
+            Thread t = new Thread(() -> this.serve(s), "scoreboard-shard-link-" + count.incrementAndGet());
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    // answer requests in order until the router disconnects
+    private void serve(Socket s) {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        try (Socket socket = s;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            while (true) {
+                byte op = in.readByte();
+                String nick = in.readUTF();
+                String game = in.readUTF();
+                String line = in.readUTF();
+                sink.reset();
+                byte status = op == OP_GAMES ? this.games(sink) : this.command(nick, game, line, op == OP_COMMAND_BINARY, sink);
+                out.writeByte(status);
+                out.writeInt(sink.size());
+                sink.writeTo(out);
+                if (in.available() == 0) // a burst of requests is answered in one write
+                    out.flush();
+            }
+        } catch(EOFException e) {
+            // router closed the link
+        } catch(IOException e) {
+            System.err.println(e);
+        }
+    }
+
+    private byte games(ByteArrayOutputStream sink) {
+        StringBuilder sb = new StringBuilder();
+        for (Game g : master.getGames())
+            sb.append(g.getId()).append('\n');
+        sink.writeBytes(sb.toString().getBytes(StandardCharsets.UTF_8));
+        return STATUS_OK;
+    }
+
+    // run one command as the player, in the game the router says they are in
+    private byte command(String nick, String gameID, String line, boolean binary, ByteArrayOutputStream sink) {
+        String verb = ScoreboardClient.commandOf(line);
+        if (!"/JOIN".equals(verb) && !"/ANSWER".equals(verb) && !"/SHOW".equals(verb))
+            return STATUS_REFUSED; // anything else is the router's business
+        ScoreboardClient session = new ScoreboardClient(null, sink, nick);
+        session.registerCallback(master);
+        session.setBinary(binary);
+        if (!gameID.isEmpty()) {
+            Game g = master.getGame(gameID);
+            if (g instanceof ChallengeResponseGame)
+                session.setGame((ChallengeResponseGame) g);
+        }
+        session.handle(line);
+        if ("/JOIN".equals(verb) && session.getGame() != null)
+            return STATUS_IN_GAME;
+        return STATUS_OK;
+    }
+}
@@ -0,0 +1,216 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+/**
+ * Stress test for ChallengeResponseGame.answer. Several threads answer
+ * the same questions for the same players at the same time, each in its
+ * own random order and with wrong answers mixed in, and half the players
+ * join while that goes on (every thread joins them, so the joins race
+ * too), while one more thread keeps reading the ranking and checks that
+ * every page it gets is in order. Afterwards it checks that every
+ * (player, question) pair was awarded exactly once, that every score, the
+ * ranking and the listener events add up, and exits with status 1 if
+ * anything doesn't.
+ *
+ * Usage: java -cp target/classes AnswerStress [options]
+ *   -threads N         answering threads (default 8)
+ *   -players N         players (default 2000)
+ *   -questions N       questions (default 50)
+ *   -rounds N          times the whole test is repeated on a fresh game (default 5)
+ *   -store memory|mapped  score store (default memory; mapped uses a temporary directory)
+ */
+public class AnswerStress {
+    private int threads = 8;
+    private int players = 2000;
+    private int questions = 50;
+    private int rounds = 5;
+    private String store = "memory";
+
+    public static void main(String... args) throws Exception {
+        AnswerStress s = new AnswerStress();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-threads": s.threads = Integer.parseInt(args[++i]); break;
+                case "-players": s.players = Integer.parseInt(args[++i]); break;
+                case "-questions": s.questions = Integer.parseInt(args[++i]); break;
+                case "-rounds": s.rounds = Integer.parseInt(args[++i]); break;
+                case "-store": s.store = args[++i]; break;
+                default:
+                    System.err.println("unknown option " + args[i]);
+                    return;
+            }
+        }
+        int failed = 0;
+        for (int r = 1; r <= s.rounds; r++) {
+            long start = System.nanoTime();
+            List<String> errors = s.round();
+            System.out.printf("round %d: %d threads, %d players x %d questions, %d ms, %s%n", r, s.threads, s.players,
+                s.questions, (System.nanoTime() - start) / 1_000_000, errors.isEmpty() ? "ok" : errors.size() + " errors");
+            for (String e : errors.subList(0, Math.min(errors.size(), 20)))
+                System.out.println("  " + e);
+            failed += errors.isEmpty() ? 0 : 1;
+        }
+        if (failed > 0) {
+            System.out.println(failed + " of " + s.rounds + " rounds failed");
+            System.exit(1);
+        }
+    }
+
+    private List<String> round() throws Exception {
+        File dir = null;
+        ScoreStore scores;
+        if (store.equals("mapped")) {
+            dir = Files.createTempDirectory("answerstress").toFile();
+            scores = new MappedScoreStore(dir, "stress", players, questions);
+        } else {
+            scores = new InMemoryScoreStore();
+        }
+        try {
+            return round(scores);
+        } finally {
+            if (dir != null)
+                for (File f : dir.listFiles())
+                    f.delete();
+            if (dir != null)
+                dir.delete();
+        }
+    }
+
+    private List<String> round(ScoreStore scores) throws Exception {
+        ChallengeResponseGame game = new ChallengeResponseGame("stress", scores);
+        int expected = 0;
+        for (int q = 0; q < questions; q++) {
+            game.addQuestion(new Question("q" + q, "Question " + q + "?", "answer" + q, 1 + q % 10));
+            expected += 1 + q % 10;
+        }
+        String[] names = new String[players];
+        for (int p = 0; p < players; p++) {
+            names[p] = "player" + p;
+            if (p % 2 == 0)
+                game.addPlayer(names[p]); // the odd ones join during the run
+        }
+
+        LongAdder joins = new LongAdder();
+        LongAdder events = new LongAdder();
+        LongAdder eventPoints = new LongAdder();
+        game.addListener(new GameListener() {
+            public void playerJoined(Game g, String player) {
+                joins.increment();
+            }
+
+            public void questionAnswered(ChallengeResponseGame g, Question q, String player, int score) {
+                events.increment();
+                eventPoints.add(q.getPoints());
+            }
+        });
+
+        // points handed out per (player, question) pair, summed over all threads
+        AtomicIntegerArray awarded = new AtomicIntegerArray(players * questions);
+        CyclicBarrier go = new CyclicBarrier(threads);
+        List<Throwable> crashes = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                try {
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    int[] order = new int[players * questions];
+                    for (int i = 0; i < order.length; i++)
+                        order[i] = i;
+                    for (int i = order.length - 1; i > 0; i--) { // each thread its own order
+                        int j = rnd.nextInt(i + 1);
+                        int x = order[i];
+                        order[i] = order[j];
+                        order[j] = x;
+                    }
+                    go.await();
+                    for (int pair : order) {
+                        int p = pair / questions;
+                        int q = pair % questions;
+                        if (p % 2 == 1)
+                            game.addPlayer(names[p]); // no effect after the first time
+                        if (rnd.nextInt(4) == 0 && game.answer(names[p], "q" + q, "wrong" + q) != 0)
+                            crashes.add(new AssertionError("wrong answer scored: " + names[p] + " q" + q));
+                        int points = game.answer(names[p], "q" + q, "answer" + q);
+                        if (points != 0)
+                            awarded.addAndGet(pair, points);
+                    }
+                } catch (Throwable e) {
+                    crashes.add(e);
+                }
+            }, "stress-" + t);
+            workers[t].start();
+        }
+        Thread reader = new Thread(() -> {
+            try {
+                while (workers[0].isAlive()) {
+                    List<Map.Entry<String, Integer>> page = game.getScoresByRank(1 + ThreadLocalRandom.current().nextInt(players), 50);
+                    for (int i = 1; i < page.size(); i++) {
+                        Map.Entry<String, Integer> a = page.get(i - 1), b = page.get(i);
+                        int c = b.getValue().compareTo(a.getValue());
+                        if (c > 0 || c == 0 && a.getKey().compareTo(b.getKey()) >= 0)
+                            crashes.add(new AssertionError("ranking out of order: " + a + " before " + b));
+                    }
+                    if (!page.isEmpty() && game.getRank(page.get(0).getKey()) == 0)
+                        crashes.add(new AssertionError("ranked player has no rank: " + page.get(0).getKey()));
+                }
+            } catch (Throwable e) {
+                crashes.add(e);
+            }
+        }, "stress-reader");
+        reader.start();
+        for (Thread w : workers)
+            w.join();
+        reader.join();
+
+        List<String> errors = new ArrayList<String>();
+        for (Throwable e : crashes)
+            errors.add(e.toString());
+        long total = 0;
+        for (int p = 0; p < players; p++) {
+            int sum = 0;
+            for (int q = 0; q < questions; q++) {
+                int points = awarded.get(p * questions + q);
+                if (points != 1 + q % 10)
+                    errors.add(names[p] + " q" + q + ": awarded " + points + " points in total, expected " + (1 + q % 10));
+                if (!game.getQuestion("q" + q).isAnsweredBy(names[p]))
+                    errors.add(names[p] + " q" + q + ": not marked as answered");
+                sum += points;
+            }
+            total += sum;
+            int score = scores.getScore(names[p]);
+            if (score != expected)
+                errors.add(names[p] + ": score " + score + ", expected " + expected);
+        }
+        for (int q = 0; q < questions; q++) {
+            int n = game.getQuestion("q" + q).getAnsweredBy().size();
+            if (n != players)
+                errors.add("q" + q + ": answered by " + n + " players, expected " + players);
+        }
+        if (total != (long) expected * players)
+            errors.add("points returned by answer(): " + total + ", expected " + (long) expected * players);
+        if (events.sum() != (long) players * questions)
+            errors.add("questionAnswered events: " + events.sum() + ", expected " + (long) players * questions);
+        if (eventPoints.sum() != total)
+            errors.add("points in questionAnswered events: " + eventPoints.sum() + ", returned " + total);
+        if (joins.sum() != players / 2)
+            errors.add("playerJoined events: " + joins.sum() + ", expected " + players / 2);
+        if (game.getPlayers().size() != players)
+            errors.add("players: " + game.getPlayers().size() + ", expected " + players);
+        List<Map.Entry<String, Integer>> board = game.getScoresByRank(1, players + 1);
+        if (board.size() != players)
+            errors.add("ranking has " + board.size() + " entries, expected " + players);
+        for (Map.Entry<String, Integer> e : board)
+            if (e.getValue() != expected) {
+                errors.add("ranking: " + e.getKey() + " at " + e.getValue() + ", expected " + expected);
+                break;
+            }
+        return errors;
+    }
+}
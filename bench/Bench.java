@@ -0,0 +1,389 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.regex.Pattern;
+/**
+ * Benchmark runner for the scoreboard hot paths (see ScoreboardBenchmarks).
+ * Works like a small JMH: every benchmark/parameter combination runs in a
+ * fresh JVM (fork) with warmup iterations followed by timed measurement
+ * iterations, and the results are printed as a table and written to a CSV
+ * file that can be compared between releases.
+ *
+ * Usage: java -cp target/classes Bench [options] [regex]
+ *   -wi N        warmup iterations (default 3)
+ *   -i N         measurement iterations (default 5)
+ *   -r SECONDS   length of each iteration (default 1)
+ *   -f N         forks per benchmark, 0 runs in this JVM (default 1)
+ *   -t N         threads, for benchmarks that take a thread count (default: the benchmark's own list)
+ *   -p name=v,v  override a parameter's values
+ *   -jvmArgs S   options for the forked JVMs (default "-Xms2g -Xmx2g")
+ *   -csv FILE    where to write the results (default bench-results.csv)
+ *   -l           list benchmarks and their parameters
+ * Only benchmarks whose name matches the regex are run (default: all).
+ */
+public class Bench {
+    private static volatile long sink; // results go here so the JIT can't drop the work
+
+    private int warmups = 3;
+    private int iterations = 5;
+    private double seconds = 1;
+    private int forks = 1;
+    private String jvmArgs = "-Xms2g -Xmx2g";
+    private String csv = "bench-results.csv";
+    private Pattern filter = Pattern.compile(".*");
+    private Map<String, String[]> overrides = new LinkedHashMap<String, String[]>();
+
+    public static void main(String... args) throws Exception {
+        if (args.length > 0 && args[0].equals("-child")) {
+            runChild(args);
+            return;
+        }
+        Bench b = new Bench();
+        boolean list = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-wi": b.warmups = Integer.parseInt(args[++i]); break;
+                case "-i": b.iterations = Integer.parseInt(args[++i]); break;
+                case "-r": b.seconds = Double.parseDouble(args[++i]); break;
+                case "-f": b.forks = Integer.parseInt(args[++i]); break;
+                case "-t": b.overrides.put("threads", args[++i].split(",")); break;
+                case "-p": {
+                    String[] kv = args[++i].split("=", 2);
+                    b.overrides.put(kv[0], kv[1].split(","));
+                    break;
+                }
+                case "-jvmArgs": b.jvmArgs = args[++i]; break;
+                case "-csv": b.csv = args[++i]; break;
+                case "-l": list = true; break;
+                default: b.filter = Pattern.compile(args[i]);
+            }
+        }
+        if (list) {
+            for (BenchmarkSpec spec : ScoreboardBenchmarks.all())
+                System.out.println(spec);
+            return;
+        }
+        b.runAll();
+    }
+
+    // run every matching benchmark with every combination of its parameters
+    private void runAll() throws Exception {
+        ArrayList<Result> results = new ArrayList<Result>();
+        for (BenchmarkSpec spec : ScoreboardBenchmarks.all()) {
+            if (!filter.matcher(spec.name).find())
+                continue;
+            for (Map<String, String> params : spec.combinations(overrides)) {
+                Result r = new Result(spec.name, params);
+                System.out.println("# " + r.label());
+                for (int fork = 0; fork < Math.max(1, forks); fork++) {
+                    if (forks == 0)
+                        r.add(measure(spec, params, warmups, iterations, seconds, true));
+                    else
+                        r.add(this.fork(spec, params));
+                }
+                System.out.println(r.summary());
+                results.add(r);
+            }
+        }
+        this.report(results);
+    }
+
+    // run one benchmark in a fresh JVM and collect its iteration results
+    private List<double[]> fork(BenchmarkSpec spec, Map<String, String> params) throws IOException, InterruptedException {
+        ArrayList<String> cmd = new ArrayList<String>();
+        cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        for (String a : jvmArgs.trim().split("\\s+"))
+            if (!a.isEmpty())
+                cmd.add(a);
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.add("Bench");
+        cmd.add("-child");
+        cmd.add(spec.name);
+        cmd.add(Result.format(params));
+        cmd.add(Integer.toString(warmups));
+        cmd.add(Integer.toString(iterations));
+        cmd.add(Double.toString(seconds));
+        Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+        ArrayList<double[]> out = new ArrayList<double[]>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("RESULT ")) {
+                    String[] f = line.split(" ");
+                    out.add(new double[] {Double.parseDouble(f[1]), Double.parseDouble(f[2])});
+                } else {
+                    System.out.println(line); // progress and errors from the fork
+                }
+            }
+        }
+        if (p.waitFor() != 0)
+            throw new IOException("benchmark fork failed: " + spec.name + " " + params);
+        return out;
+    }
+
+    // entry point of a forked JVM: Bench -child name params warmups iterations seconds
+    private static void runChild(String[] args) throws Exception {
+        BenchmarkSpec spec = null;
+        for (BenchmarkSpec s : ScoreboardBenchmarks.all())
+            if (s.name.equals(args[1]))
+                spec = s;
+        if (spec == null)
+            throw new IllegalArgumentException("no benchmark " + args[1]);
+        for (double[] r : measure(spec, Result.parse(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]), Double.parseDouble(args[5]), false))
+            System.out.println("RESULT " + r[0] + " " + r[1]);
+    }
+
+    /**
+     * Set up a benchmark and time it
+     * @return {ns/op, ops/s} for each measurement iteration
+     */
+    static List<double[]> measure(BenchmarkSpec spec, Map<String, String> params, int warmups, int iterations, double seconds, boolean quiet) throws Exception {
+        BenchmarkCase c = spec.factory.get();
+        c.setup(params);
+        int threads = params.containsKey("threads") ? Integer.parseInt(params.get("threads")) : 1;
+        long nanos = (long) (seconds * 1e9);
+        ArrayList<double[]> out = new ArrayList<double[]>();
+        for (int i = 0; i < warmups + iterations; i++) {
+            double[] r = iteration(c, threads, nanos);
+            boolean warmup = i < warmups;
+            if (!quiet)
+                System.out.println(String.format(Locale.ROOT, "%s %d: %.1f ns/op", warmup ? "Warmup" : "Iteration", warmup ? i + 1 : i - warmups + 1, r[0]));
+            if (!warmup)
+                out.add(r);
+        }
+        c.tearDown();
+        return out;
+    }
+
+    // run the benchmark on each thread until the time is up
+    private static double[] iteration(BenchmarkCase c, int threads, long nanos) throws Exception {
+        long[] ops = new long[threads];
+        long[] ended = new long[threads];
+        long[] started = new long[1];
+        CyclicBarrier go = new CyclicBarrier(threads, () -> started[0] = System.nanoTime());
+        Thread[] workers = new Thread[threads];
+        Exception[] failure = new Exception[1];
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            workers[t] = new Thread(() -> {
+                try {
+                    go.await();
+                    long deadline = started[0] + nanos;
+                    long batch = 1; // grows until a call takes ~1ms, so timing overhead stays small
+                    long done = 0;
+                    long acc = 0;
+                    long now = System.nanoTime();
+                    while (now < deadline) {
+                        acc += c.run(id, batch);
+                        done += batch;
+                        long after = System.nanoTime();
+                        if (after - now < 1000000 && batch < (1 << 20))
+                            batch *= 2;
+                        now = after;
+                    }
+                    ops[id] = done;
+                    ended[id] = now;
+                    sink += acc;
+                } catch(Exception e) {
+                    failure[0] = e;
+                }
+            }, "bench-" + t);
+            workers[t].start();
+        }
+        for (Thread w : workers)
+            w.join();
+        if (failure[0] != null)
+            throw failure[0];
+        long total = 0;
+        long end = 0;
+        for (int t = 0; t < threads; t++) {
+            total += ops[t];
+            end = Math.max(end, ended[t]);
+        }
+        double wall = end - started[0];
+        return new double[] {wall * threads / total, total / (wall / 1e9)};
+    }
+
+    // print the summary table and write the CSV
+    private void report(List<Result> results) throws IOException {
+        String env = System.getProperty("java.vm.name") + " " + System.getProperty("java.version");
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println();
+        System.out.println(String.format(Locale.ROOT, "%-28s %-40s %12s %10s %14s", "Benchmark", "Params", "ns/op", "error", "ops/s"));
+        for (Result r : results)
+            System.out.println(String.format(Locale.ROOT, "%-28s %-40s %12.1f %10.1f %14.0f", r.name, Result.format(r.params), r.mean(0), r.error(), r.mean(1)));
+        try (PrintWriter w = new PrintWriter(new FileWriter(csv))) {
+            w.println("benchmark,params,iterations,ns_per_op,error_ns_per_op,min_ns_per_op,max_ns_per_op,ops_per_sec,jvm,cores");
+            for (Result r : results)
+                w.println(String.format(Locale.ROOT, "%s,\"%s\",%d,%.2f,%.2f,%.2f,%.2f,%.0f,%s,%d", r.name, Result.format(r.params),
+                        r.samples.size(), r.mean(0), r.error(), r.min(), r.max(), r.mean(1), env, cores));
+        }
+        System.out.println("Results written to " + csv);
+    }
+
+    /**
+     * All measurement iterations of one benchmark/parameter combination
+     */
+    private static class Result {
+        private String name;
+        private Map<String, String> params;
+        private ArrayList<double[]> samples = new ArrayList<double[]>();
+
+        Result(String name, Map<String, String> params) {
+            this.name = name;
+            this.params = params;
+        }
+
+        void add(List<double[]> r) {
+            samples.addAll(r);
+        }
+
+        String label() {
+            return name + (params.isEmpty() ? "" : " " + format(params));
+        }
+
+        double mean(int field) {
+            double sum = 0;
+            for (double[] s : samples)
+                sum += s[field];
+            return samples.isEmpty() ? 0 : sum / samples.size();
+        }
+
+        // half width of a 99.9% confidence interval (normal approximation)
+        double error() {
+            int n = samples.size();
+            if (n < 2)
+                return Double.NaN;
+            double mean = mean(0);
+            double var = 0;
+            for (double[] s : samples)
+                var += (s[0] - mean) * (s[0] - mean);
+            return 3.29 * Math.sqrt(var / (n - 1)) / Math.sqrt(n);
+        }
+
+        double min() {
+            double m = Double.MAX_VALUE;
+            for (double[] s : samples)
+                m = Math.min(m, s[0]);
+            return m;
+        }
+
+        double max() {
+            double m = 0;
+            for (double[] s : samples)
+                m = Math.max(m, s[0]);
+            return m;
+        }
+
+        String summary() {
+            return String.format(Locale.ROOT, "  %.1f +- %.1f ns/op, %.0f ops/s", mean(0), error(), mean(1));
+        }
+
+        static String format(Map<String, String> params) {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, String> e : params.entrySet())
+                sb.append(sb.length() == 0 ? "" : ";").append(e.getKey()).append('=').append(e.getValue());
+            return sb.toString();
+        }
+
+        static Map<String, String> parse(String s) {
+            LinkedHashMap<String, String> out = new LinkedHashMap<String, String>();
+            if (!s.isEmpty())
+                for (String kv : s.split(";")) {
+                    String[] p = kv.split("=", 2);
+                    out.put(p[0], p[1]);
+                }
+            return out;
+        }
+    }
+}
+
+/**
+ * A benchmark: set up once per fork, then run in batches from one or more threads
+ */
+interface BenchmarkCase {
+    /**
+     * Build the state to benchmark
+     * @param params Parameter values for this run
+     */
+    void setup(Map<String, String> params) throws Exception;
+
+    /**
+     * Do the measured operation ops times
+     * @param thread Index of the calling thread
+     * @param ops Number of operations
+     * @return a value depending on the results, so the work can't be optimised away
+     */
+    long run(int thread, long ops);
+
+    /**
+     * Release resources after the last iteration
+     */
+    default void tearDown() {
+    }
+}
+
+/**
+ * A named benchmark and the parameter values it runs with
+ */
+class BenchmarkSpec {
+    final String name;
+    final java.util.function.Supplier<BenchmarkCase> factory;
+    private LinkedHashMap<String, String[]> params = new LinkedHashMap<String, String[]>();
+
+    BenchmarkSpec(String name, java.util.function.Supplier<BenchmarkCase> factory) {
+        this.name = name;
+        this.factory = factory;
+    }
+
+    /**
+     * Add a parameter
+     * @param name Parameter name
+     * @param values Values to run with
+     * @return this spec, for chaining
+     */
+    BenchmarkSpec param(String name, String... values) {
+        params.put(name, values);
+        return this;
+    }
+
+    /**
+     * Every combination of parameter values, with command line overrides applied
+     * @param overrides Values given on the command line (only used for parameters this benchmark has)
+     * @return the combinations
+     */
+    List<Map<String, String>> combinations(Map<String, String[]> overrides) {
+        List<Map<String, String>> out = new ArrayList<Map<String, String>>();
+        out.add(new LinkedHashMap<String, String>());
+        for (Map.Entry<String, String[]> p : params.entrySet()) {
+            String[] values = overrides.getOrDefault(p.getKey(), p.getValue());
+            List<Map<String, String>> next = new ArrayList<Map<String, String>>();
+            for (Map<String, String> partial : out)
+                for (String v : values) {
+                    LinkedHashMap<String, String> m = new LinkedHashMap<String, String>(partial);
+                    m.put(p.getKey(), v);
+                    next.add(m);
+                }
+            out = next;
+        }
+        return out;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(name);
+        for (Map.Entry<String, String[]> p : params.entrySet())
+            sb.append(' ').append(p.getKey()).append('=').append(String.join(",", p.getValue()));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,412 @@
+import java.io.BufferedReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+/**
+ * Load generator for the scoreboard server. Opens many TLS connections
+ * (one thread each) and plays scripted sessions against the server:
+ * connect, /NICK, sometimes /REGISTER or /LOGIN, /JOIN a game, then a mix
+ * of /ANSWER and /SHOW commands, /QUIT and start over. Every reply is read
+ * in full before the next command, like a real client, and the time from
+ * sending a command to the end of its reply is recorded per command.
+ *
+ * With -rate the commands of all connections are paced to a fixed total
+ * rate and latency is measured from when a command was due, not when it
+ * was sent, so a stalled server shows up as latency instead of as fewer
+ * samples.
+ *
+ * Usage: java -cp target/classes LoadGenerator [options]
+ *   -host H            server host (default localhost)
+ *   -port N            server port (default 4001)
+ *   -c N               connections (default 100)
+ *   -d SECONDS         measured duration (default 30)
+ *   -warmup SECONDS    unmeasured time before that (default 5)
+ *   -ramp SECONDS      spread the initial connects over this long (default 5)
+ *   -rate N            total commands per second, 0 for as fast as possible (default 0)
+ *   -session N         commands per session before /QUIT and reconnect (default 100)
+ *   -mix LIST          weights of the session commands (default answer=70,scoreboard=20,questions=5,games=5)
+ *   -register PCT      sessions that /REGISTER their nick (default 5)
+ *   -login PCT         sessions that /LOGIN to an account registered earlier (default 5)
+ *   -csv FILE          also write the results as CSV
+ * The errors column counts error (red) replies, which include wrong answers.
+ */
+public class LoadGenerator {
+    // answers to try: the default question bank's answers plus some wrong ones
+    private static final String[] ANSWERS = {"AES", "RSA", "SMTP", "Network layer", "DES", "HTTP", "Transport layer", "ECC"};
+    private static final String PASSWORD = "loadtest";
+
+    private String host = "localhost";
+    private int port = 4001;
+    private int connections = 100;
+    private double duration = 30;
+    private double warmup = 5;
+    private double ramp = 5;
+    private double rate = 0;
+    private int sessionLength = 100;
+    private int registerPct = 5;
+    private int loginPct = 5;
+    private String csv;
+    private String[] mixNames;
+    private int[] mixWeights;
+    private int mixTotal;
+
+    private SSLSocketFactory factory;
+    private volatile boolean measuring;
+    private volatile boolean stopping;
+    private long intervalNanos;            // between commands when paced
+    private AtomicLong nextSlot = new AtomicLong(); // when the next paced command is due
+    private LinkedHashMap<String, CommandStats> stats = new LinkedHashMap<String, CommandStats>();
+    private CopyOnWriteArrayList<String> accounts = new CopyOnWriteArrayList<String>(); // registered by this run
+    private AtomicInteger nicks = new AtomicInteger();
+    private AtomicInteger open = new AtomicInteger();
+    private LongAdder failures = new LongAdder(); // broken connections
+    private List<String> games = new ArrayList<String>();
+
+    public static void main(String... args) throws Exception {
+        LoadGenerator g = new LoadGenerator();
+        String mix = "answer=70,scoreboard=20,questions=5,games=5";
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-host": g.host = args[++i]; break;
+                case "-port": g.port = Integer.parseInt(args[++i]); break;
+                case "-c": g.connections = Integer.parseInt(args[++i]); break;
+                case "-d": g.duration = Double.parseDouble(args[++i]); break;
+                case "-warmup": g.warmup = Double.parseDouble(args[++i]); break;
+                case "-ramp": g.ramp = Double.parseDouble(args[++i]); break;
+                case "-rate": g.rate = Double.parseDouble(args[++i]); break;
+                case "-session": g.sessionLength = Integer.parseInt(args[++i]); break;
+                case "-mix": mix = args[++i]; break;
+                case "-register": g.registerPct = Integer.parseInt(args[++i]); break;
+                case "-login": g.loginPct = Integer.parseInt(args[++i]); break;
+                case "-csv": g.csv = args[++i]; break;
+                default:
+                    System.err.println("unknown option " + args[i]);
+                    return;
+            }
+        }
+        g.parseMix(mix);
+        g.run();
+    }
+
+    private void parseMix(String mix) {
+        String[] parts = mix.split(",");
+        mixNames = new String[parts.length];
+        mixWeights = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            String[] kv = parts[i].split("=");
+            mixNames[i] = kv[0];
+            mixWeights[i] = Integer.parseInt(kv[1]);
+            mixTotal += mixWeights[i];
+        }
+    }
+
+    private void run() throws Exception {
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(null, new TrustManager[] {new TrustAll()}, null); // the test server's certificate is self-signed
+        factory = ctx.getSocketFactory();
+        for (String name : new String[] {"CONNECT", "NICK", "REGISTER", "LOGIN", "JOIN", "ANSWER", "SHOW scoreboard", "SHOW questions", "SHOW games"})
+            stats.put(name, new CommandStats());
+        this.discoverGames();
+        if (rate > 0) {
+            intervalNanos = (long) (1e9 / rate);
+            nextSlot.set(System.nanoTime());
+        }
+
+        System.out.println("Load: " + connections + " connections to " + host + ":" + port + ", "
+            + (rate > 0 ? rate + " commands/s" : "unpaced") + ", games " + games);
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        long start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            Thread t = new Thread(null, this::connectionLoop, "load-" + i, 256 * 1024);
+            t.setDaemon(true);
+            threads.add(t);
+            t.start();
+            long due = start + (long) (ramp * 1e9 * (i + 1) / connections);
+            long wait = due - System.nanoTime();
+            if (wait > 0)
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        }
+
+        long measureStart = start + (long) (Math.max(warmup, ramp) * 1e9);
+        this.sleepUntil(measureStart, "warmup");
+        measuring = true;
+        long measureEnd = measureStart + (long) (duration * 1e9);
+        this.sleepUntil(measureEnd, "run");
+        measuring = false;
+        stopping = true;
+        double seconds = (System.nanoTime() - measureStart) / 1e9;
+        for (Thread t : threads)
+            t.join(2000);
+        this.report(seconds);
+    }
+
+    // learn the game ids with one throwaway session
+    private void discoverGames() throws IOException {
+        try (SSLSocket s = this.open()) {
+            BufferedReader in = reader(s);
+            OutputStream out = s.getOutputStream();
+            readReply(in); // MOTD
+            out.write("/SHOW games\r\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            List<String> lines = readBlock(in);
+            for (int i = 2; i < lines.size() - 1; i++) // skip the rule and title lines
+                games.add(lines.get(i));
+            out.write("/QUIT\r\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+        if (games.isEmpty())
+            throw new IOException("server has no games");
+    }
+
+    // print progress every 5 seconds until the deadline
+    private void sleepUntil(long deadline, String phase) throws InterruptedException {
+        long last = this.totalCount();
+        while (true) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0)
+                return;
+            Thread.sleep(Math.min(5000, left / 1000000 + 1));
+            long now = this.totalCount();
+            System.out.println(String.format(Locale.ROOT, "[%s] connections=%d commands/s=%.0f broken=%d", phase, open.get(), (now - last) / 5.0, failures.sum()));
+            last = now;
+        }
+    }
+
+    private long totalCount() {
+        long n = 0;
+        for (CommandStats s : stats.values())
+            n += s.count.sum();
+        return n;
+    }
+
+    // one connection: run sessions back to back until told to stop
+    private void connectionLoop() {
+        while (!stopping) {
+            try {
+                this.session();
+            } catch(IOException e) {
+                if (!stopping)
+                    failures.increment();
+            }
+        }
+    }
+
+    private void session() throws IOException {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        long t0 = System.nanoTime();
+        SSLSocket s = this.open();
+        open.incrementAndGet();
+        try {
+            BufferedReader in = reader(s);
+            OutputStream out = s.getOutputStream();
+            readReply(in); // MOTD ends the handshake round trip
+            this.record("CONNECT", t0, false);
+
+            String nick = "load" + nicks.incrementAndGet();
+            this.command(in, out, "NICK", "/NICK " + nick);
+            int roll = rnd.nextInt(100);
+            if (roll < registerPct) {
+                if (!this.command(in, out, "REGISTER", "/REGISTER " + PASSWORD))
+                    accounts.add(nick);
+            } else if (roll < registerPct + loginPct && !accounts.isEmpty()) {
+                this.command(in, out, "LOGIN", "/LOGIN " + accounts.get(rnd.nextInt(accounts.size())) + " " + PASSWORD);
+            }
+            String game = games.get(rnd.nextInt(games.size()));
+            this.command(in, out, "JOIN", "/JOIN " + game);
+
+            for (int i = 0; i < sessionLength && !stopping; i++) {
+                switch (this.pick(rnd)) {
+                    case "answer":
+                        this.command(in, out, "ANSWER", "/ANSWER q" + (1 + rnd.nextInt(2)) + " " + ANSWERS[rnd.nextInt(ANSWERS.length)]);
+                        break;
+                    case "questions":
+                        this.command(in, out, "SHOW questions", "/SHOW questions");
+                        break;
+                    case "games":
+                        this.command(in, out, "SHOW games", "/SHOW games");
+                        break;
+                    default:
+                        this.command(in, out, "SHOW scoreboard", "/SHOW scoreboard");
+                }
+            }
+            out.write("/QUIT\r\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        } finally {
+            open.decrementAndGet();
+            s.close();
+        }
+    }
+
+    private String pick(ThreadLocalRandom rnd) {
+        int r = rnd.nextInt(mixTotal);
+        for (int i = 0; i < mixNames.length; i++) {
+            r -= mixWeights[i];
+            if (r < 0)
+                return mixNames[i];
+        }
+        return mixNames[mixNames.length - 1];
+    }
+
+    /**
+     * Send one command and wait for its whole reply
+     * @return whether the server replied with an error
+     */
+    private boolean command(BufferedReader in, OutputStream out, String name, String line) throws IOException {
+        long due = System.nanoTime();
+        if (intervalNanos > 0) { // paced: wait for this command's slot
+            due = nextSlot.getAndAdd(intervalNanos);
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                } catch(InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        }
+        out.write((line + "\r\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        boolean error = readReply(in);
+        this.record(name, due, error);
+        return error;
+    }
+
+    private void record(String name, long since, boolean error) {
+        if (!measuring)
+            return;
+        CommandStats s = stats.get(name);
+        s.latency.record(System.nanoTime() - since);
+        s.count.increment();
+        if (error)
+            s.errors.increment();
+    }
+
+    private SSLSocket open() throws IOException {
+        SSLSocket s = (SSLSocket) factory.createSocket();
+        s.connect(new InetSocketAddress(host, port), 10000);
+        s.setSoTimeout(30000);
+        s.setTcpNoDelay(true);
+        s.startHandshake();
+        return s;
+    }
+
+    private static BufferedReader reader(SSLSocket s) throws IOException {
+        return new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Read one reply: either a single "*** ..." (or MOTD) line or a block
+     * framed by "-----------------" rule lines
+     * @return whether it was an error reply
+     */
+    static boolean readReply(BufferedReader in) throws IOException {
+        String first = in.readLine();
+        if (first == null)
+            throw new IOException("connection closed");
+        if (isBlockStart(first)) {
+            String line;
+            do {
+                line = in.readLine();
+                if (line == null)
+                    throw new IOException("connection closed");
+            } while (!isBlockEnd(line));
+        }
+        return first.startsWith("\033[31m");
+    }
+
+    // read a block reply and return its lines
+    private static List<String> readBlock(BufferedReader in) throws IOException {
+        ArrayList<String> lines = new ArrayList<String>();
+        String line = in.readLine();
+        if (line == null || !isBlockStart(line))
+            throw new IOException("expected a block, got " + line);
+        lines.add(line);
+        do {
+            line = in.readLine();
+            if (line == null)
+                throw new IOException("connection closed");
+            lines.add(line);
+        } while (!isBlockEnd(line));
+        return lines;
+    }
+
+    private static boolean isBlockStart(String line) {
+        return line.startsWith("\033[35m-----");
+    }
+
+    private static boolean isBlockEnd(String line) {
+        return line.startsWith("-----") && line.endsWith("\033[0m");
+    }
+
+    // print the table (and CSV) of throughput and latency per command
+    private void report(double seconds) throws IOException {
+        System.out.println();
+        System.out.println(String.format(Locale.ROOT, "%-16s %9s %8s %10s %10s %10s %10s %10s", "Command", "count", "errors", "per sec", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+        for (Map.Entry<String, CommandStats> e : stats.entrySet()) {
+            CommandStats s = e.getValue();
+            if (s.count.sum() == 0)
+                continue;
+            LatencyHistogram h = s.latency;
+            System.out.println(String.format(Locale.ROOT, "%-16s %9d %8d %10.1f %10.2f %10.2f %10.2f %10.2f", e.getKey(), s.count.sum(), s.errors.sum(),
+                    s.count.sum() / seconds, h.getPercentile(50) / 1e6, h.getPercentile(99) / 1e6, h.getPercentile(99.9) / 1e6, h.getMax() / 1e6));
+        }
+        System.out.println(String.format(Locale.ROOT, "total %.1f commands/s over %.1fs, %d broken connections", this.totalCount() / seconds, seconds, failures.sum()));
+        if (csv == null)
+            return;
+        try (PrintWriter w = new PrintWriter(new FileWriter(csv))) {
+            w.println("command,count,errors,per_sec,p50_ms,p99_ms,p999_ms,max_ms,connections,rate");
+            for (Map.Entry<String, CommandStats> e : stats.entrySet()) {
+                CommandStats s = e.getValue();
+                LatencyHistogram h = s.latency;
+                w.println(String.format(Locale.ROOT, "%s,%d,%d,%.1f,%.3f,%.3f,%.3f,%.3f,%d,%.0f", e.getKey(), s.count.sum(), s.errors.sum(), s.count.sum() / seconds,
+                        h.getPercentile(50) / 1e6, h.getPercentile(99) / 1e6, h.getPercentile(99.9) / 1e6, h.getMax() / 1e6, connections, rate));
+            }
+        }
+        System.out.println("Results written to " + csv);
+    }
+
+    /**
+     * Counters of one command
+     */
+    private static class CommandStats {
+        private LatencyHistogram latency = new LatencyHistogram();
+        private LongAdder count = new LongAdder();
+        private LongAdder errors = new LongAdder();
+    }
+
+    /**
+     * Accepts any server certificate (the load test runs against a
+     * self-signed test keystore)
+     */
+    private static class TrustAll implements X509TrustManager {
+        public void checkClientTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        public void checkServerTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+}
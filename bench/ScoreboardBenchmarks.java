@@ -0,0 +1,336 @@
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+/**
+ * The benchmarks run by Bench. Sizes are meant to be realistic for a busy
+ * server: up to a million players, thousands of questions and several
+ * threads answering the same game at once.
+ */
+class ScoreboardBenchmarks {
+    static List<BenchmarkSpec> all() {
+        return Arrays.asList(
+            new BenchmarkSpec("answer", AnswerBench::new)
+                .param("players", "1000", "1000000")
+                .param("questions", "10", "10000")
+                .param("answer", "wrong", "correct"),
+            new BenchmarkSpec("answer.contended", ContendedAnswerBench::new)
+                .param("players", "100000")
+                .param("questions", "100")
+                .param("threads", "1", "4", "8"),
+            new BenchmarkSpec("isAnswer", IsAnswerBench::new)
+                .param("input", "exact", "mixedCase", "wrong", "wrongLength"),
+            new BenchmarkSpec("checkNick", CheckNickBench::new)
+                .param("accounts", "1000", "1000000"),
+            new BenchmarkSpec("login.cached", CachedLoginBench::new)
+                .param("accounts", "1000", "1000000"),
+            new BenchmarkSpec("login.pbkdf2", HashLoginBench::new),
+            new BenchmarkSpec("getScores", ScoresBench::new)
+                .param("players", "1000", "100000", "1000000")
+                .param("view", "all", "top10", "page", "rank"),
+            new BenchmarkSpec("dispatch", DispatchBench::new),
+            new BenchmarkSpec("handle", HandleBench::new)
+                .param("command", "showGames", "showScoreboard", "answer", "unknown")
+        );
+    }
+
+    static int intParam(Map<String, String> params, String name) {
+        return Integer.parseInt(params.get(name));
+    }
+
+    // a game with the given number of players and questions (question i answers "answer<i>")
+    static ChallengeResponseGame game(int players, int questions) {
+        ChallengeResponseGame g = new ChallengeResponseGame("bench");
+        for (int q = 0; q < questions; q++)
+            g.addQuestion(new Question("q" + q, "Question number " + q + "?", "answer" + q, 1 + q % 10));
+        for (int p = 0; p < players; p++)
+            g.addPlayer("player" + p);
+        return g;
+    }
+
+    static String[] names(String prefix, int n) {
+        String[] out = new String[n];
+        for (int i = 0; i < n; i++)
+            out[i] = prefix + i;
+        return out;
+    }
+}
+
+/**
+ * ChallengeResponseGame.answer. Correct answers walk through every
+ * (player, question) pair, so they are first-time answers until the pairs
+ * run out and repeats after that.
+ */
+class AnswerBench implements BenchmarkCase {
+    private ChallengeResponseGame game;
+    private String[] players;
+    private String[] questions;
+    private String[] correct;
+    private boolean right;
+    private long next;
+
+    public void setup(Map<String, String> params) {
+        int p = ScoreboardBenchmarks.intParam(params, "players");
+        int q = ScoreboardBenchmarks.intParam(params, "questions");
+        game = ScoreboardBenchmarks.game(p, q);
+        players = ScoreboardBenchmarks.names("player", p);
+        questions = ScoreboardBenchmarks.names("q", q);
+        correct = ScoreboardBenchmarks.names("answer", q);
+        right = params.get("answer").equals("correct");
+    }
+
+    public long run(int thread, long ops) {
+        long acc = 0;
+        for (long i = 0; i < ops; i++, next++) {
+            int p = (int) (next % players.length);
+            int q = (int) ((next / players.length) % questions.length);
+            acc += game.answer(players[p], questions[q], right ? correct[q] : "nope");
+        }
+        return acc;
+    }
+}
+
+/**
+ * Several threads answering correctly in the same game, each for its own players
+ */
+class ContendedAnswerBench implements BenchmarkCase {
+    private ChallengeResponseGame game;
+    private String[] players;
+    private String[] questions;
+    private String[] correct;
+    private int slice;
+    private long[] next;
+
+    public void setup(Map<String, String> params) {
+        int p = ScoreboardBenchmarks.intParam(params, "players");
+        int q = ScoreboardBenchmarks.intParam(params, "questions");
+        int threads = ScoreboardBenchmarks.intParam(params, "threads");
+        game = ScoreboardBenchmarks.game(p, q);
+        players = ScoreboardBenchmarks.names("player", p);
+        questions = ScoreboardBenchmarks.names("q", q);
+        correct = ScoreboardBenchmarks.names("answer", q);
+        slice = p / threads;
+        next = new long[threads * 8]; // spaced out so the counters don't share a cache line
+    }
+
+    public long run(int thread, long ops) {
+        long acc = 0;
+        long n = next[thread * 8];
+        int base = thread * slice;
+        for (long i = 0; i < ops; i++, n++) {
+            int p = base + (int) (n % slice);
+            int q = (int) ((n / slice) % questions.length);
+            acc += game.answer(players[p], questions[q], correct[q]);
+        }
+        next[thread * 8] = n;
+        return acc;
+    }
+}
+
+/**
+ * Question.isAnswer against a question with alternatives
+ */
+class IsAnswerBench implements BenchmarkCase {
+    private Question question;
+    private String[] inputs = new String[16]; // distinct copies, so the check can't be hoisted out of the loop
+
+    public void setup(Map<String, String> params) {
+        question = new Question("q1", "What is the name of the layer in the OSI stack at which routers operate?",
+                "Network layer", 5, "Network", "Layer 3", "L3");
+        String input;
+        switch (params.get("input")) {
+            case "exact": input = "Network layer"; break;
+            case "mixedCase": input = "  nEtWoRk LAYER "; break;
+            case "wrong": input = "Network lasagna"; break; // same length as an answer
+            default: input = "Transport layer, surely";
+        }
+        for (int i = 0; i < inputs.length; i++)
+            inputs[i] = new String(input);
+    }
+
+    public long run(int thread, long ops) {
+        long acc = 0;
+        for (long i = 0; i < ops; i++)
+            if (question.isAnswer(inputs[(int) (i & 15)]))
+                acc++;
+        return acc;
+    }
+}
+
+/**
+ * ScoreboardServer.checkNick with many registered accounts and connected
+ * sessions, alternating nicks that are taken and free
+ */
+class CheckNickBench implements BenchmarkCase {
+    private ScoreboardServer server;
+    private String[] lookups;
+
+    public void setup(Map<String, String> params) {
+        int n = ScoreboardBenchmarks.intParam(params, "accounts");
+        server = new ScoreboardServer(new ArrayList<Game>());
+        byte[] salt = new byte[16];
+        byte[] hash = Password.calculateHash("password", salt);
+        for (int i = 0; i < n; i++)
+            server.restoreAccount(new Account("user" + i, hash, salt));
+        for (int i = 0; i < Math.min(n, 10000); i++) // connected, unregistered sessions
+            server.connect(null, OutputStream.nullOutputStream(), "10.0." + (i >> 8) + "." + (i & 255) + ":4000");
+        lookups = new String[1024];
+        for (int i = 0; i < lookups.length; i++)
+            lookups[i] = i % 2 == 0 ? "user" + (i * 7919L % n) : "free" + i;
+    }
+
+    public long run(int thread, long ops) {
+        long acc = 0;
+        for (long i = 0; i < ops; i++)
+            if (server.checkNick(lookups[(int) (i & 1023)]))
+                acc++;
+        return acc;
+    }
+}
+
+/**
+ * The work of a /LOGIN whose password was verified recently: account
+ * lookup plus the verified-hash check, no PBKDF2. (Calls the registry and
+ * account directly, since the server's login path throttles repeated
+ * attempts.)
+ */
+class CachedLoginBench implements BenchmarkCase {
+    private static final int HOT = 64;
+    private NickRegistry registry = new NickRegistry();
+    private String[] hot = new String[HOT];
+
+    public void setup(Map<String, String> params) {
+        int n = ScoreboardBenchmarks.intParam(params, "accounts");
+        byte[] salt = new byte[16];
+        byte[] hash = Password.calculateHash("password", salt);
+        for (int i = 0; i < n; i++)
+            registry.addAccount(new Account("user" + i, hash, salt));
+        for (int i = 0; i < HOT; i++) { // recently logged in: verified once with PBKDF2
+            hot[i] = "user" + (i * 7919L % n);
+            registry.getAccount(hot[i]).checkPass("password");
+        }
+    }
+
+    public long run(int thread, long ops) {
+        long acc = 0;
+        for (long i = 0; i < ops; i++)
+            if (registry.getAccount(hot[(int) (i % HOT)]).checkCachedPass("password"))
+                acc++;
+        return acc;
+    }
+}
+
+/**
+ * The work of a /LOGIN that has to hash the password (PBKDF2)
+ */
+class HashLoginBench implements BenchmarkCase {
+    private Account account;
+
+    public void setup(Map<String, String> params) {
+        account = new Account("user", "password");
+    }
+
+    public long run(int thread, long ops) {
+        long acc = 0;
+        for (long i = 0; i < ops; i++)
+            if (account.checkPass("password"))
+                acc++;
+        return acc;
+    }
+}
+
+/**
+ * Reading scores: the full table (Game.getScores), the top ten, a page
+ * from the middle, and one player's rank
+ */
+class ScoresBench implements BenchmarkCase {
+    private Game game;
+    private String[] players;
+    private String view;
+
+    public void setup(Map<String, String> params) {
+        int n = ScoreboardBenchmarks.intParam(params, "players");
+        ChallengeResponseGame g = ScoreboardBenchmarks.game(n, 10);
+        for (int p = 0; p < n; p++) // spread the scores out
+            for (int q = 0; q < 10; q++)
+                if ((p * 31 + q * 17) % 3 == 0)
+                    g.answer("player" + p, "q" + q, "answer" + q);
+        game = g;
+        players = ScoreboardBenchmarks.names("player", Math.min(n, 4096));
+        view = params.get("view");
+    }
+
+    public long run(int thread, long ops) {
+        long acc = 0;
+        for (long i = 0; i < ops; i++) {
+            switch (view) {
+                case "all": acc += game.getScores().size(); break;
+                case "top10": acc += game.getTopScores(10).size(); break;
+                case "page": acc += game.getScoresByRank(game.getPlayers().size() / 2, 20).size(); break;
+                default: acc += game.getRank(players[(int) (i % players.length)]);
+            }
+        }
+        return acc;
+    }
+}
+
+/**
+ * Command parsing alone: the dispatcher with the client's verbs and a
+ * realistic mix of lines, handlers doing nothing
+ */
+class DispatchBench implements BenchmarkCase {
+    private CommandDispatcher<Object> commands = new CommandDispatcher<Object>();
+    private String[] lines = {
+        "/ANSWER q1 AES", "/SHOW scoreboard crypto", "/ANSWER q12 Network layer", "/SHOW questions",
+        "/JOIN crypto", "/LEAVE", "/NICK alice", "/LOGIN alice secret", "hello there", ""
+    };
+
+    public void setup(Map<String, String> params) {
+        CommandDispatcher.Handler<Object> none = (s, args) -> args.length >= 0;
+        commands.register("/QUIT", 0, none).register("QUIT", 0, none).register("/NICK", 1, none)
+            .register("/REGISTER", 1, none).register("/LOGIN", 2, none).register("/SHOW", 2, none)
+            .register("/JOIN", 1, none).register("/LEAVE", 0, none).register("/ANSWER", 2, none)
+            .register("/WATCH", 1, none).register("/UNWATCH", 0, none);
+    }
+
+    public long run(int thread, long ops) {
+        long acc = 0;
+        for (long i = 0; i < ops; i++)
+            if (commands.dispatch(this, lines[(int) (i % lines.length)]))
+                acc++;
+        return acc;
+    }
+}
+
+/**
+ * A whole command as a session handles it (parse, run, render and write the
+ * reply), with the reply going to a stream that discards it
+ */
+class HandleBench implements BenchmarkCase {
+    private ScoreboardClient client;
+    private String line;
+
+    public void setup(Map<String, String> params) {
+        ArrayList<Game> games = new ArrayList<Game>();
+        games.add(ScoreboardBenchmarks.game(1000, 100));
+        ScoreboardServer server = new ScoreboardServer(games);
+        client = server.connect(null, OutputStream.nullOutputStream(), "10.0.0.1:4000");
+        client.handle("/NICK player0");
+        client.handle("/JOIN bench");
+        switch (params.get("command")) {
+            case "showGames": line = "/SHOW games"; break;
+            case "showScoreboard": line = "/SHOW scoreboard"; break;
+            case "answer": line = "/ANSWER q5 wrong answer"; break;
+            default: line = "/DANCE";
+        }
+    }
+
+    public long run(int thread, long ops) {
+        long acc = 0;
+        for (long i = 0; i < ops; i++)
+            if (client.handle(line))
+                acc++;
+        return acc;
+    }
+}
@@ -0,0 +1,37 @@
+#!/bin/sh
+# Run a sharded server on this machine: N shard processes on 127.0.0.1:5001.. and a router on port 4001.
+# Usage: bench/cluster.sh [N] (default 3); stop with Ctrl-C. Logs and data go to target/cluster.
+# SERVER_OPTS is passed to every process, e.g. SERVER_OPTS="-Dscoreboard.store=mapped".
+set -e
+cd "$(dirname "$0")/.."
+N=${1:-3}
+WORK=target/cluster
+mkdir -p "$WORK"
+
+if [ ! -f "$WORK/keystore.jks" ]; then
+    keytool -genkeypair -alias scoreboard -keyalg EC -groupname secp256r1 -validity 365 \
+        -dname "CN=localhost" -ext "SAN=dns:localhost,ip:127.0.0.1" \
+        -keystore "$WORK/keystore.jks" -storetype JKS -storepass password -keypass password
+fi
+
+mvn -B -q compile
+CLASSES="$(pwd)/target/classes"
+
+SHARDS=""
+for i in $(seq 1 "$N"); do
+    SHARDS="$SHARDS${SHARDS:+,}127.0.0.1:$((5000 + i))"
+done
+
+PIDS=""
+trap 'kill $PIDS 2>/dev/null' EXIT INT TERM
+for i in $(seq 1 "$N"); do
+    mkdir -p "$WORK/shard$i"
+    (cd "$WORK/shard$i" && exec java $SERVER_OPTS -cp "$CLASSES" -Dscoreboard.mode=shard \
+        -Dscoreboard.shards="$SHARDS" -Dscoreboard.shard=127.0.0.1:$((5000 + i)) Main > server.log 2>&1) &
+    PIDS="$PIDS $!"
+done
+sleep 1
+(cd "$WORK" && exec java $SERVER_OPTS -cp "$CLASSES" -Dscoreboard.mode=router -Dscoreboard.shards="$SHARDS" Main > router.log 2>&1) &
+PIDS="$PIDS $!"
+echo "router on localhost:4001, shards $SHARDS (logs in $WORK)"
+wait
@@ -0,0 +1,25 @@
+#!/bin/sh
+# Run the load generator against a local server.
+# Usage: bench/loadtest.sh [LoadGenerator options], e.g. bench/loadtest.sh -c 2000 -d 60 -rate 20000
+# Server options can be passed in SERVER_OPTS, e.g. SERVER_OPTS="-Dscoreboard.transport=nio".
+set -e
+cd "$(dirname "$0")/.."
+WORK=target/loadtest
+mkdir -p "$WORK"
+
+# self-signed keystore in the place (and with the password) Main expects
+if [ ! -f "$WORK/keystore.jks" ]; then
+    keytool -genkeypair -alias scoreboard -keyalg EC -groupname secp256r1 -validity 365 \
+        -dname "CN=localhost" -ext "SAN=dns:localhost,ip:127.0.0.1" \
+        -keystore "$WORK/keystore.jks" -storetype JKS -storepass password -keypass password
+fi
+
+mvn -B -q -Pbench compile
+CLASSES="$(pwd)/target/classes"
+
+(cd "$WORK" && exec java $SERVER_OPTS -cp "$CLASSES" Main > server.log 2>&1) &
+SERVER=$!
+trap 'kill $SERVER 2>/dev/null' EXIT
+sleep 2
+
+java -cp "$CLASSES" LoadGenerator "$@"